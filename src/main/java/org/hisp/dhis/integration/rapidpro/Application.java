@@ -231,6 +231,8 @@ public class Application extends SpringBootServletInitializer
             onlineBanner.append( " Sync contacts task: " ).append( baseUrl ).append( "/services/tasks/sync\n" );
         }
         onlineBanner.append( " Remind contacts task: " ).append( baseUrl ).append( "/services/tasks/reminders\n" );
+        onlineBanner.append( " Invalidate metadata cache task: " ).append( baseUrl )
+            .append( "/services/tasks/invalidateMetadataCache\n" );
 
         LOGGER.info(
             String.format( StreamUtils.copyToString(
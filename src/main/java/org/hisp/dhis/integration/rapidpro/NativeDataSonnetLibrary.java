@@ -35,12 +35,10 @@ import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 
-import org.hisp.dhis.api.model.v40_0.CategoryOptionCombo;
-import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.rapidpro.metadata.CategoryOptionComboIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
 import sjsonnet.Materializer;
@@ -58,8 +56,7 @@ public class NativeDataSonnetLibrary extends Library
     private static final Logger LOGGER = LoggerFactory.getLogger( NativeDataSonnetLibrary.class );
 
     @Autowired
-    @Lazy
-    private Dhis2Client dhis2Client;
+    private CategoryOptionComboIndex categoryOptionComboIndex;
 
     @Override
     public String namespace()
@@ -135,19 +132,7 @@ public class NativeDataSonnetLibrary extends Library
 
     protected String fetchDhis2CatOptComboCode( String resultName )
     {
-        String catOptComboCode = extractCatOptComboCode( resultName );
-        Iterable<CategoryOptionCombo> categoryOptionCombos = dhis2Client.get( "categoryOptionCombos" )
-            .withFilter( "code:$ilike:" + catOptComboCode ).withFields( "code" ).withoutPaging()
-            .transfer().returnAs( CategoryOptionCombo.class, "categoryOptionCombos" );
-        String dhis2CatOptComboCode = null;
-        for ( CategoryOptionCombo categoryOptionCombo : categoryOptionCombos )
-        {
-            if ( categoryOptionCombo.getCode().get().equalsIgnoreCase( catOptComboCode ) )
-            {
-                dhis2CatOptComboCode = categoryOptionCombo.getCode().get();
-            }
-        }
-        return dhis2CatOptComboCode;
+        return categoryOptionComboIndex.lookup( extractCatOptComboCode( resultName ) );
     }
 
     protected String extractCatOptComboCode( String resultName )
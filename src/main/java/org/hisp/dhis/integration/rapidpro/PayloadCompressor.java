@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.camel.Exchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compresses the JSON documents saved to the success log and the dead letter channel when
+ * <code>payload.compression</code> is set to <code>gzip</code>. A compressed document is stored in the
+ * <code>compressed_</code> counterpart of its column while the row's <code>payload_format</code> column tells readers
+ * which of the two columns to read.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=PayloadCompressor", description = "Success log and dead letter channel payload compression" )
+public class PayloadCompressor
+{
+    public static final String JSON_FORMAT = "JSON";
+
+    public static final String GZIP_FORMAT = "GZIP";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( PayloadCompressor.class );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value( "${payload.compression:none}" )
+    private String compression;
+
+    @Value( "${payload.migration.dlc.select.${spring.sql.init.platform}}" )
+    private String dlcSelectSql;
+
+    @Value( "${payload.migration.dlc.update.${spring.sql.init.platform}}" )
+    private String dlcUpdateSql;
+
+    @Value( "${payload.migration.success.log.select.${spring.sql.init.platform}}" )
+    private String successLogSelectSql;
+
+    @Value( "${payload.migration.success.log.update.${spring.sql.init.platform}}" )
+    private String successLogUpdateSql;
+
+    @Value( "${payload.migration.batch.size:500}" )
+    private int migrationBatchSize;
+
+    public void compressHeaders( Exchange exchange, String... headerNames )
+    {
+        compress( exchange.getMessage().getHeaders(), headerNames );
+    }
+
+    public void compress( Map<String, Object> values, String... names )
+    {
+        boolean gzip = compression.equalsIgnoreCase( GZIP_FORMAT );
+        for ( String name : names )
+        {
+            String compressedName = "compressed" + Character.toUpperCase( name.charAt( 0 ) ) + name.substring( 1 );
+            Object value = values.get( name );
+            if ( gzip && value != null )
+            {
+                values.put( compressedName, gzip( value.toString() ) );
+                values.put( name, null );
+            }
+            else
+            {
+                values.put( compressedName, null );
+            }
+        }
+        values.put( "payloadFormat", gzip ? GZIP_FORMAT : JSON_FORMAT );
+    }
+
+    /**
+     * Compresses the documents of the rows saved before compression was turned on. Refused while compression is off
+     * since the rows would be compressed behind the back of a configuration which does not expect them to be.
+     */
+    @ManagedOperation( description = "Compresses the payloads of existing success log and dead letter channel rows" )
+    public long compressExistingRows()
+    {
+        if ( !compression.equalsIgnoreCase( GZIP_FORMAT ) )
+        {
+            throw new IllegalStateException(
+                "Existing rows can only be compressed when payload.compression is set to gzip" );
+        }
+        long count = compressExistingRows( dlcSelectSql, dlcUpdateSql, List.of( "payload" ) ) + compressExistingRows(
+            successLogSelectSql, successLogUpdateSql, List.of( "dhis_request", "dhis_response", "rapidpro_payload" ) );
+        LOGGER.info( String.format( "Compressed the payloads of %s existing row/s", count ) );
+        return count;
+    }
+
+    protected long compressExistingRows( String selectSql, String updateSql, List<String> columnNames )
+    {
+        NamedParameterJdbcTemplate namedParameterJdbcTemplate = new NamedParameterJdbcTemplate( jdbcTemplate );
+        long count = 0;
+        List<Map<String, Object>> rows;
+        do
+        {
+            rows = namedParameterJdbcTemplate.queryForList( selectSql, Map.of( "limit", migrationBatchSize ) );
+            List<Map<String, Object>> compressedRows = rows.stream().map( row -> {
+                Map<String, Object> compressedRow = new HashMap<>( Map.of( "id", row.get( "id" ) ) );
+                for ( String columnName : columnNames )
+                {
+                    Object value = row.get( columnName );
+                    compressedRow.put( columnName, value == null ? null : gzip( value.toString() ) );
+                }
+                return compressedRow;
+            } ).collect( Collectors.toList() );
+            if ( !compressedRows.isEmpty() )
+            {
+                namedParameterJdbcTemplate.batchUpdate( updateSql, compressedRows.toArray( new Map[0] ) );
+                count += compressedRows.size();
+            }
+        }
+        while ( rows.size() == migrationBatchSize );
+        return count;
+    }
+
+    public static String decode( Object payloadFormat, Object json, Object compressedJson )
+    {
+        if ( GZIP_FORMAT.equals( payloadFormat ) )
+        {
+            return gunzip( (byte[]) compressedJson );
+        }
+        else
+        {
+            return json == null ? null : json.toString();
+        }
+    }
+
+    public static byte[] gzip( String json )
+    {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try ( GZIPOutputStream gzipOutputStream = new GZIPOutputStream( byteArrayOutputStream ) )
+        {
+            gzipOutputStream.write( json.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        catch ( IOException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Also registered as the <code>GUNZIP</code> function of the H2 database so that compressed payloads can be read
+     * from the H2 web console.
+     */
+    public static String gunzip( byte[] compressedJson )
+    {
+        if ( compressedJson == null )
+        {
+            return null;
+        }
+        try ( GZIPInputStream gzipInputStream = new GZIPInputStream( new ByteArrayInputStream( compressedJson ) ) )
+        {
+            return new String( gzipInputStream.readAllBytes(), StandardCharsets.UTF_8 );
+        }
+        catch ( IOException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+}
@@ -28,10 +28,13 @@
 package org.hisp.dhis.integration.rapidpro.aggregationStrategy;
 
 import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.PathNotFoundException;
 import org.apache.camel.AggregationStrategy;
 import org.apache.camel.Exchange;
+import org.hisp.dhis.integration.rapidpro.metadata.ContactOrgUnitIdCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
@@ -41,6 +44,9 @@ public class ContactOrgUnitIdAggrStrategy implements AggregationStrategy
 {
     protected static final Logger LOGGER = LoggerFactory.getLogger( ContactOrgUnitIdAggrStrategy.class );
 
+    @Autowired
+    private ContactOrgUnitIdCache contactOrgUnitIdCache;
+
     @Override
     public Exchange aggregate( Exchange oldExchange, Exchange newExchange )
     {
@@ -48,8 +54,21 @@ public class ContactOrgUnitIdAggrStrategy implements AggregationStrategy
         String contactUuid = (String) ((Map<String, Object>) oldExchange.getMessage().getBody( Map.class )
             .get( "contact" )).get( "uuid" );
         LOGGER.debug( String.format( "Fetched contact %s => %s ", contactUuid, contact ) );
-        oldExchange.getMessage()
-            .setHeader( "orgUnitId", JsonPath.read( contact, "$.results[0].fields.dhis2_organisation_unit_id" ) );
+        String orgUnitId;
+        try
+        {
+            orgUnitId = JsonPath.read( contact, "$.results[0].fields.dhis2_organisation_unit_id" );
+        }
+        catch ( PathNotFoundException e )
+        {
+            contactOrgUnitIdCache.putMissing( contactUuid, e.getMessage() );
+            throw e;
+        }
+        if ( orgUnitId != null )
+        {
+            contactOrgUnitIdCache.put( contactUuid, orgUnitId );
+        }
+        oldExchange.getMessage().setHeader( "orgUnitId", orgUnitId );
         return oldExchange;
     }
 }
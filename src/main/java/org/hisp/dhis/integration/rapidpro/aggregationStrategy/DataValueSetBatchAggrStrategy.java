@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.aggregationStrategy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.AggregationStrategy;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@Component
+public class DataValueSetBatchAggrStrategy implements AggregationStrategy
+{
+    public static final String BATCHED_REPORTS_PROPERTY = "batchedReports";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Override
+    public Exchange aggregate( Exchange oldExchange, Exchange newExchange )
+    {
+        Message newMessage = newExchange.getMessage();
+        Map<String, Object> dataValueSet;
+        try
+        {
+            dataValueSet = objectMapper.readValue( newMessage.getBody( String.class ), Map.class );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+
+        Exchange batchExchange;
+        Map<String, Object> batchDataValueSet;
+        List<Map<String, Object>> batchedReports;
+        if ( oldExchange == null )
+        {
+            batchExchange = newExchange;
+            batchDataValueSet = new HashMap<>();
+            batchDataValueSet.put( "dataSet", dataValueSet.get( "dataSet" ) );
+            batchDataValueSet.put( "dataValues", new ArrayList<>() );
+            batchedReports = new ArrayList<>();
+            batchExchange.setProperty( BATCHED_REPORTS_PROPERTY, batchedReports );
+        }
+        else
+        {
+            batchExchange = oldExchange;
+            batchDataValueSet = oldExchange.getMessage().getBody( Map.class );
+            batchedReports = oldExchange.getProperty( BATCHED_REPORTS_PROPERTY, List.class );
+        }
+
+        List<Map<String, Object>> batchDataValues = (List<Map<String, Object>>) batchDataValueSet.get(
+            "dataValues" );
+        List<Map<String, Object>> dataValues = (List<Map<String, Object>>) dataValueSet.get( "dataValues" );
+
+        Map<String, Object> batchedReport = new HashMap<>();
+        batchedReport.put( "originalPayload", newMessage.getHeader( "originalPayload" ) );
+        batchedReport.put( "dataSetCode", newMessage.getHeader( "dataSetCode" ) );
+        batchedReport.put( "orgUnitId", newMessage.getHeader( "orgUnitId" ) );
+        batchedReport.put( "reportPeriodOffset", newMessage.getHeader( "reportPeriodOffset" ) );
+        batchedReport.put( "period", newMessage.getHeader( "period" ) );
+        batchedReport.put( "dhisRequest", newMessage.getBody( String.class ) );
+        batchedReport.put( "deadLetterChannelId", newMessage.getHeader( "deadLetterChannelId" ) );
+        batchedReport.put( "supersededReports",
+            newExchange.getProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY ) );
+        batchedReport.put( "dataValueOffset", batchDataValues.size() );
+        batchedReport.put( "dataValueCount", dataValues == null ? 0 : dataValues.size() );
+        batchedReports.add( batchedReport );
+
+        if ( dataValues != null )
+        {
+            // the batch has no report-level fields of its own so push them down into each data value. The complete
+            // date is not carried over since completion of batched reports is registered report by report.
+            for ( Map<String, Object> dataValue : dataValues )
+            {
+                Map<String, Object> batchDataValue = new HashMap<>( dataValue );
+                batchDataValue.putIfAbsent( "orgUnit", dataValueSet.get( "orgUnit" ) );
+                batchDataValue.putIfAbsent( "period", dataValueSet.get( "period" ) );
+                if ( dataValueSet.get( "attributeOptionCombo" ) != null )
+                {
+                    batchDataValue.putIfAbsent( "attributeOptionCombo", dataValueSet.get( "attributeOptionCombo" ) );
+                }
+                batchDataValues.add( batchDataValue );
+            }
+        }
+
+        batchExchange.getMessage().setBody( batchDataValueSet );
+        return batchExchange;
+    }
+}
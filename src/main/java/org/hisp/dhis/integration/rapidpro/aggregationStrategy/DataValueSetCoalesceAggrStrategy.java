@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.aggregationStrategy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.AggregationStrategy;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@Component
+public class DataValueSetCoalesceAggrStrategy implements AggregationStrategy
+{
+    public static final String SUPERSEDED_REPORTS_PROPERTY = "supersededReports";
+
+    public static final String COALESCE_STARTED_AT_PROPERTY = "coalesceStartedAt";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value( "${report.delivery.coalesce.max.age:300000}" )
+    private long maxAge;
+
+    @Override
+    public Exchange aggregate( Exchange oldExchange, Exchange newExchange )
+    {
+        if ( oldExchange == null )
+        {
+            newExchange.setProperty( SUPERSEDED_REPORTS_PROPERTY, new ArrayList<>() );
+            newExchange.setProperty( COALESCE_STARTED_AT_PROPERTY, System.currentTimeMillis() );
+            return newExchange;
+        }
+
+        Message oldMessage = oldExchange.getMessage();
+        Map<String, Object> oldDataValueSet = readDataValueSet( oldMessage );
+        Map<String, Object> newDataValueSet = readDataValueSet( newExchange.getMessage() );
+
+        Map<String, Map<String, Object>> dataValues = new LinkedHashMap<>();
+        putDataValues( dataValues, oldDataValueSet );
+        putDataValues( dataValues, newDataValueSet );
+        newDataValueSet.put( "dataValues", new ArrayList<>( dataValues.values() ) );
+
+        List<Map<String, Object>> supersededReports = oldExchange.getProperty( SUPERSEDED_REPORTS_PROPERTY,
+            List.class );
+        Map<String, Object> supersededReport = new HashMap<>();
+        supersededReport.put( "originalPayload", oldMessage.getHeader( "originalPayload" ) );
+        supersededReport.put( "dataSetCode", oldMessage.getHeader( "dataSetCode" ) );
+        supersededReport.put( "orgUnitId", oldMessage.getHeader( "orgUnitId" ) );
+        supersededReport.put( "reportPeriodOffset", oldMessage.getHeader( "reportPeriodOffset" ) );
+        supersededReport.put( "period", oldMessage.getHeader( "period" ) );
+        supersededReport.put( "dhisRequest", oldMessage.getBody( String.class ) );
+        supersededReport.put( "deadLetterChannelId", oldMessage.getHeader( "deadLetterChannelId" ) );
+        supersededReports.add( supersededReport );
+        newExchange.setProperty( SUPERSEDED_REPORTS_PROPERTY, supersededReports );
+        newExchange.setProperty( COALESCE_STARTED_AT_PROPERTY,
+            oldExchange.getProperty( COALESCE_STARTED_AT_PROPERTY ) );
+
+        try
+        {
+            newExchange.getMessage().setBody( objectMapper.writeValueAsString( newDataValueSet ) );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+
+        return newExchange;
+    }
+
+    /**
+     * Completes a coalesced report once its first report has been held back for longer than the maximum age, no matter
+     * how often it was extended by later reports.
+     */
+    public boolean isMaxAgeReached( Exchange exchange )
+    {
+        Long coalesceStartedAt = exchange.getProperty( COALESCE_STARTED_AT_PROPERTY, Long.class );
+        return coalesceStartedAt != null && System.currentTimeMillis() - coalesceStartedAt >= maxAge;
+    }
+
+    public String writeSupersededReports( Exchange exchange )
+    {
+        List<Map<String, Object>> supersededReports = exchange.getProperty( SUPERSEDED_REPORTS_PROPERTY, List.class );
+        if ( supersededReports == null || supersededReports.isEmpty() )
+        {
+            return null;
+        }
+        try
+        {
+            return objectMapper.writeValueAsString( supersededReports );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    public List<Map<String, Object>> readSupersededReports( String supersededReports )
+    {
+        if ( supersededReports == null || supersededReports.isBlank() )
+        {
+            return null;
+        }
+        try
+        {
+            return objectMapper.readValue( supersededReports, List.class );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    protected Map<String, Object> readDataValueSet( Message message )
+    {
+        try
+        {
+            return objectMapper.readValue( message.getBody( String.class ), Map.class );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    protected void putDataValues( Map<String, Map<String, Object>> dataValues, Map<String, Object> dataValueSet )
+    {
+        List<Map<String, Object>> dataValueSetDataValues = (List<Map<String, Object>>) dataValueSet.get(
+            "dataValues" );
+        if ( dataValueSetDataValues != null )
+        {
+            for ( Map<String, Object> dataValue : dataValueSetDataValues )
+            {
+                String key = dataValue.get( "dataElement" ) + "/" + dataValue.get( "categoryOptionCombo" ) + "/"
+                    + dataValue.get( "attributeOptionCombo" );
+                dataValues.remove( key );
+                dataValues.put( key, dataValue );
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.aggregationStrategy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.RecoverableAggregationRepository;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.camel.support.DefaultExchangeHolder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps the reports held back by an aggregator in the database rather than in memory since the reports are
+ * acknowledged on the queue as soon as they reach the aggregator. A completed aggregate is kept until it has been
+ * processed so that an aggregate interrupted by a crash is recovered and processed again on start-up. Only the
+ * headers and exchange properties with values from the <code>java</code> packages, such as strings, numbers and
+ * collections, are stored.
+ */
+public abstract class ReportAggregationRepository implements RecoverableAggregationRepository
+{
+    private static final ObjectInputFilter EXCHANGE_FILTER = ObjectInputFilter.Config.createFilter(
+        "java.**;" + DefaultExchangeHolder.class.getName() + ";!*" );
+
+    private final String aggregator;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value( "${report.aggregation.upsert.${spring.sql.init.platform}}" )
+    private String upsertSql;
+
+    @Value( "${report.aggregation.select.${spring.sql.init.platform}}" )
+    private String selectSql;
+
+    @Value( "${report.aggregation.keys.${spring.sql.init.platform}}" )
+    private String keysSql;
+
+    @Value( "${report.aggregation.delete.${spring.sql.init.platform}}" )
+    private String deleteSql;
+
+    @Value( "${report.aggregation.completed.insert.${spring.sql.init.platform}}" )
+    private String completedInsertSql;
+
+    @Value( "${report.aggregation.completed.select.${spring.sql.init.platform}}" )
+    private String completedSelectSql;
+
+    @Value( "${report.aggregation.completed.ids.${spring.sql.init.platform}}" )
+    private String completedIdsSql;
+
+    @Value( "${report.aggregation.completed.delete.${spring.sql.init.platform}}" )
+    private String completedDeleteSql;
+
+    private long recoveryInterval = 5000;
+
+    private boolean useRecovery = true;
+
+    private String deadLetterUri;
+
+    private int maximumRedeliveries;
+
+    protected ReportAggregationRepository( String aggregator )
+    {
+        this.aggregator = aggregator;
+    }
+
+    /**
+     * @return <code>null</code> rather than the aggregate being replaced since the aggregator does not use it
+     */
+    @Override
+    public Exchange add( CamelContext camelContext, String key, Exchange exchange )
+    {
+        new NamedParameterJdbcTemplate( jdbcTemplate ).update( upsertSql,
+            Map.of( "aggregator", aggregator, "key", key, "exchange", marshal( exchange ) ) );
+        return null;
+    }
+
+    @Override
+    public Exchange get( CamelContext camelContext, String key )
+    {
+        List<byte[]> exchanges = new NamedParameterJdbcTemplate( jdbcTemplate ).queryForList( selectSql,
+            Map.of( "aggregator", aggregator, "key", key ), byte[].class );
+        return exchanges.isEmpty() ? null : unmarshal( camelContext, exchanges.get( 0 ) );
+    }
+
+    /**
+     * Moves the completed aggregate out of the aggregates in progress and into the completed aggregates in a single
+     * transaction.
+     */
+    @Override
+    public void remove( CamelContext camelContext, String key, Exchange exchange )
+    {
+        NamedParameterJdbcTemplate namedParameterJdbcTemplate = new NamedParameterJdbcTemplate( jdbcTemplate );
+        new TransactionTemplate( transactionManager ).executeWithoutResult( status -> {
+            namedParameterJdbcTemplate.update( deleteSql, Map.of( "aggregator", aggregator, "key", key ) );
+            namedParameterJdbcTemplate.update( completedInsertSql, Map.of( "aggregator", aggregator, "exchangeId",
+                exchange.getExchangeId(), "exchange", marshal( exchange ) ) );
+        } );
+    }
+
+    @Override
+    public void confirm( CamelContext camelContext, String exchangeId )
+    {
+        confirmWithResult( camelContext, exchangeId );
+    }
+
+    @Override
+    public boolean confirmWithResult( CamelContext camelContext, String exchangeId )
+    {
+        return new NamedParameterJdbcTemplate( jdbcTemplate ).update( completedDeleteSql,
+            Map.of( "aggregator", aggregator, "exchangeId", exchangeId ) ) > 0;
+    }
+
+    @Override
+    public Set<String> getKeys()
+    {
+        return new HashSet<>( new NamedParameterJdbcTemplate( jdbcTemplate ).queryForList( keysSql,
+            Map.of( "aggregator", aggregator ), String.class ) );
+    }
+
+    @Override
+    public Set<String> scan( CamelContext camelContext )
+    {
+        return new HashSet<>( new NamedParameterJdbcTemplate( jdbcTemplate ).queryForList( completedIdsSql,
+            Map.of( "aggregator", aggregator ), String.class ) );
+    }
+
+    @Override
+    public Exchange recover( CamelContext camelContext, String exchangeId )
+    {
+        List<byte[]> exchanges = new NamedParameterJdbcTemplate( jdbcTemplate ).queryForList( completedSelectSql,
+            Map.of( "aggregator", aggregator, "exchangeId", exchangeId ), byte[].class );
+        if ( exchanges.isEmpty() )
+        {
+            return null;
+        }
+        Exchange exchange = unmarshal( camelContext, exchanges.get( 0 ) );
+        exchange.setExchangeId( exchangeId );
+        return exchange;
+    }
+
+    protected byte[] marshal( Exchange exchange )
+    {
+        Exchange storedExchange = new DefaultExchange( exchange.getContext() );
+        storedExchange.setExchangeId( exchange.getExchangeId() );
+        storedExchange.getMessage().setBody( exchange.getMessage().getBody() );
+        exchange.getMessage().getHeaders().forEach( ( name, value ) -> {
+            if ( isStorable( value ) )
+            {
+                storedExchange.getMessage().setHeader( name, value );
+            }
+        } );
+        exchange.getAllProperties().forEach( ( name, value ) -> {
+            if ( isStorable( value ) )
+            {
+                storedExchange.setProperty( name, value );
+            }
+        } );
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try ( ObjectOutputStream objectOutputStream = new ObjectOutputStream( byteArrayOutputStream ) )
+        {
+            objectOutputStream.writeObject( DefaultExchangeHolder.marshal( storedExchange, true, true ) );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    protected Exchange unmarshal( CamelContext camelContext, byte[] bytes )
+    {
+        try ( ObjectInputStream objectInputStream = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            objectInputStream.setObjectInputFilter( EXCHANGE_FILTER );
+            Exchange storedExchange = new DefaultExchange( camelContext );
+            DefaultExchangeHolder.unmarshal( storedExchange, (DefaultExchangeHolder) objectInputStream.readObject() );
+
+            // set the properties one by one so that Camel's own properties, like the aggregated size, are restored
+            Exchange exchange = new DefaultExchange( camelContext );
+            exchange.setExchangeId( storedExchange.getExchangeId() );
+            exchange.getMessage().setBody( storedExchange.getMessage().getBody() );
+            exchange.getMessage().setHeaders( storedExchange.getMessage().getHeaders() );
+            storedExchange.getAllProperties().forEach( exchange::setProperty );
+            return exchange;
+        }
+        catch ( IOException | ClassNotFoundException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    protected boolean isStorable( Object value )
+    {
+        return value != null && value.getClass().getName().startsWith( "java." );
+    }
+
+    @Override
+    public void setRecoveryInterval( long interval, TimeUnit timeUnit )
+    {
+        recoveryInterval = timeUnit.toMillis( interval );
+    }
+
+    @Override
+    public void setRecoveryInterval( long interval )
+    {
+        recoveryInterval = interval;
+    }
+
+    @Override
+    public long getRecoveryIntervalInMillis()
+    {
+        return recoveryInterval;
+    }
+
+    @Override
+    public void setUseRecovery( boolean useRecovery )
+    {
+        this.useRecovery = useRecovery;
+    }
+
+    @Override
+    public boolean isUseRecovery()
+    {
+        return useRecovery;
+    }
+
+    @Override
+    public void setDeadLetterUri( String deadLetterUri )
+    {
+        this.deadLetterUri = deadLetterUri;
+    }
+
+    @Override
+    public String getDeadLetterUri()
+    {
+        return deadLetterUri;
+    }
+
+    @Override
+    public void setMaximumRedeliveries( int maximumRedeliveries )
+    {
+        this.maximumRedeliveries = maximumRedeliveries;
+    }
+
+    @Override
+    public int getMaximumRedeliveries()
+    {
+        return maximumRedeliveries;
+    }
+}
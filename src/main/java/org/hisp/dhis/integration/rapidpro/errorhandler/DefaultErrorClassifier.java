@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.errorhandler;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.jayway.jsonpath.PathNotFoundException;
+
+/**
+ * Classifies errors by the HTTP status code of the failed request when there is one. The DHIS2 Java SDK's
+ * {@link RemoteDhis2ClientException} exposes the status code but not the response headers so a throttling response from
+ * DHIS2 is classified without a Retry-After delay, leaving it to the redelivery policy to fall back to its default delay.
+ */
+@Component
+public class DefaultErrorClassifier implements ErrorClassifier
+{
+    @Override
+    public ErrorClassification classify( Exchange exchange, Throwable throwable )
+    {
+        for ( Throwable cause = throwable; cause != null; cause = cause.getCause() )
+        {
+            if ( cause instanceof HttpOperationFailedException )
+            {
+                HttpOperationFailedException httpException = (HttpOperationFailedException) cause;
+                return classifyHttpStatusCode( httpException.getStatusCode(),
+                    readRetryAfter( httpException.getResponseHeaders() ) );
+            }
+            else if ( cause instanceof RemoteDhis2ClientException )
+            {
+                // the SDK exception does not carry the response headers so Retry-After cannot be read
+                return classifyHttpStatusCode( ((RemoteDhis2ClientException) cause).getHttpStatusCode(), null );
+            }
+            else if ( cause instanceof IOException && !(cause instanceof JsonProcessingException) )
+            {
+                return new ErrorClassification( ErrorCategory.TRANSIENT );
+            }
+        }
+
+        for ( Throwable cause = throwable; cause != null; cause = cause.getCause() )
+        {
+            if ( cause instanceof PathNotFoundException || cause instanceof JsonProcessingException
+                || cause instanceof UnsupportedOperationException || cause instanceof Dhis2RapidProException )
+            {
+                return new ErrorClassification( ErrorCategory.PERMANENT );
+            }
+        }
+
+        return new ErrorClassification( ErrorCategory.TRANSIENT );
+    }
+
+    protected ErrorClassification classifyHttpStatusCode( int statusCode, Long retryAfter )
+    {
+        if ( statusCode == 429 || (statusCode == 503 && retryAfter != null) )
+        {
+            return new ErrorClassification( ErrorCategory.THROTTLED, retryAfter );
+        }
+        else if ( statusCode == 401 || statusCode == 403 )
+        {
+            return new ErrorClassification( ErrorCategory.AUTH );
+        }
+        else if ( statusCode == 408 || statusCode >= 500 || statusCode <= 0 )
+        {
+            return new ErrorClassification( ErrorCategory.TRANSIENT );
+        }
+        else
+        {
+            return new ErrorClassification( ErrorCategory.PERMANENT );
+        }
+    }
+
+    protected Long readRetryAfter( Map<String, String> responseHeaders )
+    {
+        if ( responseHeaders == null )
+        {
+            return null;
+        }
+        String retryAfter = null;
+        for ( Map.Entry<String, String> responseHeader : responseHeaders.entrySet() )
+        {
+            if ( responseHeader.getKey().equalsIgnoreCase( "Retry-After" ) )
+            {
+                retryAfter = responseHeader.getValue();
+            }
+        }
+        if ( retryAfter == null || retryAfter.isBlank() )
+        {
+            return null;
+        }
+
+        try
+        {
+            return Math.max( 0, Long.parseLong( retryAfter.trim() ) * 1000 );
+        }
+        catch ( NumberFormatException e )
+        {
+            try
+            {
+                return Math.max( 0, Duration.between( Instant.now(),
+                    ZonedDateTime.parse( retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME ) ).toMillis() );
+            }
+            catch ( DateTimeParseException dateTimeParseException )
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.errorhandler;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Retry-while predicate of the dead letter channel error handlers. Only transient, authentication, and throttled errors
+ * are redelivered while permanent errors go straight to the dead letter channel. The delay before redelivering a throttled exchange is
+ * taken from the upstream server's Retry-After header. Throttled redeliveries do not count towards the maximum number of
+ * redeliveries: an exchange is instead redelivered for as long as the server keeps throttling it within a time limit.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=RedeliveryDecider", description = "Error classification of failed deliveries" )
+public class RedeliveryDecider implements Predicate
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( RedeliveryDecider.class );
+
+    public static final String THROTTLED_SINCE_PROPERTY = "throttledSince";
+
+    public static final String THROTTLED_REDELIVERIES_PROPERTY = "throttledRedeliveries";
+
+    @Autowired
+    private ErrorClassifier errorClassifier;
+
+    @Value( "${error.max.redeliveries:3}" )
+    private int maxRedeliveries;
+
+    @Value( "${error.throttled.default.delay:60000}" )
+    private long throttledDefaultDelay;
+
+    @Value( "${error.throttled.max.delay:300000}" )
+    private long throttledMaxDelay;
+
+    @Value( "${error.throttled.max.duration:3600000}" )
+    private long throttledMaxDuration;
+
+    private final Map<ErrorCategory, AtomicLong> counts = new EnumMap<>( ErrorCategory.class );
+
+    public RedeliveryDecider()
+    {
+        for ( ErrorCategory errorCategory : ErrorCategory.values() )
+        {
+            counts.put( errorCategory, new AtomicLong() );
+        }
+    }
+
+    @Override
+    public boolean matches( Exchange exchange )
+    {
+        Throwable throwable = exchange.getException() != null ? exchange.getException()
+            : exchange.getProperty( Exchange.EXCEPTION_CAUGHT, Throwable.class );
+        ErrorClassification errorClassification = errorClassifier.classify( exchange, throwable );
+        counts.get( errorClassification.getCategory() ).incrementAndGet();
+        exchange.getMessage().removeHeader( Exchange.REDELIVERY_DELAY );
+
+        int redeliveryCounter = exchange.getMessage().getHeader( Exchange.REDELIVERY_COUNTER, 0, Integer.class );
+        int throttledRedeliveries = exchange.getProperty( THROTTLED_REDELIVERIES_PROPERTY, 0, Integer.class );
+        if ( errorClassification.getCategory() == ErrorCategory.PERMANENT )
+        {
+            return false;
+        }
+        else if ( errorClassification.getCategory() == ErrorCategory.THROTTLED )
+        {
+            long now = System.currentTimeMillis();
+            long throttledSince = exchange.getProperty( THROTTLED_SINCE_PROPERTY, now, Long.class );
+            if ( now - throttledSince >= throttledMaxDuration )
+            {
+                LOGGER.warn( String.format( "Throttled by upstream server for longer than %d ms. Giving up",
+                    throttledMaxDuration ) );
+                return false;
+            }
+            long delay = errorClassification.getRetryAfter() == null ? throttledDefaultDelay
+                : Math.min( errorClassification.getRetryAfter(), throttledMaxDelay );
+            LOGGER.warn( String.format( "Throttled by upstream server. Redelivering in %d ms", delay ) );
+            exchange.setProperty( THROTTLED_SINCE_PROPERTY, throttledSince );
+            exchange.setProperty( THROTTLED_REDELIVERIES_PROPERTY, throttledRedeliveries + 1 );
+            exchange.getMessage().setHeader( Exchange.REDELIVERY_DELAY, delay );
+            return true;
+        }
+        else
+        {
+            if ( errorClassification.getCategory() == ErrorCategory.AUTH )
+            {
+                LOGGER.warn( "Upstream server refused the credentials. Check the configured credentials and permissions" );
+            }
+            return redeliveryCounter - throttledRedeliveries <= maxRedeliveries;
+        }
+    }
+
+    public boolean isTransient( Exchange exchange )
+    {
+        Throwable throwable = exchange.getException() != null ? exchange.getException()
+            : exchange.getProperty( Exchange.EXCEPTION_CAUGHT, Throwable.class );
+        // an exchange without an exception was rejected by DHIS2 and would be rejected again
+        return throwable != null
+            && errorClassifier.classify( exchange, throwable ).getCategory() != ErrorCategory.PERMANENT;
+    }
+
+    @ManagedAttribute( description = "Number of failures classified as transient" )
+    public long getTransientCount()
+    {
+        return counts.get( ErrorCategory.TRANSIENT ).get();
+    }
+
+    @ManagedAttribute( description = "Number of failures classified as permanent" )
+    public long getPermanentCount()
+    {
+        return counts.get( ErrorCategory.PERMANENT ).get();
+    }
+
+    @ManagedAttribute( description = "Number of failures classified as throttled" )
+    public long getThrottledCount()
+    {
+        return counts.get( ErrorCategory.THROTTLED ).get();
+    }
+
+    @ManagedAttribute( description = "Number of failures classified as authentication errors" )
+    public long getAuthCount()
+    {
+        return counts.get( ErrorCategory.AUTH ).get();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.expression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Iterates over the runs of a RapidPro <code>runs.json</code> page while the page is being parsed. Only the run
+ * returned by {@link #next()} is held in memory. The URL of the next page, the latest modification time, and the runs
+ * which have not exited yet are collected along the way and are complete once the runs are exhausted.
+ */
+public class RunsPage implements Iterator<Map<String, Object>>, Closeable
+{
+    private final JsonParser jsonParser;
+
+    private final ObjectMapper objectMapper;
+
+    private Map<String, Object> nextRun;
+
+    private boolean inResults;
+
+    private boolean done;
+
+    private String nextPageUrl;
+
+    private final Timestamp lastRunAt;
+
+    private Instant maxModifiedOn;
+
+    private final Map<String, Instant> pendingRuns = new HashMap<>();
+
+    private final List<String> exitedRuns = new ArrayList<>();
+
+    private long runCount;
+
+    public RunsPage( JsonParser jsonParser, ObjectMapper objectMapper, Timestamp lastRunAt )
+        throws IOException
+    {
+        this.jsonParser = jsonParser;
+        this.objectMapper = objectMapper;
+        this.lastRunAt = lastRunAt;
+        if ( jsonParser.nextToken() != JsonToken.START_OBJECT )
+        {
+            throw new IOException( "Expected RapidPro runs page to be a JSON object" );
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if ( nextRun == null && !done )
+        {
+            try
+            {
+                nextRun = readRun();
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+        }
+        return nextRun != null;
+    }
+
+    @Override
+    public Map<String, Object> next()
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        Map<String, Object> run = nextRun;
+        nextRun = null;
+        return run;
+    }
+
+    protected Map<String, Object> readRun()
+        throws IOException
+    {
+        while ( true )
+        {
+            JsonToken token = jsonParser.nextToken();
+            if ( inResults )
+            {
+                if ( token == JsonToken.START_OBJECT )
+                {
+                    Map<String, Object> run = objectMapper.readValue( jsonParser, Map.class );
+                    trackRun( run );
+                    runCount++;
+                    return run;
+                }
+                inResults = false;
+            }
+            else if ( token == JsonToken.FIELD_NAME )
+            {
+                String fieldName = jsonParser.getCurrentName();
+                token = jsonParser.nextToken();
+                if ( fieldName.equals( "next" ) )
+                {
+                    nextPageUrl = token == JsonToken.VALUE_NULL ? null : jsonParser.getText();
+                }
+                else if ( fieldName.equals( "results" ) && token == JsonToken.START_ARRAY )
+                {
+                    inResults = true;
+                }
+                else
+                {
+                    jsonParser.skipChildren();
+                }
+            }
+            else
+            {
+                done = true;
+                close();
+                return null;
+            }
+        }
+    }
+
+    protected void trackRun( Map<String, Object> run )
+    {
+        if ( run.get( "modified_on" ) != null )
+        {
+            Instant modifiedOn = Instant.parse( (String) run.get( "modified_on" ) );
+            if ( maxModifiedOn == null || modifiedOn.isAfter( maxModifiedOn ) )
+            {
+                maxModifiedOn = modifiedOn;
+            }
+            if ( run.get( "uuid" ) != null )
+            {
+                if ( run.get( "exited_on" ) == null )
+                {
+                    pendingRuns.put( (String) run.get( "uuid" ), modifiedOn );
+                }
+                else
+                {
+                    exitedRuns.add( (String) run.get( "uuid" ) );
+                }
+            }
+        }
+    }
+
+    public String getNextPageUrl()
+    {
+        return nextPageUrl;
+    }
+
+    public Timestamp getLastRunAt()
+    {
+        return lastRunAt;
+    }
+
+    /**
+     * @return the latest modification time of the runs read so far, or <code>null</code> if no run had one
+     */
+    public Instant getMaxModifiedOn()
+    {
+        return maxModifiedOn;
+    }
+
+    /**
+     * @return the UUIDs and modification times of the runs read so far which have not exited yet
+     */
+    public Map<String, Instant> getPendingRuns()
+    {
+        return pendingRuns;
+    }
+
+    /**
+     * @return the UUIDs of the runs read so far which have exited
+     */
+    public List<String> getExitedRuns()
+    {
+        return exitedRuns;
+    }
+
+    public long getRunCount()
+    {
+        return runCount;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        jsonParser.close();
+    }
+}
@@ -27,38 +27,36 @@
  */
 package org.hisp.dhis.integration.rapidpro.expression;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+
 import org.apache.camel.Exchange;
 import org.apache.camel.Expression;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.sql.Timestamp;
-import java.time.Instant;
-import java.util.List;
-import java.util.Map;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @Component
-public class LastRunCalculator implements Expression
+public class RunsPageReader implements Expression
 {
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @Override
     public <T> T evaluate( Exchange exchange, Class<T> type )
     {
         Timestamp newLastRunAt = (Timestamp) exchange.getMessage().getHeader( "newLastRunAt" );
-        Map<String, Object> body = exchange.getMessage().getBody( Map.class );
-        List<Map<String, Object>> results = (List<Map<String, Object>>) body.get( "results" );
-        for ( Map<String, Object> result : results )
+        InputStream body = exchange.getMessage().getBody( InputStream.class );
+        try
         {
-            String exitedOn = (String) result.get( "exited_on" );
-            if ( exitedOn == null )
-            {
-                String modifiedOn = (String) result.get( "modified_on" );
-                Instant modifiedOnAsInstant = Instant.parse( modifiedOn );
-                if ( modifiedOnAsInstant.isBefore( newLastRunAt.toInstant() ) )
-                {
-                    newLastRunAt = Timestamp.from( modifiedOnAsInstant );
-                }
-            }
+            return (T) new RunsPage( objectMapper.getFactory().createParser( body ), objectMapper, newLastRunAt );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
         }
-
-        return (T) newLastRunAt;
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.metadata;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.sdk.api.operation.GetOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=CategoryOptionComboIndex", description = "DHIS2 category option combination code index" )
+public class CategoryOptionComboIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( CategoryOptionComboIndex.class );
+
+    @Autowired
+    @Lazy
+    private Dhis2Client dhis2Client;
+
+    @Value( "${cat.opt.combo.index.ttl:86400000}" )
+    private long ttl;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private volatile Map<String, String> codes;
+
+    private volatile String lastUpdatedWatermark;
+
+    private volatile Instant lastFullLoadAt;
+
+    private volatile Instant lastRefreshedAt;
+
+    public String lookup( String catOptComboCode )
+    {
+        if ( codes == null )
+        {
+            refresh();
+        }
+        String dhis2CatOptComboCode = codes.get( catOptComboCode.toLowerCase() );
+        if ( dhis2CatOptComboCode == null )
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            hits.incrementAndGet();
+        }
+        return dhis2CatOptComboCode;
+    }
+
+    @ManagedOperation( description = "Fetches the category option combinations updated since the last refresh" )
+    public synchronized void refresh()
+    {
+        if ( codes == null || lastUpdatedWatermark == null || Duration.between( lastFullLoadAt, Instant.now() )
+            .toMillis() >= ttl )
+        {
+            reload();
+        }
+        else
+        {
+            Map<String, String> updatedCodes = new HashMap<>( codes );
+            LoadResult loadResult = load( updatedCodes, lastUpdatedWatermark );
+            codes = Collections.unmodifiableMap( updatedCodes );
+            lastUpdatedWatermark = loadResult.lastUpdatedWatermark;
+            lastRefreshedAt = Instant.now();
+            refreshes.incrementAndGet();
+            LOGGER.debug( String.format( "Refreshed %s updated category option combination/s", loadResult.count ) );
+        }
+    }
+
+    @ManagedOperation( description = "Discards the index and loads all category option combinations from DHIS2" )
+    public synchronized void reload()
+    {
+        Map<String, String> loadedCodes = new HashMap<>();
+        LoadResult loadResult = load( loadedCodes, null );
+        codes = Collections.unmodifiableMap( loadedCodes );
+        lastUpdatedWatermark = loadResult.lastUpdatedWatermark;
+        lastFullLoadAt = Instant.now();
+        lastRefreshedAt = lastFullLoadAt;
+        refreshes.incrementAndGet();
+        LOGGER.info( String.format( "Loaded %s category option combination/s from DHIS2", loadResult.count ) );
+    }
+
+    /**
+     * Fills <code>target</code> with the fetched codes. The returned watermark is only to be adopted once
+     * <code>target</code> has replaced the index so that a failed load never skips changes on the next refresh.
+     */
+    protected LoadResult load( Map<String, String> target, String updatedSince )
+    {
+        LoadResult loadResult = new LoadResult( updatedSince );
+        for ( CategoryOptionComboCode categoryOptionCombo : fetchCategoryOptionCombos( updatedSince ) )
+        {
+            String code = categoryOptionCombo.code;
+            if ( code != null )
+            {
+                target.put( code.toLowerCase(), code );
+                loadResult.count++;
+            }
+            String lastUpdated = categoryOptionCombo.lastUpdated;
+            if ( lastUpdated != null && (loadResult.lastUpdatedWatermark == null
+                || lastUpdated.compareTo( loadResult.lastUpdatedWatermark ) > 0) )
+            {
+                loadResult.lastUpdatedWatermark = lastUpdated;
+            }
+        }
+        return loadResult;
+    }
+
+    protected Iterable<CategoryOptionComboCode> fetchCategoryOptionCombos( String updatedSince )
+    {
+        GetOperation getOperation = dhis2Client.get( "categoryOptionCombos" ).withFields( "code,lastUpdated" )
+            .withFilter( "code:!null" );
+        if ( updatedSince != null )
+        {
+            getOperation = getOperation.withFilter( "lastUpdated:ge:" + updatedSince );
+        }
+        return getOperation.withoutPaging().transfer()
+            .returnAs( CategoryOptionComboCode.class, "categoryOptionCombos" );
+    }
+
+    @ManagedAttribute( description = "Number of lookups answered from the index" )
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    @ManagedAttribute( description = "Number of lookups for codes absent from the index" )
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @ManagedAttribute( description = "Number of times the index was loaded or refreshed from DHIS2" )
+    public long getRefreshes()
+    {
+        return refreshes.get();
+    }
+
+    @ManagedAttribute( description = "Number of indexed category option combination codes" )
+    public int getSize()
+    {
+        return codes == null ? 0 : codes.size();
+    }
+
+    @ManagedAttribute( description = "Time of the last load or refresh" )
+    public String getLastRefreshedAt()
+    {
+        return lastRefreshedAt == null ? null : lastRefreshedAt.toString();
+    }
+
+    protected static class LoadResult
+    {
+        private int count;
+
+        private String lastUpdatedWatermark;
+
+        LoadResult( String lastUpdatedWatermark )
+        {
+            this.lastUpdatedWatermark = lastUpdatedWatermark;
+        }
+    }
+
+    @JsonIgnoreProperties( ignoreUnknown = true )
+    protected static class CategoryOptionComboCode
+    {
+        private final String code;
+
+        private final String lastUpdated;
+
+        @JsonCreator
+        public CategoryOptionComboCode( @JsonProperty( "code" ) String code,
+            @JsonProperty( "lastUpdated" ) String lastUpdated )
+        {
+            this.code = code;
+            this.lastUpdated = lastUpdated;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.metadata;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.jayway.jsonpath.PathNotFoundException;
+
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=ContactOrgUnitIdCache", description = "RapidPro contact to DHIS2 organisation unit cache" )
+public class ContactOrgUnitIdCache
+{
+    @Value( "${contact.org.unit.cache.max.size:10000}" )
+    private int maxSize;
+
+    @Value( "${contact.org.unit.cache.ttl:3600000}" )
+    private long ttl;
+
+    @Value( "${contact.org.unit.cache.negative.ttl:300000}" )
+    private long negativeTtl;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true )
+    {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest )
+        {
+            if ( size() > maxSize )
+            {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Returns the cached organisation unit ID of the contact or null when the contact is not cached. Throws the error
+     * that was raised when the contact was last fetched should the contact be known to lack an organisation unit ID.
+     */
+    public String get( String contactUuid )
+    {
+        Entry entry;
+        synchronized ( entries )
+        {
+            entry = entries.get( contactUuid );
+            if ( entry != null && isExpired( entry ) )
+            {
+                entries.remove( contactUuid );
+                entry = null;
+            }
+        }
+        if ( entry == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        else if ( entry.orgUnitId == null )
+        {
+            negativeHits.incrementAndGet();
+            throw new PathNotFoundException( entry.missingReason );
+        }
+        else
+        {
+            hits.incrementAndGet();
+            return entry.orgUnitId;
+        }
+    }
+
+    public void put( String contactUuid, String orgUnitId )
+    {
+        synchronized ( entries )
+        {
+            entries.put( contactUuid, new Entry( orgUnitId, null ) );
+        }
+    }
+
+    public void putMissing( String contactUuid, String missingReason )
+    {
+        synchronized ( entries )
+        {
+            entries.put( contactUuid, new Entry( null, missingReason ) );
+        }
+    }
+
+    @ManagedOperation( description = "Evicts the organisation unit ID of the given contact UUID" )
+    public void invalidate( String contactUuid )
+    {
+        synchronized ( entries )
+        {
+            entries.remove( contactUuid );
+        }
+    }
+
+    @ManagedOperation( description = "Evicts the contacts known to lack an organisation unit ID" )
+    public void invalidateMissing()
+    {
+        synchronized ( entries )
+        {
+            entries.values().removeIf( entry -> entry.orgUnitId == null );
+        }
+    }
+
+    @ManagedOperation( description = "Evicts all contacts" )
+    public void invalidateAll()
+    {
+        synchronized ( entries )
+        {
+            entries.clear();
+        }
+    }
+
+    protected boolean isExpired( Entry entry )
+    {
+        return Duration.between( entry.cachedAt, Instant.now() ).toMillis() >= (entry.orgUnitId == null ? negativeTtl
+            : ttl);
+    }
+
+    @ManagedAttribute( description = "Number of lookups answered with a cached organisation unit ID" )
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    @ManagedAttribute( description = "Number of lookups answered with a cached missing organisation unit ID" )
+    public long getNegativeHits()
+    {
+        return negativeHits.get();
+    }
+
+    @ManagedAttribute( description = "Number of lookups that fetched the contact from RapidPro" )
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @ManagedAttribute( description = "Ratio of lookups answered from the cache" )
+    public double getHitRate()
+    {
+        long cached = hits.get() + negativeHits.get();
+        long total = cached + misses.get();
+        return total == 0 ? 0 : (double) cached / total;
+    }
+
+    @ManagedAttribute( description = "Number of entries evicted because the cache was full" )
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    @ManagedAttribute( description = "Number of cached contacts" )
+    public int getSize()
+    {
+        synchronized ( entries )
+        {
+            return entries.size();
+        }
+    }
+
+    protected static final class Entry
+    {
+        private final String orgUnitId;
+
+        private final String missingReason;
+
+        private final Instant cachedAt = Instant.now();
+
+        private Entry( String orgUnitId, String missingReason )
+        {
+            this.orgUnitId = orgUnitId;
+            this.missingReason = missingReason;
+        }
+    }
+}
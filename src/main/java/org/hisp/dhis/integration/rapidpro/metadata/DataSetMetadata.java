@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.metadata;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DataSetMetadata
+{
+    private final String code;
+
+    private final String periodType;
+
+    private final List<String> dataElementCodes;
+
+    private final Map<String, Set<String>> categoryOptionComboCodes;
+
+    private final Map<String, Boolean> orgUnitAssignments = new ConcurrentHashMap<>();
+
+    private final Instant fetchedAt;
+
+    public DataSetMetadata( String code, String periodType, List<String> dataElementCodes )
+    {
+        this( code, periodType, dataElementCodes, null );
+    }
+
+    public DataSetMetadata( String code, String periodType, List<String> dataElementCodes,
+        Map<String, Set<String>> categoryOptionComboCodes )
+    {
+        this.code = code;
+        this.periodType = periodType;
+        this.dataElementCodes = List.copyOf( dataElementCodes );
+        if ( categoryOptionComboCodes == null )
+        {
+            this.categoryOptionComboCodes = null;
+        }
+        else
+        {
+            Map<String, Set<String>> copy = new HashMap<>();
+            categoryOptionComboCodes.forEach( ( k, v ) -> copy.put( k, Set.copyOf( v ) ) );
+            this.categoryOptionComboCodes = Map.copyOf( copy );
+        }
+        this.fetchedAt = Instant.now();
+    }
+
+    public String getCode()
+    {
+        return code;
+    }
+
+    public String getPeriodType()
+    {
+        return periodType;
+    }
+
+    public List<String> getDataElementCodes()
+    {
+        return dataElementCodes;
+    }
+
+    /**
+     * Whether organisation units are assigned to the data set, keyed by ID scheme and organisation unit, as looked up
+     * so far.
+     */
+    public Map<String, Boolean> getOrgUnitAssignments()
+    {
+        return orgUnitAssignments;
+    }
+
+    /**
+     * Lower case codes of the category option combos that the given data element accepts in this data set or null
+     * when unknown.
+     */
+    public Set<String> getCategoryOptionComboCodes( String dataElementCode )
+    {
+        return categoryOptionComboCodes == null ? null : categoryOptionComboCodes.get( dataElementCode );
+    }
+
+    public Instant getFetchedAt()
+    {
+        return fetchedAt;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.metadata;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=DataSetMetadataCache", description = "DHIS2 data set metadata cache" )
+public class DataSetMetadataCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( DataSetMetadataCache.class );
+
+    @Autowired
+    @Lazy
+    private Dhis2Client dhis2Client;
+
+    @Value( "${data.set.metadata.cache.max.size:100}" )
+    private int maxSize;
+
+    @Value( "${data.set.metadata.cache.ttl:3600000}" )
+    private long ttl;
+
+    @Value( "${data.set.metadata.cache.preload:${reminder.data.set.codes:}}" )
+    private String preloadDataSetCodes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final Map<String, DataSetMetadata> entries = new LinkedHashMap<>( 16, 0.75f, true )
+    {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, DataSetMetadata> eldest )
+        {
+            if ( size() > maxSize )
+            {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public DataSetMetadata get( String dataSetCode )
+    {
+        if ( !StringUtils.hasText( dataSetCode ) )
+        {
+            throw new Dhis2RapidProException( "Missing data set code" );
+        }
+        synchronized ( entries )
+        {
+            DataSetMetadata dataSetMetadata = entries.get( dataSetCode );
+            if ( dataSetMetadata != null && !isExpired( dataSetMetadata ) )
+            {
+                hits.incrementAndGet();
+                return dataSetMetadata;
+            }
+        }
+        misses.incrementAndGet();
+        DataSetMetadata dataSetMetadata = fetchDataSetMetadata( dataSetCode );
+        synchronized ( entries )
+        {
+            entries.put( dataSetCode, dataSetMetadata );
+        }
+        return dataSetMetadata;
+    }
+
+    public List<String> getDataElementCodes( String dataSetCode )
+    {
+        return get( dataSetCode ).getDataElementCodes();
+    }
+
+    public String getPeriodType( String dataSetCode )
+    {
+        return get( dataSetCode ).getPeriodType();
+    }
+
+    /**
+     * Looks up whether the organisation unit is assigned to the data set. Data sets can be assigned to thousands of
+     * organisation units so each organisation unit is looked up in DHIS2 the first time it reports and the answer is
+     * kept for as long as the data set's metadata is cached.
+     *
+     * @param orgUnitProperty organisation unit property to match, either <code>id</code> or <code>code</code>
+     */
+    public boolean isOrgUnitAssigned( String dataSetCode, String orgUnitProperty, String orgUnit )
+    {
+        return get( dataSetCode ).getOrgUnitAssignments().computeIfAbsent( orgUnitProperty + ":" + orgUnit,
+            key -> fetchOrgUnitAssignment( dataSetCode, orgUnitProperty, orgUnit ) );
+    }
+
+    @ManagedOperation( description = "Loads the metadata of the data sets listed in data.set.metadata.cache.preload" )
+    public void preload()
+    {
+        for ( String dataSetCode : StringUtils.commaDelimitedListToSet( preloadDataSetCodes ) )
+        {
+            try
+            {
+                get( dataSetCode.trim() );
+            }
+            catch ( Exception e )
+            {
+                LOGGER.warn( String.format( "Cannot preload metadata of data set '%s' => %s", dataSetCode,
+                    e.getMessage() ) );
+            }
+        }
+    }
+
+    @ManagedOperation( description = "Evicts the metadata of the given data set code" )
+    public void invalidate( String dataSetCode )
+    {
+        synchronized ( entries )
+        {
+            entries.remove( dataSetCode );
+        }
+    }
+
+    @ManagedOperation( description = "Evicts the metadata of all data sets" )
+    public void invalidateAll()
+    {
+        synchronized ( entries )
+        {
+            entries.clear();
+        }
+    }
+
+    protected boolean isExpired( DataSetMetadata dataSetMetadata )
+    {
+        return Duration.between( dataSetMetadata.getFetchedAt(), Instant.now() ).toMillis() >= ttl;
+    }
+
+    protected DataSetMetadata fetchDataSetMetadata( String dataSetCode )
+    {
+        Iterator<Map> dataSets = dhis2Client.get( "dataSets" )
+            .withFields( "code,periodType,"
+                + "dataSetElements[dataElement[code,categoryCombo[categoryOptionCombos[code]]],categoryCombo[categoryOptionCombos[code]]]" )
+            .withFilter( "code:eq:" + dataSetCode ).withoutPaging().transfer()
+            .returnAs( Map.class, "dataSets" ).iterator();
+        if ( !dataSets.hasNext() )
+        {
+            throw new Dhis2RapidProException( String.format( "Unknown data set code '%s'", dataSetCode ) );
+        }
+        Map<String, Object> dataSet = dataSets.next();
+        List<String> dataElementCodes = new ArrayList<>();
+        Map<String, Set<String>> categoryOptionComboCodes = new HashMap<>();
+        List<Map<String, Object>> dataSetElements = (List<Map<String, Object>>) dataSet.get( "dataSetElements" );
+        if ( dataSetElements != null )
+        {
+            for ( Map<String, Object> dataSetElement : dataSetElements )
+            {
+                Map<String, Object> dataElement = (Map<String, Object>) dataSetElement.get( "dataElement" );
+                if ( dataElement != null && dataElement.get( "code" ) != null )
+                {
+                    String dataElementCode = (String) dataElement.get( "code" );
+                    dataElementCodes.add( dataElementCode );
+                    Map<String, Object> categoryCombo = (Map<String, Object>) dataSetElement.get( "categoryCombo" );
+                    categoryOptionComboCodes.put( dataElementCode, readCategoryOptionComboCodes(
+                        categoryCombo != null ? categoryCombo : (Map<String, Object>) dataElement.get( "categoryCombo" ) ) );
+                }
+            }
+        }
+
+        return new DataSetMetadata( dataSetCode, (String) dataSet.get( "periodType" ), dataElementCodes,
+            categoryOptionComboCodes );
+    }
+
+    protected boolean fetchOrgUnitAssignment( String dataSetCode, String orgUnitProperty, String orgUnit )
+    {
+        return dhis2Client.get( "dataSets" ).withFields( "code" ).withFilter( "code:eq:" + dataSetCode )
+            .withFilter( "organisationUnits." + orgUnitProperty + ":eq:" + orgUnit ).withoutPaging().transfer()
+            .returnAs( Map.class, "dataSets" ).iterator().hasNext();
+    }
+
+    protected Set<String> readCategoryOptionComboCodes( Map<String, Object> categoryCombo )
+    {
+        Set<String> codes = new HashSet<>();
+        if ( categoryCombo != null && categoryCombo.get( "categoryOptionCombos" ) != null )
+        {
+            for ( Map<String, Object> categoryOptionCombo : (List<Map<String, Object>>) categoryCombo.get(
+                "categoryOptionCombos" ) )
+            {
+                if ( categoryOptionCombo.get( "code" ) != null )
+                {
+                    codes.add( ((String) categoryOptionCombo.get( "code" )).toLowerCase() );
+                }
+            }
+        }
+        return codes;
+    }
+
+    @ManagedAttribute( description = "Number of lookups answered from the cache" )
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    @ManagedAttribute( description = "Number of lookups that fetched the data set metadata from DHIS2" )
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @ManagedAttribute( description = "Number of entries evicted because the cache was full" )
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    @ManagedAttribute( description = "Number of cached data sets" )
+    public int getSize()
+    {
+        synchronized ( entries )
+        {
+            return entries.size();
+        }
+    }
+}
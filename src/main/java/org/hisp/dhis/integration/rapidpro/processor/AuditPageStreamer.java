@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.converter.stream.CachedOutputStream;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes a page of success log or dead letter channel rows as JSON. Pages are selected with a keyset cursor on the
+ * creation time and row ID, which together with the equality filters match the leading columns of the audit indexes,
+ * and each row is written out as soon as it is read from the database.
+ */
+@Component
+public class AuditPageStreamer
+{
+    private static final List<String> SUCCESS_LOG_COLUMNS = List.of( "id", "data_set_code", "report_period_offset",
+        "organisation_unit_id", "status", "payload_format", "created_at" );
+
+    private static final List<String> SUCCESS_LOG_PAYLOAD_COLUMNS = List.of( "dhis_request", "dhis_response",
+        "rapidpro_payload" );
+
+    private static final List<String> DLC_COLUMNS = List.of( "id", "data_set_code", "report_period_offset",
+        "organisation_unit_id", "error_message", "status", "attempt_count", "payload_format", "created_at",
+        "last_processed_at", "next_attempt_at" );
+
+    private static final List<String> DLC_PAYLOAD_COLUMNS = List.of( "payload" );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value( "${audit.success.log.select.${spring.sql.init.platform}}" )
+    private String successLogSelectSql;
+
+    @Value( "${audit.dlc.select.${spring.sql.init.platform}}" )
+    private String dlcSelectSql;
+
+    @Value( "${audit.page.size:100}" )
+    private int defaultPageSize;
+
+    @Value( "${audit.page.max.size:1000}" )
+    private int maxPageSize;
+
+    @Value( "${audit.query.timeout:30}" )
+    private int queryTimeout;
+
+    public void successLog( Exchange exchange )
+        throws IOException
+    {
+        stream( exchange, successLogSelectSql, SUCCESS_LOG_COLUMNS, SUCCESS_LOG_PAYLOAD_COLUMNS );
+    }
+
+    public void deadLetterChannel( Exchange exchange )
+        throws IOException
+    {
+        stream( exchange, dlcSelectSql, DLC_COLUMNS, DLC_PAYLOAD_COLUMNS );
+    }
+
+    protected void stream( Exchange exchange, String selectSql, List<String> columns, List<String> payloadColumns )
+        throws IOException
+    {
+        Map<String, Object> params = new HashMap<>();
+        StringBuilder conditions = new StringBuilder();
+        int limit;
+        try
+        {
+            String after = exchange.getMessage().getHeader( "after", String.class );
+            if ( after != null && !after.isBlank() )
+            {
+                int separatorIndex = after.lastIndexOf( ',' );
+                if ( separatorIndex < 0 )
+                {
+                    throw new IllegalArgumentException( "after must be the nextAfter of the previous page" );
+                }
+                params.put( "afterCreatedAt", Timestamp.from( Instant.parse( after.substring( 0, separatorIndex ) ) ) );
+                params.put( "afterId", Long.parseLong( after.substring( separatorIndex + 1 ) ) );
+                conditions.append( " AND (created_at, id) > (:afterCreatedAt, :afterId)" );
+            }
+            limit = Integer.parseInt(
+                exchange.getMessage().getHeader( "limit", String.valueOf( defaultPageSize ), String.class ) );
+            if ( limit < 1 || limit > maxPageSize )
+            {
+                throw new IllegalArgumentException(
+                    String.format( "limit must be between 1 and %s", maxPageSize ) );
+            }
+            params.put( "limit", limit );
+            addCondition( exchange, "dataSetCode", "data_set_code = :dataSetCode", params, conditions );
+            addCondition( exchange, "orgUnitId", "organisation_unit_id = :orgUnitId", params, conditions );
+            addCondition( exchange, "status", "status = :status", params, conditions );
+            addCondition( exchange, "from", "created_at >= :from", params, conditions );
+            addCondition( exchange, "to", "created_at < :to", params, conditions );
+        }
+        catch ( IllegalArgumentException | DateTimeParseException e )
+        {
+            exchange.getMessage().setHeader( Exchange.HTTP_RESPONSE_CODE, 400 );
+            exchange.getMessage().setBody(
+                objectMapper.writeValueAsString( Map.of( "status", "error", "message", e.getMessage() ) ) );
+            return;
+        }
+
+        boolean includePayloads = exchange.getMessage().getHeader( "includePayloads", false, Boolean.class );
+        StringBuilder selectColumns = new StringBuilder( String.join( ", ", columns ) );
+        if ( includePayloads )
+        {
+            for ( String payloadColumn : payloadColumns )
+            {
+                selectColumns.append( ", " ).append( payloadColumn ).append( ", compressed_" ).append( payloadColumn );
+            }
+        }
+
+        JdbcTemplate streamingJdbcTemplate = new JdbcTemplate( jdbcTemplate.getDataSource() );
+        streamingJdbcTemplate.setFetchSize( limit );
+        streamingJdbcTemplate.setQueryTimeout( queryTimeout );
+        TransactionTemplate transactionTemplate = new TransactionTemplate( transactionManager );
+        transactionTemplate.setReadOnly( true );
+
+        CachedOutputStream cachedOutputStream = new CachedOutputStream( exchange );
+        AtomicReference<String> lastCursor = new AtomicReference<>();
+        AtomicLong count = new AtomicLong();
+        try ( JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator( cachedOutputStream ) )
+        {
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeArrayFieldStart( "data" );
+            transactionTemplate.executeWithoutResult( status -> new NamedParameterJdbcTemplate(
+                streamingJdbcTemplate ).query( String.format( selectSql, selectColumns,
+                    conditions.length() == 0 ? "" : " WHERE" + conditions.substring( " AND".length() ) ), params,
+                rs -> {
+                    try
+                    {
+                        ResultSetMetaData metaData = rs.getMetaData();
+                        jsonGenerator.writeStartObject();
+                        for ( int i = 1; i <= metaData.getColumnCount(); i++ )
+                        {
+                            String column = metaData.getColumnLabel( i ).toLowerCase();
+                            if ( column.startsWith( "compressed_" ) )
+                            {
+                                continue;
+                            }
+                            jsonGenerator.writeFieldName( toFieldName( column ) );
+                            if ( payloadColumns.contains( column ) )
+                            {
+                                jsonGenerator.writeString(
+                                    PayloadCompressor.decode( rs.getString( "payload_format" ), rs.getString( i ),
+                                        rs.getBytes( "compressed_" + column ) ) );
+                            }
+                            else if ( rs.getObject( i ) == null )
+                            {
+                                jsonGenerator.writeNull();
+                            }
+                            else if ( metaData.getColumnType( i ) == Types.TIMESTAMP_WITH_TIMEZONE
+                                || metaData.getColumnType( i ) == Types.TIMESTAMP )
+                            {
+                                jsonGenerator.writeString( rs.getObject( i, OffsetDateTime.class ).toString() );
+                            }
+                            else if ( metaData.getColumnType( i ) == Types.INTEGER
+                                || metaData.getColumnType( i ) == Types.BIGINT )
+                            {
+                                jsonGenerator.writeNumber( rs.getLong( i ) );
+                            }
+                            else
+                            {
+                                jsonGenerator.writeString( rs.getString( i ) );
+                            }
+                        }
+                        jsonGenerator.writeEndObject();
+                        lastCursor.set( rs.getObject( "created_at", OffsetDateTime.class ).toInstant() + ","
+                            + rs.getLong( "id" ) );
+                        count.incrementAndGet();
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new UncheckedIOException( e );
+                    }
+                } ) );
+            jsonGenerator.writeEndArray();
+            if ( count.get() == limit )
+            {
+                jsonGenerator.writeStringField( "nextAfter", lastCursor.get() );
+            }
+            else
+            {
+                jsonGenerator.writeNullField( "nextAfter" );
+            }
+            jsonGenerator.writeEndObject();
+        }
+
+        exchange.getMessage().setBody( cachedOutputStream.newStreamCache() );
+    }
+
+    protected void addCondition( Exchange exchange, String headerName, String condition, Map<String, Object> params,
+        StringBuilder conditions )
+    {
+        String value = exchange.getMessage().getHeader( headerName, String.class );
+        if ( value != null && !value.isBlank() )
+        {
+            if ( headerName.equals( "from" ) || headerName.equals( "to" ) )
+            {
+                params.put( headerName, Timestamp.from( OffsetDateTime.parse( value ).toInstant() ) );
+            }
+            else
+            {
+                params.put( headerName, value );
+            }
+            conditions.append( " AND " ).append( condition );
+        }
+    }
+
+    protected static String toFieldName( String column )
+    {
+        StringBuilder fieldName = new StringBuilder();
+        boolean upperCase = false;
+        for ( char c : column.toCharArray() )
+        {
+            if ( c == '_' )
+            {
+                upperCase = true;
+            }
+            else
+            {
+                fieldName.append( upperCase ? Character.toUpperCase( c ) : c );
+                upperCase = false;
+            }
+        }
+        return fieldName.toString();
+    }
+}
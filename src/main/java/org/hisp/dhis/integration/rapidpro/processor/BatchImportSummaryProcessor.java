@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetBatchAggrStrategy;
+import org.springframework.stereotype.Component;
+
+@Component
+public class BatchImportSummaryProcessor implements Processor
+{
+    @Override
+    public void process( Exchange exchange )
+    {
+        Map<String, Object> body = exchange.getMessage().getBody( Map.class );
+        Map<String, Object> importSummary = body.get( "response" ) instanceof Map ? (Map<String, Object>) body.get(
+            "response" ) : body;
+
+        List<Map<String, Object>> conflicts = importSummary.get( "conflicts" ) == null ? List.of()
+            : (List<Map<String, Object>>) importSummary.get( "conflicts" );
+        boolean indexed = importSummary.containsKey( "rejectedIndexes" );
+        Set<Integer> rejectedIndexes = new HashSet<>( toIndexes( importSummary.get( "rejectedIndexes" ) ) );
+        for ( Map<String, Object> conflict : conflicts )
+        {
+            if ( conflict.containsKey( "indexes" ) )
+            {
+                indexed = true;
+                rejectedIndexes.addAll( toIndexes( conflict.get( "indexes" ) ) );
+            }
+        }
+        boolean failed = "ERROR".equals( body.get( "status" ) ) || "ERROR".equals( importSummary.get( "status" ) );
+
+        List<Map<String, Object>> batchedReports = exchange.getProperty(
+            DataValueSetBatchAggrStrategy.BATCHED_REPORTS_PROPERTY, List.class );
+        for ( Map<String, Object> batchedReport : batchedReports )
+        {
+            int dataValueOffset = (int) batchedReport.get( "dataValueOffset" );
+            int dataValueCount = (int) batchedReport.get( "dataValueCount" );
+            List<Map<String, Object>> reportConflicts = new ArrayList<>();
+            for ( Map<String, Object> conflict : conflicts )
+            {
+                List<Integer> conflictIndexes = toIndexes( conflict.get( "indexes" ) );
+                if ( conflictIndexes.isEmpty() || conflictIndexes.stream()
+                    .anyMatch( i -> i >= dataValueOffset && i < dataValueOffset + dataValueCount ) )
+                {
+                    reportConflicts.add( conflict );
+                }
+            }
+
+            boolean rejected;
+            if ( indexed && !rejectedIndexes.isEmpty() )
+            {
+                rejected = rejectedIndexes.stream()
+                    .anyMatch( i -> i >= dataValueOffset && i < dataValueOffset + dataValueCount );
+            }
+            else
+            {
+                // without indexes, conflicts cannot be traced back to the report they originate from
+                rejected = failed || !conflicts.isEmpty();
+            }
+
+            batchedReport.put( "rejected", rejected );
+            if ( rejected )
+            {
+                Object reportImportSummary;
+                if ( indexed && !rejectedIndexes.isEmpty() )
+                {
+                    // re-base the indexes so that they point to the data values of the batched report
+                    reportImportSummary = Map.of( "status", "ERROR", "conflicts", reportConflicts, "rejectedIndexes",
+                        rejectedIndexes.stream().filter( i -> i >= dataValueOffset && i < dataValueOffset + dataValueCount )
+                            .map( i -> i - dataValueOffset ).sorted().collect( Collectors.toList() ) );
+                }
+                else
+                {
+                    reportImportSummary = reportConflicts.isEmpty() ? body
+                        : Map.of( "status", "ERROR", "conflicts", reportConflicts );
+                }
+                batchedReport.put( "importSummary", reportImportSummary );
+            }
+        }
+    }
+
+    protected List<Integer> toIndexes( Object indexes )
+    {
+        List<Integer> indexesAsIntegers = new ArrayList<>();
+        if ( indexes instanceof Collection )
+        {
+            for ( Object index : (Collection<?>) indexes )
+            {
+                indexesAsIntegers.add( ((Number) index).intValue() );
+            }
+        }
+        return indexesAsIntegers;
+    }
+}
@@ -28,11 +28,9 @@
 package org.hisp.dhis.integration.rapidpro.processor;
 
 import java.util.Date;
-import java.util.List;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
-import org.hisp.dhis.api.model.v40_0.DataSet;
 import org.hisp.dhis.integration.sdk.support.period.PeriodBuilder;
 import org.springframework.stereotype.Component;
 
@@ -43,8 +41,7 @@ public class CurrentPeriodCalculator implements Processor
     public void process( Exchange exchange )
         throws Exception
     {
-        List<DataSet> dataSets = exchange.getMessage().getBody( List.class );
-        String periodType = dataSets.get( 0 ).getPeriodType().get().value();
+        String periodType = exchange.getMessage().getBody( String.class );
         int reportPeriodOffset = exchange.getMessage().getHeader( "reportPeriodOffset", Integer.class );
         String period;
         if ( periodType.equalsIgnoreCase( "Daily" ) )
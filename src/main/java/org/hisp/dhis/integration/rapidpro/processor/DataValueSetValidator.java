@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.rapidpro.metadata.DataSetMetadata;
+import org.hisp.dhis.integration.rapidpro.metadata.DataSetMetadataCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@Component
+public class DataValueSetValidator implements Processor
+{
+    public static final String VALIDATION_ERRORS_PROPERTY = "validationErrors";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private DataSetMetadataCache dataSetMetadataCache;
+
+    @Override
+    public void process( Exchange exchange )
+        throws Exception
+    {
+        Map<String, Object> dataValueSet = objectMapper.readValue( exchange.getMessage().getBody( String.class ),
+            Map.class );
+        String dataSetCode = exchange.getMessage().getHeader( "dataSetCode", String.class );
+        String orgUnitId = exchange.getMessage().getHeader( "orgUnitId", String.class );
+        String orgUnitIdScheme = exchange.getContext().resolvePropertyPlaceholders( "{{org.unit.id.scheme}}" );
+        DataSetMetadata dataSetMetadata = dataSetMetadataCache.get( dataSetCode );
+
+        List<String> errors = new ArrayList<>();
+        String orgUnitProperty = null;
+        if ( orgUnitIdScheme.equalsIgnoreCase( "ID" ) )
+        {
+            orgUnitProperty = "id";
+        }
+        else if ( orgUnitIdScheme.equalsIgnoreCase( "CODE" ) )
+        {
+            orgUnitProperty = "code";
+        }
+        if ( orgUnitProperty != null && (orgUnitId == null
+            || !dataSetMetadataCache.isOrgUnitAssigned( dataSetCode, orgUnitProperty, orgUnitId )) )
+        {
+            errors.add(
+                String.format( "Organisation unit '%s' is not assigned to data set '%s'", orgUnitId, dataSetCode ) );
+        }
+
+        List<Map<String, Object>> dataValues = (List<Map<String, Object>>) dataValueSet.get( "dataValues" );
+        if ( dataValues != null )
+        {
+            for ( Map<String, Object> dataValue : dataValues )
+            {
+                validateDataValue( dataValue, dataSetMetadata, errors );
+            }
+        }
+
+        if ( !errors.isEmpty() )
+        {
+            exchange.setProperty( VALIDATION_ERRORS_PROPERTY, String.join( ". ", errors ) );
+        }
+    }
+
+    protected void validateDataValue( Map<String, Object> dataValue, DataSetMetadata dataSetMetadata,
+        List<String> errors )
+    {
+        String dataElementCode = (String) dataValue.get( "dataElement" );
+        if ( !dataSetMetadata.getDataElementCodes().contains( dataElementCode ) )
+        {
+            errors.add( String.format( "Data element '%s' does not belong to data set '%s'", dataElementCode,
+                dataSetMetadata.getCode() ) );
+        }
+        else if ( dataValue.containsKey( "categoryOptionCombo" ) )
+        {
+            String categoryOptionComboCode = (String) dataValue.get( "categoryOptionCombo" );
+            Set<String> categoryOptionComboCodes = dataSetMetadata.getCategoryOptionComboCodes( dataElementCode );
+            if ( categoryOptionComboCode == null )
+            {
+                errors.add( String.format( "Unknown category option combo for data element '%s'", dataElementCode ) );
+            }
+            else if ( categoryOptionComboCodes != null && !categoryOptionComboCodes.contains(
+                categoryOptionComboCode.toLowerCase() ) )
+            {
+                errors.add( String.format( "Category option combo '%s' is invalid for data element '%s' in data set '%s'",
+                    categoryOptionComboCode, dataElementCode, dataSetMetadata.getCode() ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.component.jms.JmsConstants;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Re-enqueues the dead letter channel rows marked for retry. Rows are claimed in batches with a locking read that
+ * skips the rows claimed by other application instances so that no row is re-enqueued twice. Each batch is sent to
+ * the report queue in a single JMS transaction by the {@link ReportEnqueuer} and marked as processed with a single update before the claim is
+ * released.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=DeadLetterChannelRetrier", description = "Dead letter channel retry" )
+public class DeadLetterChannelRetrier implements Processor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( DeadLetterChannelRetrier.class );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ReportEnqueuer reportEnqueuer;
+
+    @Autowired
+    private ReportMessageGroupIdSetter reportMessageGroupIdSetter;
+
+    @Value( "${retry.dlc.claim.${spring.sql.init.platform}}" )
+    private String claimSql;
+
+    @Value( "${retried.dlc.update.${spring.sql.init.platform}}" )
+    private String retriedSql;
+
+    @Value( "${dlc.retry.batch.size:100}" )
+    private int batchSize;
+
+    @Value( "${dlc.retry.max.rate:20}" )
+    private double maxRate;
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong claims = new AtomicLong();
+
+    private volatile long lastRetried;
+
+    @Override
+    public void process( Exchange exchange )
+        throws Exception
+    {
+        long retriedInPoll = 0;
+        int claimed;
+        do
+        {
+            long claimStartedAt = System.currentTimeMillis();
+            claimed = retryBatch();
+            retriedInPoll += claimed;
+            if ( claimed > 0 && maxRate > 0 )
+            {
+                // pace the claims so that re-enqueued reports do not exceed the throughput ceiling
+                long pause = (long) (claimed * 1000 / maxRate) - (System.currentTimeMillis() - claimStartedAt);
+                if ( pause > 0 )
+                {
+                    Thread.sleep( pause );
+                }
+            }
+        }
+        while ( claimed == batchSize && exchange.getContext().isStarted() );
+
+        lastRetried = retriedInPoll;
+        exchange.getMessage().setBody( retriedInPoll );
+    }
+
+    protected int retryBatch()
+    {
+        Integer claimed = new TransactionTemplate( transactionManager ).execute( status -> {
+            List<Map<String, Object>> rows = new NamedParameterJdbcTemplate( jdbcTemplate ).queryForList( claimSql,
+                Map.of( "limit", batchSize ) );
+            if ( rows.isEmpty() )
+            {
+                return 0;
+            }
+            claims.incrementAndGet();
+            LOGGER.info( String.format( "Retrying %s row/s from dead letter channel => %s", rows.size(),
+                rows.stream().map( row -> String.valueOf( row.get( "id" ) ) ).collect( Collectors.joining( ", " ) ) ) );
+
+            reportEnqueuer.enqueue( rows.stream().map( this::toReport ).collect( Collectors.toList() ) );
+            new NamedParameterJdbcTemplate( jdbcTemplate ).update( retriedSql,
+                Map.of( "ids", rows.stream().map( row -> row.get( "id" ) ).collect( Collectors.toList() ) ) );
+            return rows.size();
+        } );
+        retried.addAndGet( claimed );
+        return claimed;
+    }
+
+    protected Map<String, Object> toReport( Map<String, Object> row )
+    {
+        String payload = PayloadCompressor.decode( row.get( "payload_format" ), row.get( "payload" ),
+            row.get( "compressed_payload" ) );
+        String dataSetCode = (String) row.get( "data_set_code" );
+        String orgUnitId = (String) row.get( "organisation_unit_id" );
+
+        Map<String, Object> report = new HashMap<>();
+        report.put( "body", payload );
+        report.put( "dataSetCode", dataSetCode );
+        report.put( "orgUnitId", orgUnitId );
+        report.put( "reportPeriodOffset", ((Number) row.get( "report_period_offset" )).intValue() );
+        report.put( "deadLetterChannelId", ((Number) row.get( "id" )).longValue() );
+        report.put( JmsConstants.JMS_X_GROUP_ID, reportMessageGroupIdSetter.groupId( orgUnitId, dataSetCode, payload ) );
+        return report;
+    }
+
+    @ManagedAttribute( description = "Number of dead letter channel rows re-enqueued since start-up" )
+    public long getRetried()
+    {
+        return retried.get();
+    }
+
+    @ManagedAttribute( description = "Number of batches claimed from the dead letter channel since start-up" )
+    public long getClaims()
+    {
+        return claims.get();
+    }
+
+    @ManagedAttribute( description = "Number of dead letter channel rows re-enqueued in the last poll" )
+    public long getLastRetried()
+    {
+        return lastRetried;
+    }
+
+    @ManagedAttribute( description = "Maximum number of dead letter channel rows re-enqueued per second" )
+    public double getMaxRate()
+    {
+        return maxRate;
+    }
+}
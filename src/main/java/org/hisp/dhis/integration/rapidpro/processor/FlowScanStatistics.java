@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.hisp.dhis.integration.rapidpro.expression.RunsPage;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the scan duration, run count and outcome of each RapidPro flow so that the flows which dominate the scan
+ * window can be identified.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=FlowScanStatistics", description = "RapidPro flow scan statistics" )
+public class FlowScanStatistics
+{
+    private static final String FLOW_SCAN_PROPERTY = "flowScan";
+
+    private final Map<String, FlowStatistics> flowStatistics = new ConcurrentHashMap<>();
+
+    public void start( Exchange exchange )
+    {
+        exchange.setProperty( FLOW_SCAN_PROPERTY, new FlowScan() );
+    }
+
+    public void countRuns( Exchange exchange )
+    {
+        RunsPage runsPage = exchange.getProperty( "runsPage", RunsPage.class );
+        if ( runsPage != null )
+        {
+            exchange.getProperty( FLOW_SCAN_PROPERTY, FlowScan.class ).runs.addAndGet( runsPage.getRunCount() );
+        }
+    }
+
+    public void countEnqueued( Exchange exchange )
+    {
+        exchange.getProperty( FLOW_SCAN_PROPERTY, FlowScan.class ).enqueued.addAndGet(
+            exchange.getMessage().getBody( Long.class ) );
+    }
+
+    public long finish( Exchange exchange )
+    {
+        return record( exchange, false );
+    }
+
+    public long fail( Exchange exchange )
+    {
+        return record( exchange, true );
+    }
+
+    protected long record( Exchange exchange, boolean failed )
+    {
+        FlowScan flowScan = exchange.getProperty( FLOW_SCAN_PROPERTY, FlowScan.class );
+        long duration = System.currentTimeMillis() - flowScan.startTime;
+        FlowStatistics statistics = flowStatistics.computeIfAbsent(
+            exchange.getMessage().getHeader( "flowUuid", String.class ), k -> new FlowStatistics() );
+        synchronized ( statistics )
+        {
+            statistics.scans++;
+            statistics.failures += failed ? 1 : 0;
+            statistics.runs += flowScan.runs.get();
+            statistics.enqueued += flowScan.enqueued.get();
+            statistics.totalDuration += duration;
+            statistics.maxDuration = Math.max( statistics.maxDuration, duration );
+            statistics.lastDuration = duration;
+            statistics.lastRuns = flowScan.runs.get();
+            statistics.lastEnqueued = flowScan.enqueued.get();
+            statistics.lastFailed = failed;
+            statistics.lastScanAt = Instant.now();
+        }
+        exchange.removeProperty( FLOW_SCAN_PROPERTY );
+        return duration;
+    }
+
+    @ManagedAttribute( description = "Scan statistics of each RapidPro flow keyed by flow UUID" )
+    public Map<String, Map<String, Object>> getFlows()
+    {
+        Map<String, Map<String, Object>> flows = new TreeMap<>();
+        flowStatistics.forEach( ( flowUuid, statistics ) -> {
+            synchronized ( statistics )
+            {
+                Map<String, Object> flow = new LinkedHashMap<>();
+                flow.put( "scans", statistics.scans );
+                flow.put( "failures", statistics.failures );
+                flow.put( "runs", statistics.runs );
+                flow.put( "enqueued", statistics.enqueued );
+                flow.put( "totalDuration", statistics.totalDuration );
+                flow.put( "maxDuration", statistics.maxDuration );
+                flow.put( "lastDuration", statistics.lastDuration );
+                flow.put( "lastRuns", statistics.lastRuns );
+                flow.put( "lastEnqueued", statistics.lastEnqueued );
+                flow.put( "lastFailed", statistics.lastFailed );
+                flow.put( "lastScanAt", String.valueOf( statistics.lastScanAt ) );
+                flows.put( flowUuid, flow );
+            }
+        } );
+        return flows;
+    }
+
+    @ManagedOperation( description = "Clear the scan statistics of all flows" )
+    public void reset()
+    {
+        flowStatistics.clear();
+    }
+
+    private static class FlowScan
+    {
+        private final long startTime = System.currentTimeMillis();
+
+        private final AtomicLong runs = new AtomicLong();
+
+        private final AtomicLong enqueued = new AtomicLong();
+    }
+
+    private static class FlowStatistics
+    {
+        private long scans;
+
+        private long failures;
+
+        private long runs;
+
+        private long enqueued;
+
+        private long totalDuration;
+
+        private long maxDuration;
+
+        private long lastDuration;
+
+        private long lastRuns;
+
+        private long lastEnqueued;
+
+        private boolean lastFailed;
+
+        private Instant lastScanAt;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deletes the success log rows and the processed dead letter channel rows which are older than their retention period.
+ * Expired success log partitions are dropped whole. Other rows are deleted in small chunks, walking the table in primary key order, so that each delete is a short
+ * transaction which does not hold up the application's other writes.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=RecordPruner", description = "Success log and dead letter channel retention" )
+public class RecordPruner implements Processor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( RecordPruner.class );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private SuccessLogPartitioner successLogPartitioner;
+
+    @Value( "${retention.success.log.select.${spring.sql.init.platform}}" )
+    private String successLogSelectSql;
+
+    @Value( "${retention.success.log.delete.${spring.sql.init.platform}}" )
+    private String successLogDeleteSql;
+
+    @Value( "${retention.success.log.vacuum.${spring.sql.init.platform}:}" )
+    private String successLogVacuumSql;
+
+    @Value( "${retention.dlc.select.${spring.sql.init.platform}}" )
+    private String dlcSelectSql;
+
+    @Value( "${retention.dlc.delete.${spring.sql.init.platform}}" )
+    private String dlcDeleteSql;
+
+    @Value( "${retention.dlc.vacuum.${spring.sql.init.platform}:}" )
+    private String dlcVacuumSql;
+
+    @Value( "${retention.success.log.max.age:0}" )
+    private long successLogMaxAge;
+
+    @Value( "${retention.dlc.max.age:0}" )
+    private long dlcMaxAge;
+
+    @Value( "${retention.chunk.size:500}" )
+    private int chunkSize;
+
+    @Value( "${retention.chunk.pause:100}" )
+    private long chunkPause;
+
+    private final AtomicLong prunedSuccessLogRows = new AtomicLong();
+
+    private final AtomicLong prunedDeadLetterChannelRows = new AtomicLong();
+
+    private volatile long lastPruned;
+
+    private volatile long lastDuration;
+
+    private volatile Instant lastPrunedAt;
+
+    @Override
+    public void process( Exchange exchange )
+        throws Exception
+    {
+        long startTime = System.currentTimeMillis();
+        long successLogCount = 0;
+        long dlcCount = 0;
+        if ( successLogMaxAge > 0 )
+        {
+            successLogCount = successLogPartitioner.dropPartitionsBefore(
+                Instant.ofEpochMilli( startTime - successLogMaxAge ) );
+            successLogCount += prune( successLogSelectSql, successLogDeleteSql, successLogVacuumSql,
+                successLogMaxAge );
+            prunedSuccessLogRows.addAndGet( successLogCount );
+        }
+        if ( dlcMaxAge > 0 )
+        {
+            dlcCount = prune( dlcSelectSql, dlcDeleteSql, dlcVacuumSql, dlcMaxAge );
+            prunedDeadLetterChannelRows.addAndGet( dlcCount );
+        }
+
+        lastPruned = successLogCount + dlcCount;
+        lastDuration = System.currentTimeMillis() - startTime;
+        lastPrunedAt = Instant.now();
+        exchange.getMessage().setBody(
+            Map.of( "successLog", successLogCount, "deadLetterChannel", dlcCount, "duration", lastDuration ) );
+    }
+
+    protected long prune( String selectSql, String deleteSql, String vacuumSql, long maxAge )
+        throws InterruptedException
+    {
+        NamedParameterJdbcTemplate namedParameterJdbcTemplate = new NamedParameterJdbcTemplate( jdbcTemplate );
+        Timestamp cutoff = new Timestamp( System.currentTimeMillis() - maxAge );
+        long count = 0;
+        long afterId = 0;
+        List<Long> ids;
+        do
+        {
+            ids = namedParameterJdbcTemplate.queryForList( selectSql,
+                Map.of( "afterId", afterId, "cutoff", cutoff, "limit", chunkSize ), Long.class );
+            if ( !ids.isEmpty() )
+            {
+                count += namedParameterJdbcTemplate.update( deleteSql, Map.of( "ids", ids ) );
+                afterId = ids.get( ids.size() - 1 );
+                if ( ids.size() == chunkSize && chunkPause > 0 )
+                {
+                    Thread.sleep( chunkPause );
+                }
+            }
+        }
+        while ( ids.size() == chunkSize );
+
+        if ( count > 0 && !vacuumSql.isBlank() )
+        {
+            try
+            {
+                jdbcTemplate.execute( vacuumSql );
+            }
+            catch ( Exception e )
+            {
+                LOGGER.warn( String.format( "Error while reclaiming space freed by pruning: %s", e.getMessage() ) );
+            }
+        }
+        return count;
+    }
+
+    @ManagedAttribute( description = "Number of success log rows deleted since start-up" )
+    public long getPrunedSuccessLogRows()
+    {
+        return prunedSuccessLogRows.get();
+    }
+
+    @ManagedAttribute( description = "Number of processed dead letter channel rows deleted since start-up" )
+    public long getPrunedDeadLetterChannelRows()
+    {
+        return prunedDeadLetterChannelRows.get();
+    }
+
+    @ManagedAttribute( description = "Number of rows deleted in the last run" )
+    public long getLastPruned()
+    {
+        return lastPruned;
+    }
+
+    @ManagedAttribute( description = "Time in milliseconds taken by the last run" )
+    public long getLastDuration()
+    {
+        return lastDuration;
+    }
+
+    @ManagedAttribute( description = "Time of the last run" )
+    public String getLastPrunedAt()
+    {
+        return lastPrunedAt == null ? null : lastPrunedAt.toString();
+    }
+}
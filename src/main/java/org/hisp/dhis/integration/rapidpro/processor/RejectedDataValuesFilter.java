@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetCoalesceAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.metadata.CategoryOptionComboIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Narrows down the RapidPro payload of a partially imported report to the results which DHIS2 rejected so that
+ * retrying the report does not re-import the data values DHIS2 already accepted. The payload is left untouched when
+ * the import summary does not identify the rejected data values by index. The rejected indexes point into the imported
+ * data value set which, for a coalesced report, merges the data values of the reports it superseded. These reports are
+ * narrowed down in the same way, and dropped when none of their results were rejected.
+ */
+@Component
+public class RejectedDataValuesFilter implements Processor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( RejectedDataValuesFilter.class );
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private CategoryOptionComboIndex categoryOptionComboIndex;
+
+    @Override
+    public void process( Exchange exchange )
+        throws Exception
+    {
+        Map<String, Object> body = exchange.getMessage().getBody( Map.class );
+        if ( body == null )
+        {
+            return;
+        }
+        Map<String, Object> importSummary = body.get( "response" ) instanceof Map ? (Map<String, Object>) body.get(
+            "response" ) : body;
+        Set<Integer> rejectedIndexes = readRejectedIndexes( importSummary );
+        String dhisRequest = exchange.getMessage().getHeader( "dhisRequest", String.class );
+        String originalPayload = exchange.getMessage().getHeader( "originalPayload", String.class );
+        if ( rejectedIndexes.isEmpty() || dhisRequest == null || originalPayload == null )
+        {
+            return;
+        }
+
+        List<Map<String, Object>> dataValues = (List<Map<String, Object>>) objectMapper.readValue( dhisRequest,
+            Map.class ).get( "dataValues" );
+        if ( dataValues == null || rejectedIndexes.size() >= dataValues.size() )
+        {
+            return;
+        }
+
+        Set<String> rejectedKeys = new HashSet<>();
+        Set<String> acceptedKeys = new HashSet<>();
+        for ( int i = 0; i < dataValues.size(); i++ )
+        {
+            Map<String, Object> dataValue = dataValues.get( i );
+            String key = toKey( (String) dataValue.get( "dataElement" ),
+                (String) dataValue.get( "categoryOptionCombo" ) );
+            if ( rejectedIndexes.contains( i ) )
+            {
+                rejectedKeys.add( key );
+            }
+            else
+            {
+                acceptedKeys.add( key );
+            }
+        }
+        acceptedKeys.removeAll( rejectedKeys );
+
+        Map<String, Object> payload = filterPayload( originalPayload, acceptedKeys );
+        if ( payload == null )
+        {
+            return;
+        }
+        exchange.getMessage().setHeader( "originalPayload", objectMapper.writeValueAsString( payload ) );
+
+        List<Map<String, Object>> supersededReports = exchange.getProperty(
+            DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY, List.class );
+        if ( supersededReports != null )
+        {
+            List<Map<String, Object>> rejectedSupersededReports = new ArrayList<>();
+            for ( Map<String, Object> supersededReport : supersededReports )
+            {
+                Map<String, Object> supersededPayload = filterPayload(
+                    (String) supersededReport.get( "originalPayload" ), acceptedKeys );
+                if ( supersededPayload == null || hasResult( supersededPayload, rejectedKeys ) )
+                {
+                    Map<String, Object> rejectedSupersededReport = new HashMap<>( supersededReport );
+                    if ( supersededPayload != null )
+                    {
+                        rejectedSupersededReport.put( "originalPayload",
+                            objectMapper.writeValueAsString( supersededPayload ) );
+                    }
+                    rejectedSupersededReports.add( rejectedSupersededReport );
+                }
+            }
+            exchange.setProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY,
+                rejectedSupersededReports );
+        }
+    }
+
+    /**
+     * Removes the accepted results from the payload.
+     *
+     * @return the narrowed down payload or null when the payload has no results
+     */
+    protected Map<String, Object> filterPayload( String originalPayload, Set<String> acceptedKeys )
+        throws JsonProcessingException
+    {
+        if ( originalPayload == null )
+        {
+            return null;
+        }
+        Map<String, Object> payload = objectMapper.readValue( originalPayload, Map.class );
+        Map<String, Object> results = (Map<String, Object>) payload.get( "results" );
+        if ( results == null )
+        {
+            return null;
+        }
+        int acceptedCount = 0;
+        Iterator<Map.Entry<String, Object>> resultsIterator = results.entrySet().iterator();
+        while ( resultsIterator.hasNext() )
+        {
+            if ( acceptedKeys.contains( toKey( resultsIterator.next() ) ) )
+            {
+                resultsIterator.remove();
+                acceptedCount++;
+            }
+        }
+
+        LOGGER.debug( String.format( "Removed %s accepted result/s from report", acceptedCount ) );
+        return payload;
+    }
+
+    protected boolean hasResult( Map<String, Object> payload, Set<String> keys )
+    {
+        return ((Map<String, Object>) payload.get( "results" )).entrySet().stream()
+            .anyMatch( result -> keys.contains( toKey( result ) ) );
+    }
+
+    protected Set<Integer> readRejectedIndexes( Map<String, Object> importSummary )
+    {
+        Set<Integer> rejectedIndexes = new LinkedHashSet<>();
+        if ( importSummary.containsKey( "rejectedIndexes" ) )
+        {
+            rejectedIndexes.addAll( toIndexes( importSummary.get( "rejectedIndexes" ) ) );
+        }
+        else if ( importSummary.get( "conflicts" ) instanceof Collection )
+        {
+            for ( Map<String, Object> conflict : (Collection<Map<String, Object>>) importSummary.get( "conflicts" ) )
+            {
+                List<Integer> conflictIndexes = toIndexes( conflict.get( "indexes" ) );
+                if ( conflictIndexes.isEmpty() )
+                {
+                    // a conflict without indexes cannot be traced back to the data values it originates from
+                    return Set.of();
+                }
+                rejectedIndexes.addAll( conflictIndexes );
+            }
+        }
+        return rejectedIndexes;
+    }
+
+    protected String toKey( Map.Entry<String, Object> result )
+    {
+        String resultName = result.getKey();
+        if ( result.getValue() instanceof Map && ((Map<String, Object>) result.getValue()).get( "name" ) != null )
+        {
+            resultName = (String) ((Map<String, Object>) result.getValue()).get( "name" );
+        }
+
+        if ( resultName.contains( "__" ) )
+        {
+            return toKey( resultName.substring( 0, resultName.indexOf( "__" ) ),
+                categoryOptionComboIndex.lookup( resultName.substring( resultName.indexOf( "__" ) + 2 ) ) );
+        }
+        else
+        {
+            return toKey( resultName, null );
+        }
+    }
+
+    protected String toKey( String dataElementCode, String categoryOptionComboCode )
+    {
+        String key = dataElementCode == null ? "" : dataElementCode.toLowerCase().replace( ' ', '_' );
+        return categoryOptionComboCode == null ? key : key + "/" + categoryOptionComboCode.toLowerCase();
+    }
+
+    protected List<Integer> toIndexes( Object indexes )
+    {
+        List<Integer> indexesAsIntegers = new ArrayList<>();
+        if ( indexes instanceof Collection )
+        {
+            for ( Object index : (Collection<?>) indexes )
+            {
+                indexesAsIntegers.add( ((Number) index).intValue() );
+            }
+        }
+        return indexesAsIntegers;
+    }
+}
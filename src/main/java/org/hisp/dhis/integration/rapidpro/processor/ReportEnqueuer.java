@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.jms.ConnectionFactory;
+import javax.jms.MessageProducer;
+import javax.jms.TextMessage;
+
+import org.apache.camel.component.jms.JmsConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Sends reports to the report queue in a single JMS transaction: either all the reports are enqueued or none of them
+ * is. A report is a map holding the message body under <code>body</code> together with any of the
+ * {@link #REPORT_HEADERS}. Sessions are borrowed from the application's connection factory, which caches them, rather
+ * than opened per batch.
+ */
+@Component
+public class ReportEnqueuer
+{
+    public static final String REPORT_QUEUE_NAME = "dhis2";
+
+    public static final List<String> REPORT_HEADERS = List.of( "dataSetCode", "orgUnitId", "reportPeriodOffset",
+        "deadLetterChannelId", JmsConstants.JMS_X_GROUP_ID );
+
+    @Autowired
+    private ConnectionFactory connectionFactory;
+
+    private JmsTemplate jmsTemplate;
+
+    @PostConstruct
+    public void postConstruct()
+    {
+        jmsTemplate = new JmsTemplate( connectionFactory );
+        jmsTemplate.setSessionTransacted( true );
+    }
+
+    public void enqueue( List<Map<String, Object>> reports )
+    {
+        jmsTemplate.execute( session -> {
+            MessageProducer producer = session.createProducer( session.createQueue( REPORT_QUEUE_NAME ) );
+            try
+            {
+                for ( Map<String, Object> report : reports )
+                {
+                    TextMessage message = session.createTextMessage( (String) report.get( "body" ) );
+                    for ( String header : REPORT_HEADERS )
+                    {
+                        Object value = report.get( header );
+                        if ( value instanceof Integer || value instanceof Long || value instanceof Boolean )
+                        {
+                            message.setObjectProperty( header, value );
+                        }
+                        else if ( value != null )
+                        {
+                            message.setStringProperty( header, value.toString() );
+                        }
+                    }
+                    producer.send( message );
+                }
+                session.commit();
+            }
+            finally
+            {
+                producer.close();
+            }
+            return null;
+        } );
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.component.jms.JmsConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Groups enqueued reports by RapidPro contact and data set so that concurrent consumers never deliver two
+ * submissions of the same report out of order. The contact is read from the report itself rather than resolved to an
+ * organisation unit so that the report lands in the same group whether or not its <code>orgUnitId</code> header is
+ * given, and without calling RapidPro while the report is enqueued. Only a report without a contact is grouped by its
+ * organisation unit, or by a default group if it has neither.
+ */
+@Component
+public class ReportMessageGroupIdSetter implements Processor
+{
+    public static final String DEFAULT_GROUP_OWNER = "unresolved";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( ReportMessageGroupIdSetter.class );
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Override
+    public void process( Exchange exchange )
+    {
+        String orgUnitId = exchange.getMessage().getHeader( "orgUnitId", String.class );
+        String dataSetCode = exchange.getMessage().getHeader( "dataSetCode", String.class );
+
+        exchange.getMessage().setHeader( JmsConstants.JMS_X_GROUP_ID,
+            groupId( orgUnitId, dataSetCode, exchange.getMessage().getBody( String.class ) ) );
+    }
+
+    public String groupId( String orgUnitId, String dataSetCode, String payload )
+    {
+        String groupOwner;
+        String contactUuid = readContactUuid( payload );
+        if ( contactUuid != null )
+        {
+            groupOwner = "contact:" + contactUuid;
+        }
+        else if ( orgUnitId != null && !orgUnitId.isBlank() )
+        {
+            groupOwner = orgUnitId;
+        }
+        else
+        {
+            groupOwner = DEFAULT_GROUP_OWNER;
+        }
+
+        return groupOwner + "/" + dataSetCode;
+    }
+
+    protected String readContactUuid( String payload )
+    {
+        if ( payload == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            Object contact = objectMapper.readValue( payload, Map.class ).get( "contact" );
+            return contact instanceof Map ? (String) ((Map<String, Object>) contact).get( "uuid" ) : null;
+        }
+        catch ( IOException | ClassCastException e )
+        {
+            LOGGER.warn( String.format( "Grouping report without its contact because its payload could not be parsed => %s",
+                e.getMessage() ) );
+            return null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.jms.JmsEndpoint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drains the report queue on a delivery schedule. Each consumer claims a slot in the drain before it receives a report
+ * so that no report is taken off the queue once <code>report.delivery.schedule.max.messages</code> reports are
+ * claimed. A received report is delivered in the consumer's JMS transaction, which is committed once the report is
+ * delivered and rolled back should delivery fail.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=ReportQueueDrainer", description = "Scheduled report delivery" )
+public class ReportQueueDrainer implements Processor
+{
+    private static final String REPORT_QUEUE_NAME = "dhis2";
+
+    @Autowired
+    private JmsTemplate jmsTemplate;
+
+    @Autowired
+    private ConnectionFactory connectionFactory;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    @Value( "${report.delivery.schedule.window:3600000}" )
+    private long window;
+
+    @Value( "${report.delivery.schedule.max.messages:0}" )
+    private long maxMessages;
+
+    @Value( "${report.delivery.schedule.poll.interval:1000}" )
+    private long pollInterval;
+
+    @Value( "${report.delivery.concurrent.consumers:1}" )
+    private int concurrentConsumers;
+
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final AtomicInteger claimed = new AtomicInteger();
+
+    private volatile long lastDrained;
+
+    private volatile long lastRemaining;
+
+    @Override
+    public void process( Exchange exchange )
+        throws Exception
+    {
+        CamelContext camelContext = exchange.getContext();
+        long consumedAtStart = consumed.get();
+        long deadline = System.currentTimeMillis() + window;
+
+        claimed.set( 0 );
+        ExecutorService executorService = camelContext.getExecutorServiceManager()
+            .newFixedThreadPool( this, "ReportQueueDrainer", concurrentConsumers );
+        try
+        {
+            List<Future<?>> consumers = new ArrayList<>();
+            for ( int i = 0; i < concurrentConsumers; i++ )
+            {
+                consumers.add( executorService.submit( () -> drain( camelContext, deadline ) ) );
+            }
+            for ( Future<?> consumer : consumers )
+            {
+                try
+                {
+                    consumer.get();
+                }
+                catch ( ExecutionException e )
+                {
+                    throw new IllegalStateException( e.getCause() );
+                }
+            }
+        }
+        finally
+        {
+            camelContext.getExecutorServiceManager().shutdownNow( executorService );
+        }
+
+        lastDrained = consumed.get() - consumedAtStart;
+        lastRemaining = countQueuedReports();
+        exchange.getMessage().setBody( Map.of( "drained", lastDrained, "remaining", lastRemaining ) );
+    }
+
+    /**
+     * Receives and delivers reports until the drain's slots are claimed, the window closes, or no report arrives
+     * within the poll interval.
+     */
+    protected void drain( CamelContext camelContext, long deadline )
+    {
+        JmsTemplate transactedJmsTemplate = new JmsTemplate( connectionFactory );
+        transactedJmsTemplate.setSessionTransacted( true );
+        transactedJmsTemplate.execute( session -> {
+            MessageConsumer consumer = session.createConsumer( session.createQueue( REPORT_QUEUE_NAME ) );
+            try
+            {
+                while ( System.currentTimeMillis() < deadline && claim() )
+                {
+                    Message message = consumer.receive( pollInterval );
+                    if ( message == null )
+                    {
+                        claimed.decrementAndGet();
+                        break;
+                    }
+                    if ( deliver( camelContext, message, session ) )
+                    {
+                        session.commit();
+                        consumed.incrementAndGet();
+                    }
+                    else
+                    {
+                        session.rollback();
+                    }
+                }
+            }
+            finally
+            {
+                consumer.close();
+            }
+            return null;
+        }, true );
+    }
+
+    /**
+     * Claims a slot in the current drain before a report is received. Concurrent consumers race for the slots so the
+     * claim is atomic.
+     *
+     * @return whether the consumer may receive a report
+     */
+    protected boolean claim()
+    {
+        if ( maxMessages > 0 && claimed.getAndIncrement() >= maxMessages )
+        {
+            claimed.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the report was delivered, as opposed to failing and having to be rolled back onto the queue
+     */
+    protected boolean deliver( CamelContext camelContext, Message message, Session session )
+        throws JMSException
+    {
+        Exchange exchange = camelContext.getEndpoint( "jms:queue:" + REPORT_QUEUE_NAME, JmsEndpoint.class )
+            .createExchange( message, session );
+        producerTemplate.send( "direct:deliverReport", exchange );
+        return !exchange.isFailed() && !exchange.isRollbackOnly();
+    }
+
+    protected long countQueuedReports()
+    {
+        Long count = jmsTemplate.browse( REPORT_QUEUE_NAME, ( session, browser ) -> {
+            long answer = 0;
+            Enumeration<?> enumeration = browser.getEnumeration();
+            while ( enumeration.hasMoreElements() )
+            {
+                enumeration.nextElement();
+                answer++;
+            }
+            return answer;
+        } );
+        return count == null ? 0 : count;
+    }
+
+    @ManagedAttribute( description = "Number of reports drained from the queue in the last scheduled delivery" )
+    public long getLastDrained()
+    {
+        return lastDrained;
+    }
+
+    @ManagedAttribute( description = "Number of reports left in the queue after the last scheduled delivery" )
+    public long getLastRemaining()
+    {
+        return lastRemaining;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.hisp.dhis.integration.rapidpro.expression.RunsPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Enqueues the reports of a RapidPro runs page in a single JMS transaction through the {@link ReportEnqueuer} and then moves the flow's
+ * <code>POLLER</code> watermark past the page. The watermark is only written after the JMS transaction commits so
+ * that a crash in between re-enqueues at most one page on the next scan instead of losing it. Runs on the page which
+ * have not exited yet are recorded in <code>PENDING_RUN</code> so that they can be rechecked one by one on later
+ * scans rather than holding the watermark back. A rechecked run modified since the scan started is left to the next
+ * scan, which fetches it again since it is past the watermark, so that its report is not enqueued twice.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=RunsPageCheckpointer", description = "RapidPro runs page checkpoints" )
+public class RunsPageCheckpointer
+{
+    public static final String PENDING_REPORTS_PROPERTY = "pendingReports";
+
+    public static final String RECHECKED_RUN_PROPERTY = "recheckedRunUuid";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ReportEnqueuer reportEnqueuer;
+
+    @Value( "${last.run.checkpoint.${spring.sql.init.platform}}" )
+    private String checkpointSql;
+
+    @Value( "${pending.run.select.${spring.sql.init.platform}}" )
+    private String pendingRunSelectSql;
+
+    @Value( "${pending.run.upsert.${spring.sql.init.platform}}" )
+    private String pendingRunUpsertSql;
+
+    @Value( "${pending.run.delete.${spring.sql.init.platform}}" )
+    private String pendingRunDeleteSql;
+
+    @Value( "${scan.reports.pending.runs.recheck.max:100}" )
+    private int maxRechecks;
+
+    private final AtomicLong checkpoints = new AtomicLong();
+
+    private final AtomicLong enqueued = new AtomicLong();
+
+    private final AtomicLong rechecks = new AtomicLong();
+
+    public void begin( Exchange exchange )
+    {
+        exchange.setProperty( PENDING_REPORTS_PROPERTY, Collections.synchronizedList( new ArrayList<>() ) );
+    }
+
+    public void collect( Exchange exchange )
+    {
+        Message message = exchange.getMessage();
+        Map<String, Object> report = new HashMap<>();
+        for ( String header : ReportEnqueuer.REPORT_HEADERS )
+        {
+            report.put( header, message.getHeader( header ) );
+        }
+        report.put( "body", message.getBody( String.class ) );
+        exchange.getProperty( PENDING_REPORTS_PROPERTY, List.class ).add( report );
+    }
+
+    /**
+     * @return the number of reports enqueued
+     */
+    public int commit( Exchange exchange )
+    {
+        List<Map<String, Object>> pendingReports = exchange.getProperty( PENDING_REPORTS_PROPERTY, List.class );
+        if ( !pendingReports.isEmpty() )
+        {
+            reportEnqueuer.enqueue( pendingReports );
+            enqueued.addAndGet( pendingReports.size() );
+        }
+
+        RunsPage runsPage = exchange.getProperty( "runsPage", RunsPage.class );
+        String flowUuid = exchange.getMessage().getHeader( "flowUuid", String.class );
+        Timestamp checkedAt = exchange.getMessage().getHeader( "newLastRunAt", Timestamp.class );
+        String recheckedRunUuid = exchange.getProperty( RECHECKED_RUN_PROPERTY, String.class );
+        NamedParameterJdbcTemplate namedParameterJdbcTemplate = new NamedParameterJdbcTemplate( jdbcTemplate );
+        new TransactionTemplate( transactionManager ).executeWithoutResult( status -> {
+            List<String> settledRunUuids = new ArrayList<>( runsPage.getExitedRuns() );
+            if ( recheckedRunUuid != null )
+            {
+                // also covers a rechecked run which RapidPro no longer returns
+                settledRunUuids.add( recheckedRunUuid );
+            }
+            namedParameterJdbcTemplate.batchUpdate( pendingRunDeleteSql, settledRunUuids.stream()
+                .map( runUuid -> new MapSqlParameterSource( "flowUuid", flowUuid ).addValue( "runUuid", runUuid ) )
+                .toArray( SqlParameterSource[]::new ) );
+            namedParameterJdbcTemplate.batchUpdate( pendingRunUpsertSql, runsPage.getPendingRuns().entrySet().stream()
+                .map( pendingRun -> new MapSqlParameterSource( "flowUuid", flowUuid ).addValue( "runUuid",
+                        pendingRun.getKey() ).addValue( "modifiedOn", Timestamp.from( pendingRun.getValue() ) )
+                    .addValue( "checkedAt", checkedAt ) ).toArray( SqlParameterSource[]::new ) );
+
+            if ( recheckedRunUuid == null && runsPage.getMaxModifiedOn() != null )
+            {
+                // back off by a millisecond so that runs sharing the page's latest modification time are fetched again
+                Instant checkpoint = runsPage.getMaxModifiedOn().minusMillis( 1 );
+                if ( runsPage.getLastRunAt().toInstant().isBefore( checkpoint ) )
+                {
+                    checkpoint = runsPage.getLastRunAt().toInstant();
+                }
+                namedParameterJdbcTemplate.update( checkpointSql,
+                    Map.of( "flowUuid", flowUuid, "lastRunAt", Timestamp.from( checkpoint ) ) );
+                checkpoints.incrementAndGet();
+            }
+        } );
+        if ( recheckedRunUuid != null )
+        {
+            rechecks.incrementAndGet();
+        }
+        exchange.removeProperty( PENDING_REPORTS_PROPERTY );
+        return pendingReports.size();
+    }
+
+    /**
+     * @return whether the exchange is rechecking a run which was modified at or after the watermark written by the
+     * current scan, meaning that the next scan returns the run among the flow's runs anyway
+     */
+    public boolean isLeftToNextScan( Exchange exchange )
+    {
+        if ( exchange.getProperty( RECHECKED_RUN_PROPERTY ) == null )
+        {
+            return false;
+        }
+        Object modifiedOn = exchange.getMessage().getBody( Map.class ).get( "modified_on" );
+        Timestamp newLastRunAt = exchange.getMessage().getHeader( "newLastRunAt", Timestamp.class );
+        return modifiedOn != null && !Instant.parse( (String) modifiedOn ).isBefore( newLastRunAt.toInstant() );
+    }
+
+    /**
+     * @return the UUIDs of the flow's pending runs which have not been checked since the current scan started, least
+     * recently checked first
+     */
+    public List<String> selectPendingRuns( Exchange exchange )
+    {
+        return new NamedParameterJdbcTemplate( jdbcTemplate ).queryForList( pendingRunSelectSql,
+            Map.of( "flowUuid", exchange.getMessage().getHeader( "flowUuid", String.class ), "checkedAt",
+                exchange.getMessage().getHeader( "newLastRunAt", Timestamp.class ), "limit", maxRechecks ),
+            String.class );
+    }
+
+    @ManagedAttribute( description = "Number of flow watermarks written after a runs page was enqueued" )
+    public long getCheckpoints()
+    {
+        return checkpoints.get();
+    }
+
+    @ManagedAttribute( description = "Number of pending flow runs rechecked since start-up" )
+    public long getRechecks()
+    {
+        return rechecks.get();
+    }
+
+    @ManagedAttribute( description = "Number of flow run reports enqueued since start-up" )
+    public long getEnqueued()
+    {
+        return enqueued.get();
+    }
+}
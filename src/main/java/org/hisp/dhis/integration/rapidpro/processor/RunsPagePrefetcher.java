@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.RuntimeCamelException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sets the body to the RapidPro runs page referenced by the <code>nextRunsPageUrl</code> exchange property and starts
+ * fetching the pages that follow it in the background, up to <code>scan.reports.prefetch.depth</code> pages ahead. A
+ * prefetched page is only handed out when its URL matches the requested URL, so pages are always processed in order.
+ * Pages are prefetched on a Camel-managed thread pool of <code>scan.reports.pool.size</code> threads, one for each
+ * flow scanned at the same time, which is shut down together with the Camel context.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=RunsPagePrefetcher", description = "RapidPro runs page prefetching" )
+public class RunsPagePrefetcher implements Processor
+{
+    public static final String PREFETCHED_PAGES_PROPERTY = "prefetchedRunsPages";
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value( "${scan.reports.prefetch.depth:1}" )
+    private int prefetchDepth;
+
+    @Value( "${scan.reports.pool.size:4}" )
+    private int poolSize;
+
+    private final AtomicLong prefetchHits = new AtomicLong();
+
+    private final AtomicLong prefetchMisses = new AtomicLong();
+
+    private ExecutorService executorService;
+
+    @PostConstruct
+    public void start()
+    {
+        executorService = camelContext.getExecutorServiceManager()
+            .newFixedThreadPool( this, "RunsPagePrefetcher", poolSize );
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        camelContext.getExecutorServiceManager().shutdownNow( executorService );
+    }
+
+    @Override
+    public void process( Exchange exchange )
+    {
+        String url = exchange.getProperty( "nextRunsPageUrl", String.class );
+        String authorization = exchange.getMessage().getHeader( "Authorization", String.class );
+        Deque<CompletableFuture<Page>> prefetchedPages = exchange.getProperty( PREFETCHED_PAGES_PROPERTY,
+            Deque.class );
+        if ( prefetchedPages == null )
+        {
+            prefetchedPages = new ArrayDeque<>();
+            exchange.setProperty( PREFETCHED_PAGES_PROPERTY, prefetchedPages );
+        }
+
+        Page page = null;
+        CompletableFuture<Page> prefetchedPage = prefetchedPages.pollFirst();
+        if ( prefetchedPage != null )
+        {
+            try
+            {
+                page = prefetchedPage.join();
+            }
+            catch ( CompletionException | CancellationException e )
+            {
+                // fall back to fetching the page in the foreground so that the error surfaces in the route
+                page = null;
+            }
+        }
+        if ( page != null && page.url.equals( url ) )
+        {
+            prefetchHits.incrementAndGet();
+        }
+        else
+        {
+            if ( page != null )
+            {
+                prefetchMisses.incrementAndGet();
+            }
+            cancel( prefetchedPages );
+            page = new Page( url, fetch( url, authorization ) );
+        }
+
+        CompletableFuture<Page> lastPage = prefetchedPages.isEmpty() ? CompletableFuture.completedFuture( page )
+            : prefetchedPages.peekLast();
+        while ( prefetchedPages.size() < prefetchDepth )
+        {
+            lastPage = lastPage.thenApplyAsync( p -> {
+                String nextPageUrl = p == null ? null : readNextPageUrl( p.body );
+                return nextPageUrl == null ? null : new Page( nextPageUrl, fetch( nextPageUrl, authorization ) );
+            }, executorService );
+            prefetchedPages.addLast( lastPage );
+        }
+
+        exchange.getMessage().setBody( page.body );
+    }
+
+    /**
+     * Cancels the pages still being prefetched for the exchange and drops the prefetched pages which were not handed
+     * out, so that neither outlives the scan they were fetched for.
+     */
+    public void discard( Exchange exchange )
+    {
+        Deque<CompletableFuture<Page>> prefetchedPages = exchange.getProperty( PREFETCHED_PAGES_PROPERTY,
+            Deque.class );
+        if ( prefetchedPages != null )
+        {
+            cancel( prefetchedPages );
+            exchange.removeProperty( PREFETCHED_PAGES_PROPERTY );
+        }
+    }
+
+    private void cancel( Deque<CompletableFuture<Page>> prefetchedPages )
+    {
+        // a page request already in flight runs to completion but its result is no longer referenced
+        prefetchedPages.forEach( f -> f.cancel( true ) );
+        prefetchedPages.clear();
+    }
+
+    protected byte[] fetch( String url, String authorization )
+    {
+        int queryIndex = url.indexOf( '?' );
+        Exchange response = producerTemplate.send( queryIndex < 0 ? url : url.substring( 0, queryIndex ), e -> {
+            e.getMessage().setHeader( "Authorization", authorization );
+            e.getMessage().setHeader( Exchange.HTTP_URI, url );
+            e.getMessage().setHeader( Exchange.HTTP_METHOD, "GET" );
+        } );
+        if ( response.getException() != null )
+        {
+            throw RuntimeCamelException.wrapRuntimeCamelException( response.getException() );
+        }
+        return response.getMessage().getBody( byte[].class );
+    }
+
+    protected String readNextPageUrl( byte[] body )
+    {
+        try ( JsonParser jsonParser = objectMapper.getFactory().createParser( body ) )
+        {
+            if ( jsonParser.nextToken() != JsonToken.START_OBJECT )
+            {
+                return null;
+            }
+            while ( jsonParser.nextToken() == JsonToken.FIELD_NAME )
+            {
+                String fieldName = jsonParser.getCurrentName();
+                JsonToken token = jsonParser.nextToken();
+                if ( fieldName.equals( "next" ) )
+                {
+                    return token == JsonToken.VALUE_NULL ? null : jsonParser.getText();
+                }
+                jsonParser.skipChildren();
+            }
+            return null;
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    @ManagedAttribute( description = "Number of runs pages which were fetched ahead of time" )
+    public long getPrefetchHits()
+    {
+        return prefetchHits.get();
+    }
+
+    @ManagedAttribute( description = "Number of prefetched runs pages which had to be fetched again" )
+    public long getPrefetchMisses()
+    {
+        return prefetchMisses.get();
+    }
+
+    protected static class Page
+    {
+        private final String url;
+
+        private final byte[] body;
+
+        Page( String url, byte[] body )
+        {
+            this.url = url;
+            this.body = body;
+        }
+    }
+}
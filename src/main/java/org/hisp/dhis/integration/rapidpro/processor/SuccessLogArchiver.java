@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Moves aged success log rows out of the database and into gzip-compressed NDJSON files partitioned by month and data
+ * set. Rows are counted and then streamed from a server-side cursor within the same repeatable-read transaction, so
+ * both see the same snapshot of the rows up to the same maximum ID. The new files are read back and their record IDs
+ * and SHA-256 checksums compared against what was written before they are moved into place, and only the IDs so
+ * verified are deleted from the database once every file has been moved.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=SuccessLogArchiver", description = "Success log archival" )
+public class SuccessLogArchiver implements Processor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( SuccessLogArchiver.class );
+
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern( "yyyy-MM" );
+
+    private static final DateTimeFormatter RUN_FORMATTER = DateTimeFormatter.ofPattern( "yyyyMMddHHmmss" )
+        .withZone( ZoneOffset.UTC );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value( "${archive.success.log.max.id.${spring.sql.init.platform}}" )
+    private String maxIdSql;
+
+    @Value( "${archive.success.log.select.${spring.sql.init.platform}}" )
+    private String selectSql;
+
+    @Value( "${archive.success.log.count.${spring.sql.init.platform}}" )
+    private String countSql;
+
+    @Value( "${archive.success.log.delete.${spring.sql.init.platform}}" )
+    private String deleteSql;
+
+    @Value( "${archive.success.log.max.age:0}" )
+    private long maxAge;
+
+    @Value( "${archive.directory:archive}" )
+    private String directory;
+
+    @Value( "${archive.fetch.size:500}" )
+    private int fetchSize;
+
+    @Value( "${archive.file.max.records:100000}" )
+    private long fileMaxRecords;
+
+    @Value( "${retention.chunk.size:500}" )
+    private int chunkSize;
+
+    private final AtomicLong archivedRows = new AtomicLong();
+
+    private final AtomicLong failedRuns = new AtomicLong();
+
+    private volatile long lastArchived;
+
+    private volatile long lastDuration;
+
+    private volatile Instant lastArchivedAt;
+
+    @Override
+    public void process( Exchange exchange )
+        throws Exception
+    {
+        long startTime = System.currentTimeMillis();
+        long archived = 0;
+        int fileCount = 0;
+        if ( maxAge > 0 )
+        {
+            NamedParameterJdbcTemplate namedParameterJdbcTemplate = new NamedParameterJdbcTemplate( jdbcTemplate );
+            Timestamp cutoff = new Timestamp( startTime - maxAge );
+            Long maxId = namedParameterJdbcTemplate.queryForObject( maxIdSql, Map.of( "cutoff", cutoff ),
+                Long.class );
+            if ( maxId != null )
+            {
+                Map<String, Object> params = Map.of( "maxId", maxId, "cutoff", cutoff );
+                List<ArchiveFile> archiveFiles = new ArrayList<>();
+                List<Path> movedPaths = new ArrayList<>();
+                try
+                {
+                    long expectedCount = export( params, Instant.ofEpochMilli( startTime ), archiveFiles );
+                    archived = verify( archiveFiles, expectedCount );
+                    for ( ArchiveFile archiveFile : archiveFiles )
+                    {
+                        Files.move( archiveFile.tempPath, archiveFile.path, StandardCopyOption.ATOMIC_MOVE );
+                        movedPaths.add( archiveFile.path );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    failedRuns.incrementAndGet();
+                    // the rows stay in the database so any file already moved into place would archive them twice
+                    for ( Path movedPath : movedPaths )
+                    {
+                        Files.deleteIfExists( movedPath );
+                    }
+                    for ( ArchiveFile archiveFile : archiveFiles )
+                    {
+                        Files.deleteIfExists( archiveFile.tempPath );
+                    }
+                    throw e;
+                }
+                fileCount = archiveFiles.size();
+                delete( namedParameterJdbcTemplate, archiveFiles );
+                archivedRows.addAndGet( archived );
+            }
+        }
+
+        lastArchived = archived;
+        lastDuration = System.currentTimeMillis() - startTime;
+        lastArchivedAt = Instant.now();
+        exchange.getMessage().setBody( Map.of( "archived", archived, "files", fileCount, "duration", lastDuration ) );
+    }
+
+    /**
+     * Writes the selected rows to new archive files and returns the number of rows counted in the same snapshot.
+     */
+    protected long export( Map<String, Object> params, Instant runAt, List<ArchiveFile> archiveFiles )
+        throws IOException
+    {
+        JdbcTemplate streamingJdbcTemplate = new JdbcTemplate( jdbcTemplate.getDataSource() );
+        streamingJdbcTemplate.setFetchSize( fetchSize );
+        Map<String, ArchiveFile> openArchiveFiles = new HashMap<>();
+        // PostgreSQL only streams the result set through a cursor when auto-commit is off
+        TransactionTemplate transactionTemplate = new TransactionTemplate( transactionManager );
+        transactionTemplate.setIsolationLevel( TransactionDefinition.ISOLATION_REPEATABLE_READ );
+        try
+        {
+            return transactionTemplate.execute( status -> {
+                NamedParameterJdbcTemplate namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(
+                    streamingJdbcTemplate );
+                Long count = namedParameterJdbcTemplate.queryForObject( countSql, params, Long.class );
+                namedParameterJdbcTemplate.query( selectSql, params, rs -> {
+                    String month = MONTH_FORMATTER.format(
+                        rs.getObject( "created_at", OffsetDateTime.class ).withOffsetSameInstant( ZoneOffset.UTC ) );
+                    String dataSetCode = rs.getString( "data_set_code" );
+                    String partition = month + "/" + dataSetCode;
+                    try
+                    {
+                        ArchiveFile archiveFile = openArchiveFiles.get( partition );
+                        if ( archiveFile == null || archiveFile.ids.size() >= fileMaxRecords )
+                        {
+                            if ( archiveFile != null )
+                            {
+                                archiveFile.writer.close();
+                            }
+                            archiveFile = new ArchiveFile( Paths.get( directory, month,
+                                dataSetCode.replaceAll( "[^A-Za-z0-9_-]", "_" ) ),
+                                "success-log-" + RUN_FORMATTER.format( runAt ) + "-" + archiveFiles.size() );
+                            archiveFiles.add( archiveFile );
+                            openArchiveFiles.put( partition, archiveFile );
+                        }
+                        archiveFile.writer.write( objectMapper.writeValueAsString( toRecord( rs ) ) );
+                        archiveFile.writer.write( '\n' );
+                        archiveFile.ids.add( rs.getLong( "id" ) );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new UncheckedIOException( e );
+                    }
+                } );
+                return count;
+            } );
+        }
+        finally
+        {
+            for ( ArchiveFile archiveFile : openArchiveFiles.values() )
+            {
+                archiveFile.writer.close();
+            }
+        }
+    }
+
+    protected Map<String, Object> toRecord( ResultSet rs )
+        throws SQLException
+    {
+        Object payloadFormat = rs.getString( "payload_format" );
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put( "id", rs.getLong( "id" ) );
+        record.put( "createdAt", rs.getObject( "created_at", OffsetDateTime.class ).toString() );
+        record.put( "dataSetCode", rs.getString( "data_set_code" ) );
+        record.put( "reportPeriodOffset", rs.getInt( "report_period_offset" ) );
+        record.put( "organisationUnitId", rs.getString( "organisation_unit_id" ) );
+        record.put( "status", rs.getString( "status" ) );
+        record.put( "dhisRequest", PayloadCompressor.decode( payloadFormat, rs.getString( "dhis_request" ),
+            rs.getBytes( "compressed_dhis_request" ) ) );
+        record.put( "dhisResponse", PayloadCompressor.decode( payloadFormat, rs.getString( "dhis_response" ),
+            rs.getBytes( "compressed_dhis_response" ) ) );
+        record.put( "rapidProPayload", PayloadCompressor.decode( payloadFormat, rs.getString( "rapidpro_payload" ),
+            rs.getBytes( "compressed_rapidpro_payload" ) ) );
+        return record;
+    }
+
+    protected long verify( List<ArchiveFile> archiveFiles, long expectedCount )
+        throws IOException
+    {
+        long count = 0;
+        for ( ArchiveFile archiveFile : archiveFiles )
+        {
+            MessageDigest digest = newDigest();
+            int lineCount = 0;
+            try ( BufferedReader reader = new BufferedReader( new InputStreamReader(
+                new DigestInputStream( new GZIPInputStream( Files.newInputStream( archiveFile.tempPath ) ), digest ),
+                StandardCharsets.UTF_8 ) ) )
+            {
+                String line;
+                while ( (line = reader.readLine()) != null )
+                {
+                    long id = objectMapper.readTree( line ).path( "id" ).asLong( -1 );
+                    if ( lineCount >= archiveFile.ids.size() || id != archiveFile.ids.get( lineCount ) )
+                    {
+                        throw new IllegalStateException(
+                            String.format( "Unexpected record with ID %s at line %s of archive file %s", id,
+                                lineCount + 1, archiveFile.tempPath ) );
+                    }
+                    lineCount++;
+                }
+            }
+            if ( lineCount != archiveFile.ids.size() )
+            {
+                throw new IllegalStateException(
+                    String.format( "Expected %s records in archive file %s but found %s", archiveFile.ids.size(),
+                        archiveFile.tempPath, lineCount ) );
+            }
+            if ( !Arrays.equals( archiveFile.digest.digest(), digest.digest() ) )
+            {
+                throw new IllegalStateException(
+                    String.format( "Checksum of archive file %s does not match what was written",
+                        archiveFile.tempPath ) );
+            }
+            count += lineCount;
+        }
+        if ( count != expectedCount )
+        {
+            throw new IllegalStateException(
+                String.format( "Archived %s success log rows but expected %s rows", count, expectedCount ) );
+        }
+        return count;
+    }
+
+    protected void delete( NamedParameterJdbcTemplate namedParameterJdbcTemplate, List<ArchiveFile> archiveFiles )
+    {
+        for ( ArchiveFile archiveFile : archiveFiles )
+        {
+            for ( int i = 0; i < archiveFile.ids.size(); i += chunkSize )
+            {
+                namedParameterJdbcTemplate.update( deleteSql, Map.of( "ids",
+                    archiveFile.ids.subList( i, Math.min( i + chunkSize, archiveFile.ids.size() ) ) ) );
+            }
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    @ManagedAttribute( description = "Number of success log rows archived since start-up" )
+    public long getArchivedRows()
+    {
+        return archivedRows.get();
+    }
+
+    @ManagedAttribute( description = "Number of runs aborted before deleting the archived success log rows" )
+    public long getFailedRuns()
+    {
+        return failedRuns.get();
+    }
+
+    @ManagedAttribute( description = "Number of success log rows archived in the last run" )
+    public long getLastArchived()
+    {
+        return lastArchived;
+    }
+
+    @ManagedAttribute( description = "Time in milliseconds taken by the last run" )
+    public long getLastDuration()
+    {
+        return lastDuration;
+    }
+
+    @ManagedAttribute( description = "Time of the last run" )
+    public String getLastArchivedAt()
+    {
+        return lastArchivedAt == null ? null : lastArchivedAt.toString();
+    }
+
+    protected static class ArchiveFile
+    {
+        private final Path path;
+
+        private final Path tempPath;
+
+        private final Writer writer;
+
+        private final MessageDigest digest = newDigest();
+
+        private final List<Long> ids = new ArrayList<>();
+
+        ArchiveFile( Path partitionDirectory, String name )
+            throws IOException
+        {
+            Files.createDirectories( partitionDirectory );
+            path = partitionDirectory.resolve( name + ".ndjson.gz" );
+            tempPath = partitionDirectory.resolve( name + ".ndjson.gz.tmp" );
+            writer = new BufferedWriter( new OutputStreamWriter(
+                new DigestOutputStream( new GZIPOutputStream( Files.newOutputStream( tempPath ) ), digest ),
+                StandardCharsets.UTF_8 ) );
+        }
+    }
+}
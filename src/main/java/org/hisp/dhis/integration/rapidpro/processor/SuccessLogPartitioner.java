@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Creates the monthly partitions of a range-partitioned success log ahead of time and drops the partitions whose rows
+ * have all expired. Does nothing when the success log is a plain table. PostgreSQL refuses to create a partition while
+ * the default partition holds rows belonging to it, so such rows are moved into the new partition: the default
+ * partition is detached, the partition created, the rows moved, and the default partition re-attached, all in one
+ * transaction. A partition which cannot be created does not stop the remaining partitions from being created, but the
+ * run then fails so that rows are not silently left to fall into the default partition.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=SuccessLogPartitioner", description = "Success log partitions" )
+public class SuccessLogPartitioner implements Processor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( SuccessLogPartitioner.class );
+
+    private static final String PARTITION_PREFIX = "success_log_p";
+
+    private static final String DEFAULT_PARTITION_NAME = "success_log_default";
+
+    private static final DateTimeFormatter PARTITION_SUFFIX_FORMATTER = DateTimeFormatter.ofPattern( "yyyyMM" );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value( "${success.log.partitioned.${spring.sql.init.platform}:}" )
+    private String partitionedSql;
+
+    @Value( "${success.log.partitions.select.${spring.sql.init.platform}:}" )
+    private String partitionsSelectSql;
+
+    @Value( "${success.log.partition.create.${spring.sql.init.platform}:}" )
+    private String partitionCreateSql;
+
+    @Value( "${success.log.partition.drop.${spring.sql.init.platform}:}" )
+    private String partitionDropSql;
+
+    @Value( "${success.log.partition.default.count.${spring.sql.init.platform}:}" )
+    private String defaultPartitionCountSql;
+
+    @Value( "${success.log.partition.default.detach.${spring.sql.init.platform}:}" )
+    private String defaultPartitionDetachSql;
+
+    @Value( "${success.log.partition.default.move.${spring.sql.init.platform}:}" )
+    private String defaultPartitionMoveSql;
+
+    @Value( "${success.log.partition.default.attach.${spring.sql.init.platform}:}" )
+    private String defaultPartitionAttachSql;
+
+    @Value( "${success.log.partitions.ahead:3}" )
+    private int partitionsAhead;
+
+    private final AtomicLong createdPartitions = new AtomicLong();
+
+    private final AtomicLong droppedPartitions = new AtomicLong();
+
+    private final AtomicLong failedPartitions = new AtomicLong();
+
+    private volatile String lastFailure;
+
+    @Override
+    public void process( Exchange exchange )
+    {
+        int created = 0;
+        List<String> failed = new ArrayList<>();
+        if ( isPartitioned() )
+        {
+            List<String> partitionNames = jdbcTemplate.queryForList( partitionsSelectSql, String.class );
+            YearMonth currentMonth = YearMonth.now( ZoneOffset.UTC );
+            for ( int i = 0; i <= partitionsAhead; i++ )
+            {
+                YearMonth month = currentMonth.plusMonths( i );
+                String partitionName = partitionName( month );
+                if ( !partitionNames.contains( partitionName ) )
+                {
+                    try
+                    {
+                        createPartition( partitionName, month,
+                            partitionNames.stream().anyMatch( DEFAULT_PARTITION_NAME::equalsIgnoreCase ) );
+                        created++;
+                        LOGGER.info( String.format( "Created success log partition %s", partitionName ) );
+                    }
+                    catch ( Exception e )
+                    {
+                        LOGGER.error( String.format( "Error while creating success log partition %s", partitionName ),
+                            e );
+                        failed.add( partitionName );
+                        lastFailure = String.format( "%s: %s", partitionName, e.getMessage() );
+                    }
+                }
+            }
+            createdPartitions.addAndGet( created );
+            failedPartitions.addAndGet( failed.size() );
+        }
+        if ( !failed.isEmpty() )
+        {
+            throw new IllegalStateException(
+                String.format( "Failed to create success log partition/s %s", String.join( ", ", failed ) ) );
+        }
+        exchange.getMessage().setBody( created );
+    }
+
+    protected void createPartition( String partitionName, YearMonth month, boolean hasDefaultPartition )
+    {
+        String from = month.atDay( 1 ) + " 00:00:00+00";
+        String to = month.plusMonths( 1 ).atDay( 1 ) + " 00:00:00+00";
+        if ( !hasDefaultPartition
+            || jdbcTemplate.queryForObject( String.format( defaultPartitionCountSql, from, to ), Long.class ) == 0 )
+        {
+            jdbcTemplate.execute( String.format( partitionCreateSql, partitionName, from, to ) );
+            return;
+        }
+
+        int moved = new TransactionTemplate( transactionManager ).execute( status -> {
+            jdbcTemplate.execute( defaultPartitionDetachSql );
+            jdbcTemplate.execute( String.format( partitionCreateSql, partitionName, from, to ) );
+            int rows = jdbcTemplate.update( String.format( defaultPartitionMoveSql, from, to ) );
+            jdbcTemplate.execute( defaultPartitionAttachSql );
+            return rows;
+        } );
+        LOGGER.warn( String.format( "Moved %s success log row/s from the default partition into partition %s", moved,
+            partitionName ) );
+    }
+
+    /**
+     * Drops the monthly partitions which only hold rows created before the cutoff.
+     *
+     * @return the number of rows dropped together with the partitions
+     */
+    public long dropPartitionsBefore( Instant cutoff )
+    {
+        long droppedRows = 0;
+        if ( isPartitioned() )
+        {
+            YearMonth cutoffMonth = YearMonth.from( cutoff.atOffset( ZoneOffset.UTC ) );
+            List<String> partitionNames = jdbcTemplate.queryForList( partitionsSelectSql, String.class );
+            for ( String partitionName : partitionNames )
+            {
+                YearMonth month = partitionMonth( partitionName );
+                if ( month != null && month.isBefore( cutoffMonth ) )
+                {
+                    droppedRows += jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM " + partitionName, Long.class );
+                    jdbcTemplate.execute( String.format( partitionDropSql, partitionName ) );
+                    droppedPartitions.incrementAndGet();
+                    LOGGER.info( String.format( "Dropped success log partition %s", partitionName ) );
+                }
+            }
+        }
+        return droppedRows;
+    }
+
+    public boolean isPartitioned()
+    {
+        return partitionedSql != null && !partitionedSql.isBlank()
+            && jdbcTemplate.queryForObject( partitionedSql, Integer.class ) > 0;
+    }
+
+    protected static String partitionName( YearMonth month )
+    {
+        return PARTITION_PREFIX + PARTITION_SUFFIX_FORMATTER.format( month );
+    }
+
+    protected static YearMonth partitionMonth( String partitionName )
+    {
+        String name = partitionName.toLowerCase();
+        if ( name.matches( PARTITION_PREFIX + "\\d{6}" ) )
+        {
+            return YearMonth.parse( name.substring( PARTITION_PREFIX.length() ), PARTITION_SUFFIX_FORMATTER );
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    @ManagedAttribute( description = "Number of success log partitions created since start-up" )
+    public long getCreatedPartitions()
+    {
+        return createdPartitions.get();
+    }
+
+    @ManagedAttribute( description = "Number of expired success log partitions dropped since start-up" )
+    public long getDroppedPartitions()
+    {
+        return droppedPartitions.get();
+    }
+
+    @ManagedAttribute( description = "Number of success log partitions which could not be created since start-up" )
+    public long getFailedPartitions()
+    {
+        return failedPartitions.get();
+    }
+
+    @ManagedAttribute( description = "Partition and error of the last failed success log partition creation" )
+    public String getLastFailure()
+    {
+        return lastFailure;
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSourceUtils;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Write-behind writer of the success log. Records are buffered in memory and inserted in batches once the buffer holds
+ * a full batch or the flush interval elapses. Each batch is inserted in its own transaction. A batch that cannot be
+ * inserted, as well as whatever is left in the buffer when the application shuts down and the database is unavailable,
+ * is appended to a spool file which is replayed into the success log on start-up and on the next flush. The spool
+ * file holds the reports' payloads, contact details included, so it is created readable by the owner only where the
+ * file system allows it.
+ */
+@Component
+@ManagedResource( objectName = "org.hisp.dhis.integration.rapidpro:type=SuccessLogWriter", description = "Write-behind success log writer" )
+public class SuccessLogWriter implements Processor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( SuccessLogWriter.class );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PayloadCompressor payloadCompressor;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value( "${success.log.write.behind.enabled:false}" )
+    private boolean enabled;
+
+    @Value( "${success.log.batch.insert.${spring.sql.init.platform}}" )
+    private String batchInsertSql;
+
+    @Value( "${success.log.buffer.size:10000}" )
+    private int bufferSize;
+
+    @Value( "${success.log.batch.size:100}" )
+    private int batchSize;
+
+    @Value( "${success.log.flush.interval:1000}" )
+    private long flushInterval;
+
+    @Value( "${success.log.spool.file:success-log.spool}" )
+    private String spoolFile;
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong flushedRecords = new AtomicLong();
+
+    private final AtomicLong spooledRecords = new AtomicLong();
+
+    private final AtomicLong overflows = new AtomicLong();
+
+    private volatile long lastFlushLatency;
+
+    private volatile long maxFlushLatency;
+
+    private Path spoolPath;
+
+    private BlockingQueue<Map<String, Object>> buffer;
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    public void start()
+    {
+        if ( !enabled )
+        {
+            return;
+        }
+        spoolPath = Paths.get( spoolFile ).toAbsolutePath();
+        LOGGER.info( String.format( "Spooling success log records that cannot be written to %s", spoolPath ) );
+        buffer = new ArrayBlockingQueue<>( bufferSize );
+        flushExecutor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "SuccessLogWriter" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        // replays whatever was spooled, or left half-replayed, before the application last stopped
+        flushExecutor.execute( this::replaySpool );
+        flushExecutor.scheduleWithFixedDelay( this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS );
+    }
+
+    @PreDestroy
+    public void stop()
+        throws InterruptedException
+    {
+        if ( flushExecutor == null )
+        {
+            return;
+        }
+        flushExecutor.shutdown();
+        if ( !flushExecutor.awaitTermination( 30, TimeUnit.SECONDS ) )
+        {
+            LOGGER.warn( "Timed out waiting for the success log to finish flushing" );
+        }
+        flush();
+    }
+
+    @Override
+    public void process( Exchange exchange )
+    {
+        Message message = exchange.getMessage();
+        Map<String, Object> record = new HashMap<>();
+        record.put( "dhisRequest", message.getHeader( "dhisRequest", String.class ) );
+        record.put( "dhisResponse", message.getHeader( "dhisResponse", String.class ) );
+        record.put( "rapidProPayload", message.getHeader( "rapidProPayload", String.class ) );
+        record.put( "dataSetCode", message.getHeader( "dataSetCode", String.class ) );
+        record.put( "reportPeriodOffset", message.getHeader( "reportPeriodOffset", Integer.class ) );
+        record.put( "orgUnitId", message.getHeader( "orgUnitId", String.class ) );
+
+        if ( flushExecutor.isShutdown() )
+        {
+            // the writer is shutting down: nothing is left to flush the buffer so write the record straight away
+            write( List.of( record ) );
+        }
+        else if ( !buffer.offer( record ) )
+        {
+            // the buffer is full: fall back to writing the record on the delivery thread
+            overflows.incrementAndGet();
+            write( List.of( record ) );
+        }
+        else if ( buffer.size() >= batchSize && flushRequested.compareAndSet( false, true ) )
+        {
+            try
+            {
+                flushExecutor.execute( this::flush );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // the writer is shutting down: flush on the delivery thread so that the record is not left behind
+                flush();
+            }
+        }
+    }
+
+    protected synchronized void flush()
+    {
+        flushRequested.set( false );
+        replaySpool();
+
+        List<Map<String, Object>> batch = new ArrayList<>();
+        while ( buffer.drainTo( batch, batchSize ) > 0 )
+        {
+            write( batch );
+            batch.clear();
+        }
+    }
+
+    /**
+     * Inserts the records or, should that fail, spools them. The records belong to reports which are already in DHIS2
+     * so a failure here is never allowed to reach the delivery route.
+     */
+    protected synchronized void write( List<Map<String, Object>> records )
+    {
+        long startTime = System.currentTimeMillis();
+        try
+        {
+            insert( records );
+            flushes.incrementAndGet();
+            flushedRecords.addAndGet( records.size() );
+            lastFlushLatency = System.currentTimeMillis() - startTime;
+            maxFlushLatency = Math.max( maxFlushLatency, lastFlushLatency );
+        }
+        catch ( Exception e )
+        {
+            LOGGER.error( String.format( "Error while writing %s record/s to success log. Spooling record/s to %s",
+                records.size(), spoolPath ), e );
+            spool( records );
+        }
+    }
+
+    /**
+     * Inserts the records in a single transaction so that a batch is either written in full or not at all, which is
+     * what allows a failed batch to be spooled and replayed whole without duplicating rows.
+     */
+    protected void insert( List<Map<String, Object>> records )
+    {
+        List<Map<String, Object>> compressedRecords = new ArrayList<>();
+        for ( Map<String, Object> record : records )
+        {
+            Map<String, Object> compressedRecord = new HashMap<>( record );
+            payloadCompressor.compress( compressedRecord, "dhisRequest", "dhisResponse", "rapidProPayload" );
+            compressedRecords.add( compressedRecord );
+        }
+        new TransactionTemplate( transactionManager ).executeWithoutResult(
+            status -> new NamedParameterJdbcTemplate( jdbcTemplate ).batchUpdate( batchInsertSql,
+                SqlParameterSourceUtils.createBatch( compressedRecords ) ) );
+    }
+
+    protected void spool( List<Map<String, Object>> records )
+    {
+        try
+        {
+            createSpoolFile();
+        }
+        catch ( IOException e )
+        {
+            LOGGER.error( String.format( "Lost %s success log record/s => %s", records.size(), records ), e );
+            return;
+        }
+
+        try ( BufferedWriter writer = Files.newBufferedWriter( spoolPath, StandardCharsets.UTF_8,
+            StandardOpenOption.APPEND ) )
+        {
+            for ( Map<String, Object> record : records )
+            {
+                writer.write( objectMapper.writeValueAsString( record ) );
+                writer.newLine();
+            }
+            spooledRecords.addAndGet( records.size() );
+        }
+        catch ( IOException e )
+        {
+            LOGGER.error( String.format( "Lost %s success log record/s => %s", records.size(), records ), e );
+        }
+    }
+
+    private void createSpoolFile()
+        throws IOException
+    {
+        if ( Files.exists( spoolPath ) )
+        {
+            return;
+        }
+        if ( spoolPath.getParent() != null )
+        {
+            Files.createDirectories( spoolPath.getParent() );
+        }
+        if ( spoolPath.getFileSystem().supportedFileAttributeViews().contains( "posix" ) )
+        {
+            Files.createFile( spoolPath,
+                PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString( "rw-------" ) ) );
+        }
+        else
+        {
+            Files.createFile( spoolPath );
+        }
+    }
+
+    /**
+     * Replays the spool file into the success log. The spool file is first renamed so that records spooled while it is
+     * being replayed go to a new spool file. The renamed file is only deleted once its records are committed, and is
+     * renamed back should the replay fail, so that a crash or a database error never loses spooled records. A renamed
+     * file left behind by a crash is replayed before the spool file.
+     */
+    protected synchronized void replaySpool()
+    {
+        Path replayingPath = spoolPath.resolveSibling( spoolPath.getFileName() + ".replaying" );
+        if ( Files.exists( replayingPath ) && !replay( replayingPath ) )
+        {
+            return;
+        }
+        if ( !Files.exists( spoolPath ) )
+        {
+            return;
+        }
+
+        try
+        {
+            Files.move( spoolPath, replayingPath, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e )
+        {
+            LOGGER.error( String.format( "Error while renaming spool file %s to %s", spoolPath, replayingPath ), e );
+            return;
+        }
+        replay( replayingPath );
+    }
+
+    /**
+     * @return whether the records of <code>replayingPath</code> were committed to the success log
+     */
+    protected boolean replay( Path replayingPath )
+    {
+        List<Map<String, Object>> records = new ArrayList<>();
+        try ( BufferedReader reader = Files.newBufferedReader( replayingPath, StandardCharsets.UTF_8 ) )
+        {
+            String line;
+            while ( (line = reader.readLine()) != null )
+            {
+                if ( !line.isBlank() )
+                {
+                    records.add( objectMapper.readValue( line, Map.class ) );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            LOGGER.error(
+                String.format( "Error while reading spooled success log records from %s", replayingPath ), e );
+            return false;
+        }
+
+        try
+        {
+            new TransactionTemplate( transactionManager ).executeWithoutResult( status -> {
+                for ( int i = 0; i < records.size(); i += batchSize )
+                {
+                    insert( records.subList( i, Math.min( i + batchSize, records.size() ) ) );
+                }
+            } );
+        }
+        catch ( Exception e )
+        {
+            LOGGER.warn( String.format( "Error while replaying spooled success log records: %s", e.getMessage() ) );
+            restore( replayingPath );
+            return false;
+        }
+
+        try
+        {
+            Files.delete( replayingPath );
+        }
+        catch ( IOException e )
+        {
+            LOGGER.error( String.format(
+                "Replayed %s spooled record/s into success log but could not delete %s. Delete it by hand to avoid replaying the record/s again",
+                records.size(), replayingPath ), e );
+        }
+        spooledRecords.updateAndGet( spooled -> Math.max( 0, spooled - records.size() ) );
+        LOGGER.info( String.format( "Replayed %s spooled record/s into success log", records.size() ) );
+        return true;
+    }
+
+    private void restore( Path replayingPath )
+    {
+        if ( Files.exists( spoolPath ) )
+        {
+            // records were spooled in the meantime: keep the file aside to be replayed ahead of the spool file
+            return;
+        }
+        try
+        {
+            Files.move( replayingPath, spoolPath, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e )
+        {
+            LOGGER.error( String.format( "Error while renaming %s back to %s", replayingPath, spoolPath ), e );
+        }
+    }
+
+    @ManagedAttribute( description = "Number of records waiting to be written to the success log" )
+    public int getBufferDepth()
+    {
+        return buffer == null ? 0 : buffer.size();
+    }
+
+    @ManagedAttribute( description = "Number of batches written to the success log since start-up" )
+    public long getFlushes()
+    {
+        return flushes.get();
+    }
+
+    @ManagedAttribute( description = "Number of records written to the success log in batches since start-up" )
+    public long getFlushedRecords()
+    {
+        return flushedRecords.get();
+    }
+
+    @ManagedAttribute( description = "Time in milliseconds taken to write the last batch" )
+    public long getLastFlushLatency()
+    {
+        return lastFlushLatency;
+    }
+
+    @ManagedAttribute( description = "Longest time in milliseconds taken to write a batch since start-up" )
+    public long getMaxFlushLatency()
+    {
+        return maxFlushLatency;
+    }
+
+    @ManagedAttribute( description = "Number of records spooled to disk while waiting to be replayed" )
+    public long getSpooledRecords()
+    {
+        return spooledRecords.get();
+    }
+
+    @ManagedAttribute( description = "Number of records written on the delivery thread because the buffer was full" )
+    public long getOverflows()
+    {
+        return overflows.get();
+    }
+}
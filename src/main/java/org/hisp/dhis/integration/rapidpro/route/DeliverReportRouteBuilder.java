@@ -30,13 +30,26 @@ package org.hisp.dhis.integration.rapidpro.route;
 import org.apache.camel.ErrorHandlerFactory;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
-import org.apache.camel.processor.aggregate.GroupedBodyAggregationStrategy;
-import org.hisp.dhis.api.model.v40_0.DataSet;
 import org.hisp.dhis.integration.rapidpro.CompleteDataSetRegistrationFunction;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.BatchReportAggregationRepository;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.CoalesceReportAggregationRepository;
 import org.hisp.dhis.integration.rapidpro.aggregationStrategy.ContactOrgUnitIdAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetBatchAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetCoalesceAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.errorhandler.RedeliveryDecider;
 import org.hisp.dhis.integration.rapidpro.expression.RootCauseExpr;
+import org.hisp.dhis.integration.rapidpro.metadata.ContactOrgUnitIdCache;
+import org.hisp.dhis.integration.rapidpro.metadata.DataSetMetadataCache;
+import org.hisp.dhis.integration.rapidpro.processor.AsyncImportQueryParamSetter;
+import org.hisp.dhis.integration.rapidpro.processor.BatchImportSummaryProcessor;
 import org.hisp.dhis.integration.rapidpro.processor.CurrentPeriodCalculator;
+import org.hisp.dhis.integration.rapidpro.processor.DataValueSetValidator;
+import org.hisp.dhis.integration.rapidpro.processor.DeadLetterChannelRetrier;
 import org.hisp.dhis.integration.rapidpro.processor.IdSchemeQueryParamSetter;
+import org.hisp.dhis.integration.rapidpro.processor.RejectedDataValuesFilter;
+import org.hisp.dhis.integration.rapidpro.processor.ReportQueueDrainer;
+import org.hisp.dhis.integration.rapidpro.processor.SuccessLogWriter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -53,45 +66,82 @@ public class DeliverReportRouteBuilder extends AbstractRouteBuilder
     @Autowired
     private RootCauseExpr rootCauseExpr;
 
+    @Autowired
+    private RedeliveryDecider redeliveryDecider;
+
     @Autowired
     private IdSchemeQueryParamSetter idSchemeQueryParamSetter;
 
+    @Autowired
+    private DataValueSetValidator dataValueSetValidator;
+
     @Autowired
     private ContactOrgUnitIdAggrStrategy contactOrgUnitIdAggrStrategy;
 
     @Autowired
     private CompleteDataSetRegistrationFunction completeDataSetRegistrationFunction;
 
+    @Autowired
+    private DataSetMetadataCache dataSetMetadataCache;
+
+    @Autowired
+    private ContactOrgUnitIdCache contactOrgUnitIdCache;
+
+    @Autowired
+    private DataValueSetBatchAggrStrategy dataValueSetBatchAggrStrategy;
+
+    @Autowired
+    private DataValueSetCoalesceAggrStrategy dataValueSetCoalesceAggrStrategy;
+
+    @Autowired
+    private BatchImportSummaryProcessor batchImportSummaryProcessor;
+
+    @Autowired
+    private ReportQueueDrainer reportQueueDrainer;
+
+    @Autowired
+    private DeadLetterChannelRetrier deadLetterChannelRetrier;
+
+    @Autowired
+    private SuccessLogWriter successLogWriter;
+
+    @Autowired
+    private PayloadCompressor payloadCompressor;
+
+    @Autowired
+    private BatchReportAggregationRepository batchReportAggregationRepository;
+
+    @Autowired
+    private CoalesceReportAggregationRepository coalesceReportAggregationRepository;
+
+    @Autowired
+    private AsyncImportQueryParamSetter asyncImportQueryParamSetter;
+
+    @Autowired
+    private RejectedDataValuesFilter rejectedDataValuesFilter;
+
     @Override
     protected void doConfigure()
     {
         ErrorHandlerFactory errorHandlerDefinition = deadLetterChannel(
-            "direct:dlq" ).maximumRedeliveries( 3 ).useExponentialBackOff().useCollisionAvoidance()
-            .allowRedeliveryWhileStopping( false );
+            "direct:dlq" ).maximumRedeliveries( 3 ).retryWhile( method( redeliveryDecider, "matches" ) ).useExponentialBackOff()
+            .useCollisionAvoidance().allowRedeliveryWhileStopping( false );
 
-        from( "timer://retry?fixedRate=true&period=5000" )
+        from( "timer://retry?period={{dlc.retry.poll.period:5000}}" )
             .routeId( "Retry Reports" )
-            .setBody( simple( "${properties:retry.dlc.select.{{spring.sql.init.platform}}}" ) )
-            .to( "jdbc:dataSource" )
-            .split().body()
-                .setHeader( "id", simple( "${body['id']}" ) )
-                .log( LoggingLevel.INFO, LOGGER, "Retrying row with ID ${header.id}" )
-                .setHeader( "dataSetCode", simple( "${body['data_set_code']}" ) )
-                .setHeader( "reportPeriodOffset", simple( "${body['report_period_offset']}" ) )
-                .setHeader( "orgUnitId", simple( "${body['organisation_unit_id']}" ) )
-                .setBody( simple( "${body['payload']}" ) )
-                .to( "jms:queue:dhis2?exchangePattern=InOnly" )
-                .setBody( simple( "${properties:processed.dlc.update.{{spring.sql.init.platform}}}" ) )
-                .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+            .process( deadLetterChannelRetrier )
+            .choice().when( simple( "${body} > 0" ) )
+                .log( LoggingLevel.INFO, LOGGER, "Re-enqueued ${body} report/s from dead letter channel" )
             .end();
 
-        from( "quartz://dhis2?cron={{report.delivery.schedule.expression}}" )
+        from( "quartz://dhis2?cron={{report.delivery.schedule.expression}}&stateful=true" )
             .routeId( "Schedule Report Delivery" )
             .precondition( "'{{report.delivery.schedule.expression:}}' != ''" )
-            .pollEnrich( "jms:queue:dhis2" )
-            .to( "direct:deliverReport" );
+            .log( LoggingLevel.INFO, LOGGER, "Draining report queue..." )
+            .process( reportQueueDrainer )
+            .log( LoggingLevel.INFO, LOGGER, "Drained ${body[drained]} report/s from queue => ${body[remaining]} report/s remain queued" );
 
-        from( "jms:queue:dhis2" )
+        from( "jms:queue:dhis2?concurrentConsumers={{report.delivery.concurrent.consumers:1}}&maxConcurrentConsumers={{report.delivery.max.concurrent.consumers:1}}" )
             .routeId( "Consume Report" )
             .precondition( "'{{report.delivery.schedule.expression:}}' == ''" )
             .to( "direct:deliverReport" );
@@ -99,7 +149,67 @@ public class DeliverReportRouteBuilder extends AbstractRouteBuilder
         from( "direct:deliverReport" )
             .routeId( "Deliver Report" )
             .to( "direct:transformReport" )
-            .to( "direct:transmitReport" );
+            .choice().when( exchangeProperty( DataValueSetValidator.VALIDATION_ERRORS_PROPERTY ).isNotNull() )
+                .log( LoggingLevel.ERROR, LOGGER, "Invalid data value set => ${exchangeProperty.validationErrors}" )
+                .setBody( exchangeProperty( DataValueSetValidator.VALIDATION_ERRORS_PROPERTY ) )
+                .to( "direct:dlq" )
+            .when( simple( "{{report.delivery.coalesce.window:0}} > 0" ) )
+                .to( "direct:coalesceReport" )
+            .otherwise()
+                .to( "direct:dispatchReport" )
+            .end();
+
+        from( "direct:coalesceReport" )
+            .routeId( "Coalesce Reports" )
+            .aggregate( simple( "${header.dataSetCode}/${header.orgUnitId}/${header.period}" ), dataValueSetCoalesceAggrStrategy )
+                .aggregationRepository( coalesceReportAggregationRepository )
+                .completionTimeout( "{{report.delivery.coalesce.window:0}}" )
+                .completionPredicate( method( dataValueSetCoalesceAggrStrategy, "isMaxAgeReached" ) )
+                .forceCompletionOnStop()
+                .to( "direct:dispatchReport" )
+            .end();
+
+        from( "direct:recordSupersededReports" )
+            .routeId( "Record Superseded Reports" )
+            .split( exchangeProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY ) )
+                .log( LoggingLevel.DEBUG, LOGGER, "Report superseded by a later report for data set ${body[dataSetCode]}, org unit ${body[orgUnitId]} and period ${body[period]} => ${body[originalPayload]}" )
+                .setHeader( "rapidProPayload", simple( "${body[originalPayload]}" ) )
+                .setHeader( "dhisRequest", simple( "${body[dhisRequest]}" ) )
+                .setHeader( "dhisResponse", constant( "{\"status\":\"SUPERSEDED\"}" ) )
+                .process( exchange -> payloadCompressor.compressHeaders( exchange, "dhisRequest", "dhisResponse", "rapidProPayload" ) )
+                .setHeader( "dataSetCode", simple( "${body[dataSetCode]}" ) )
+                .setHeader( "reportPeriodOffset", simple( "${body[reportPeriodOffset]}" ) )
+                .setHeader( "orgUnitId", simple( "${body[orgUnitId]}" ) )
+                .setBody( simple( "${properties:superseded.log.insert.{{spring.sql.init.platform}}}" ) )
+                .to( "spring-jdbc:dataSource?useHeadersAsParameters=true&transacted=true" )
+            .end();
+
+        from( "direct:dlqSupersededReports" )
+            .routeId( "Save Failed Superseded Reports" )
+            .split( exchangeProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY ) )
+                .to( "direct:unbatchReport" )
+                .to( "direct:dlq" )
+            .end();
+
+        from( "direct:dispatchReport" )
+            .routeId( "Dispatch Report" )
+            .choice().when( simple( "{{report.delivery.batch.enabled:false}} == true" ) )
+                .to( "direct:batchReport" )
+            .when( simple( "{{report.delivery.async.enabled:false}} == true" ) )
+                .to( "direct:submitReport" )
+            .otherwise()
+                .to( "direct:transmitReport" )
+            .end();
+
+        from( "direct:batchReport" )
+            .routeId( "Batch Reports" )
+            .aggregate( header( "dataSetCode" ), dataValueSetBatchAggrStrategy )
+                .aggregationRepository( batchReportAggregationRepository )
+                .completionSize( "{{report.delivery.batch.max.size:100}}" )
+                .completionInterval( "{{report.delivery.batch.max.wait:5000}}" )
+                .forceCompletionOnStop()
+                .to( "direct:transmitReportBatch" )
+            .end();
 
         from( "direct:transformReport" )
             .routeId( "Transform Report" )
@@ -110,28 +220,36 @@ public class DeliverReportRouteBuilder extends AbstractRouteBuilder
             .choice().when( header( "reportPeriodOffset" ).isNull() )
                 .setHeader( "reportPeriodOffset", constant( -1 ) )
             .end()
-            .enrich()
-            .simple( "dhis2://get/resource?path=dataElements&filter=dataSetElements.dataSet.code:eq:${headers['dataSetCode']}&fields=code&client=#dhis2Client" )
-            .aggregationStrategy( ( oldExchange, newExchange ) -> {
-                oldExchange.getMessage().setHeader( "dataElementCodes",
-                    jsonpath( "$.dataElements..code" ).evaluate( newExchange, List.class ) );
-                return oldExchange;
-            } )
+            .setHeader( "dataElementCodes", method( dataSetMetadataCache, "getDataElementCodes(${header.dataSetCode})" ) )
             .choice().when( header( "orgUnitId" ).isNull() )
-                .setHeader( "Authorization", constant( "Token {{rapidpro.api.token}}" ) )
-                .enrich().simple( "{{rapidpro.api.url}}/contacts.json?uuid=${body[contact][uuid]}&httpMethod=GET" )
-                    .aggregationStrategy( contactOrgUnitIdAggrStrategy )
-                .end()
-                .removeHeader( "Authorization" )
+                .to( "direct:resolveContactOrgUnitId" )
             .end()
             .enrich( "direct:computePeriod", ( oldExchange, newExchange ) -> {
                 oldExchange.getMessage().setHeader( "period", newExchange.getMessage().getBody() );
                 return oldExchange;
             } )
+            .setProperty( "completionMode", simple( "{{report.delivery.completion.mode:registration}}" ) )
+            // keeps results without a matching data element so that the validator can reject them
+            .setProperty( "validationEnabled", simple( "{{report.delivery.validation.enabled:false}}" ) )
             .transform( datasonnet( "resource:classpath:dataValueSet.ds", Map.class, "application/x-java-object",
                 "application/x-java-object" ) )
             .process( idSchemeQueryParamSetter )
-            .marshal().json().transform().body( String.class );
+            .marshal().json().transform().body( String.class )
+            .choice().when( simple( "{{report.delivery.validation.enabled:false}} == true" ) )
+                .process( dataValueSetValidator )
+            .end();
+
+        from( "direct:resolveContactOrgUnitId" )
+            .routeId( "Resolve Contact Org Unit ID" )
+            .errorHandler( noErrorHandler() )
+            .setHeader( "orgUnitId", method( contactOrgUnitIdCache, "get(${body[contact][uuid]})" ) )
+            .choice().when( header( "orgUnitId" ).isNull() )
+                .setHeader( "Authorization", constant( "Token {{rapidpro.api.token}}" ) )
+                .enrich().simple( "{{rapidpro.api.url}}/contacts.json?uuid=${body[contact][uuid]}&httpMethod=GET" )
+                    .aggregationStrategy( contactOrgUnitIdAggrStrategy )
+                .end()
+                .removeHeader( "Authorization" )
+            .end();
 
         from( "direct:transmitReport" )
             .routeId( "Transmit Report" )
@@ -142,43 +260,219 @@ public class DeliverReportRouteBuilder extends AbstractRouteBuilder
             .setBody( (Function<Exchange, Object>) exchange -> exchange.getMessage().getBody( String.class ) )
             .setHeader( "dhisResponse", simple( "${body}" ) )
             .unmarshal().json()
+            .to( "direct:settleReport" );
+
+        from( "direct:settleReport" )
+            .routeId( "Settle Report" )
+            .errorHandler( errorHandlerDefinition )
             .choice()
-            .when( simple( "${body['status']} == 'SUCCESS' || ${body['status']} == 'OK'" ) )
+            .when( simple( "${body['status']} != 'SUCCESS' && ${body['status']} != 'OK'" ) )
+                .log( LoggingLevel.ERROR, LOGGER, "Import error from DHIS2 while saving data value set => ${body}" )
+                .process( rejectedDataValuesFilter )
+                .to( "direct:dlq" )
+            .when( simple( "{{report.delivery.completion.mode:registration}} == 'import'" ) )
+                .to( "direct:successLog" )
+            .otherwise()
                 .to( "direct:completeDataSetRegistration" )
+            .end();
+
+        from( "direct:submitReport" )
+            .routeId( "Submit Report Import" )
+            .errorHandler( errorHandlerDefinition )
+            .log( LoggingLevel.INFO, LOGGER, "Submitting data value set import => ${body}" )
+            .setHeader( "dhisRequest", simple( "${body}" ) )
+            .process( asyncImportQueryParamSetter )
+            .toD( "dhis2://post/resource?path=dataValueSets&inBody=resource&client=#dhis2Client" )
+            .setBody( (Function<Exchange, Object>) exchange -> exchange.getMessage().getBody( String.class ) )
+            .setHeader( "dhisResponse", simple( "${body}" ) )
+            .unmarshal().json()
+            .choice().when( simple( "${body[response]} == null || ${body[response][id]} == null" ) )
+                .log( LoggingLevel.ERROR, LOGGER, "Unexpected response from DHIS2 while submitting data value set import => ${body}" )
+                .to( "direct:dlq" )
             .otherwise()
-                .log( LoggingLevel.ERROR, LOGGER, "Import error from DHIS2 while saving data value set => ${body}" )
+                .setHeader( "jobId", simple( "${body[response][id]}" ) )
+                .setHeader( "jobType" ).ognl( "request.body['response']['jobType'] == null ? 'DATAVALUE_IMPORT' : request.body['response']['jobType']" )
+                .setHeader( "deadLetterChannelId" ).ognl( "request.headers.deadLetterChannelId" )
+                .setHeader( "supersededReports", method( dataValueSetCoalesceAggrStrategy, "writeSupersededReports" ) )
+                .setBody( simple( "${properties:import.job.insert.{{spring.sql.init.platform}}}" ) )
+                .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .log( LoggingLevel.DEBUG, LOGGER, "Submitted DHIS2 import job ${header.jobId}" )
+            .end();
+
+        from( "timer://importJobs?fixedRate=true&period={{report.delivery.async.poll.period:5000}}" )
+            .routeId( "Poll Import Jobs" )
+            .precondition( "{{report.delivery.async.enabled:false}}" )
+            .setHeader( "asyncImportTimeout", simple( "{{report.delivery.async.timeout:3600000}}" ) )
+            .setBody( simple( "${properties:import.job.select.{{spring.sql.init.platform}}}" ) )
+            .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+            .split().body()
+                .to( "direct:pollImportJob" )
+            .end();
+
+        from( "direct:pollImportJob" )
+            .routeId( "Poll Import Job" )
+            .setHeader( "importJobId", simple( "${body[id]}" ) )
+            .setHeader( "jobId", simple( "${body[job_id]}" ) )
+            .setHeader( "jobType", simple( "${body[job_type]}" ) )
+            .setHeader( "originalPayload", simple( "${body[rapidpro_payload]}" ) )
+            .setHeader( "dhisRequest", simple( "${body[dhis_request]}" ) )
+            .setHeader( "dataSetCode", simple( "${body[data_set_code]}" ) )
+            .setHeader( "orgUnitId", simple( "${body[organisation_unit_id]}" ) )
+            .setHeader( "reportPeriodOffset", simple( "${body[report_period_offset]}" ) )
+            .setHeader( "period", simple( "${body[period]}" ) )
+            .setHeader( "deadLetterChannelId", simple( "${body[dead_letter_channel_id]}" ) )
+            .setHeader( "supersededReports", simple( "${body[superseded_reports]}" ) )
+            .setProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY,
+                method( dataValueSetCoalesceAggrStrategy, "readSupersededReports(${header.supersededReports})" ) )
+            .setProperty( "timedOut", simple( "${body[timed_out]}" ) )
+            .choice().when( exchangeProperty( "timedOut" ).isEqualTo( true ) )
+                .setBody( simple( "DHIS2 import job ${header.jobId} did not complete within {{report.delivery.async.timeout:3600000}} milliseconds" ) )
+                .to( "direct:abandonImportJob" )
+            .otherwise()
+                .doTry()
+                    .to( "direct:fetchImportJobStatus" )
+                .doCatch( Exception.class ).onWhen( method( redeliveryDecider, "isTransient" ) )
+                    .log( LoggingLevel.WARN, LOGGER, "Failed to poll DHIS2 import job ${header.jobId}. Polling again later => ${exception.message}" )
+                    .setBody( simple( "${properties:import.job.polled.update.{{spring.sql.init.platform}}}" ) )
+                    .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .doCatch( Exception.class )
+                    .setBody( simple( "DHIS2 import job ${header.jobId} cannot be polled => ${exception.message}" ) )
+                    .to( "direct:abandonImportJob" )
+                .endDoTry()
+            .end();
+
+        from( "direct:fetchImportJobStatus" )
+            .routeId( "Fetch Import Job Status" )
+            .errorHandler( noErrorHandler() )
+            .toD( "dhis2://get/resource?path=system/tasks/${header.jobType}/${header.jobId}&client=#dhis2Client" )
+            .unmarshal().json()
+            .choice().when( exchange -> {
+                    List<?> notifications = exchange.getMessage().getBody( List.class );
+                    return notifications != null && notifications.stream()
+                        .anyMatch( notification -> Boolean.TRUE.equals( ((Map<?, ?>) notification).get( "completed" ) ) );
+                } )
+                .toD( "dhis2://get/resource?path=system/taskSummaries/${header.jobType}/${header.jobId}&client=#dhis2Client" )
+                .setBody( (Function<Exchange, Object>) exchange -> exchange.getMessage().getBody( String.class ) )
+                .setHeader( "dhisResponse", simple( "${body}" ) )
+                .unmarshal().json()
+                .to( "direct:settleImportJob" )
+            .otherwise()
+                .setBody( simple( "${properties:import.job.polled.update.{{spring.sql.init.platform}}}" ) )
+                .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+            .end();
+
+        from( "direct:settleImportJob" )
+            .routeId( "Settle Import Job" )
+            .transacted()
+            // the polled job carries none of the submitted report's headers so the ID schemes are set afresh for
+            // the data set registration
+            .process( idSchemeQueryParamSetter )
+            .to( "direct:settleReport" )
+            .setBody( simple( "${properties:import.job.delete.{{spring.sql.init.platform}}}" ) )
+            .to( "spring-jdbc:dataSource?useHeadersAsParameters=true&transacted=true" );
+
+        from( "direct:abandonImportJob" )
+            .routeId( "Abandon Import Job" )
+            .transacted()
+            .log( LoggingLevel.ERROR, LOGGER, "${body}" )
+            .to( "direct:dlq" )
+            .setBody( simple( "${properties:import.job.delete.{{spring.sql.init.platform}}}" ) )
+            .to( "spring-jdbc:dataSource?useHeadersAsParameters=true&transacted=true" );
+
+        from( "direct:transmitReportBatch" )
+            .routeId( "Transmit Report Batch" )
+            .errorHandler( deadLetterChannel( "direct:dlqBatch" ).maximumRedeliveries( 3 ).retryWhile( method( redeliveryDecider, "matches" ) )
+                .useExponentialBackOff().useCollisionAvoidance().allowRedeliveryWhileStopping( false ) )
+            .marshal().json().transform().body( String.class )
+            .log( LoggingLevel.INFO, LOGGER, "Saving batch of ${exchangeProperty.batchedReports.size()} data value set/s => ${body}" )
+            .toD( "dhis2://post/resource?path=dataValueSets&inBody=resource&client=#dhis2Client" )
+            .setBody( (Function<Exchange, Object>) exchange -> exchange.getMessage().getBody( String.class ) )
+            .setHeader( "dhisResponse", simple( "${body}" ) )
+            .unmarshal().json()
+            .process( batchImportSummaryProcessor )
+            .split( exchangeProperty( "batchedReports" ) )
+                .to( "direct:settleBatchedReport" )
+            .end();
+
+        from( "direct:settleBatchedReport" )
+            .routeId( "Settle Batched Report" )
+            .errorHandler( errorHandlerDefinition )
+            .to( "direct:unbatchReport" )
+            .choice().when( simple( "${body[rejected]} == true" ) )
+                .log( LoggingLevel.ERROR, LOGGER, "Import error from DHIS2 while saving batched data value set => ${body[importSummary]}" )
+                .setBody( simple( "${body[importSummary]}" ) )
+                .process( rejectedDataValuesFilter )
+                .to( "direct:dlq" )
+            .otherwise()
+                .to( "direct:completeDataSetRegistration" )
+            .end();
+
+        from( "direct:dlqBatch" )
+            .routeId( "Save Failed Report Batch" )
+            .split( exchangeProperty( "batchedReports" ) )
+                .to( "direct:unbatchReport" )
                 .to( "direct:dlq" )
             .end();
 
+        from( "direct:unbatchReport" )
+            .setHeader( "originalPayload", simple( "${body[originalPayload]}" ) )
+            .setHeader( "dataSetCode", simple( "${body[dataSetCode]}" ) )
+            .setHeader( "orgUnitId", simple( "${body[orgUnitId]}" ) )
+            .setHeader( "reportPeriodOffset", simple( "${body[reportPeriodOffset]}" ) )
+            .setHeader( "period", simple( "${body[period]}" ) )
+            .setHeader( "dhisRequest", simple( "${body[dhisRequest]}" ) )
+            .setHeader( "deadLetterChannelId", simple( "${body[deadLetterChannelId]}" ) )
+            .setProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY, simple( "${body[supersededReports]}" ) );
+
         from( "direct:dlq" )
             .routeId( "Save Failed Report" )
+            // the contributing reports are saved ahead of the merged report so that they are retried in the order received
+            .to( "direct:dlqSupersededReports" )
             .setHeader( "errorMessage", rootCauseExpr )
             .setHeader( "payload", header( "originalPayload" ) )
+            .process( exchange -> payloadCompressor.compressHeaders( exchange, "payload" ) )
             .setHeader( "orgUnitId" ).ognl( "request.headers.orgUnitId" )
             .setHeader( "dataSetCode" ).ognl( "request.headers.dataSetCode" )
-            .setBody( simple( "${properties:error.dlc.insert.{{spring.sql.init.platform}}}" ) )
-            .to( "jdbc:dataSource?useHeadersAsParameters=true" );
+            .choice().when( header( "deadLetterChannelId" ).isNotNull() )
+                .setHeader( "retryable", method( redeliveryDecider, "isTransient" ) )
+                .setHeader( "maxAttempts", simple( "{{dlc.retry.max.attempts:5}}" ) )
+                .setHeader( "backoffDelay", simple( "{{dlc.retry.backoff.delay:60000}}" ) )
+                .setHeader( "backoffMaxDelay", simple( "{{dlc.retry.backoff.max.delay:3600000}}" ) )
+                .setBody( simple( "${properties:retried.dlc.reschedule.{{spring.sql.init.platform}}}" ) )
+                .to( "spring-jdbc:dataSource?useHeadersAsParameters=true&transacted=true" )
+            .otherwise()
+                .setBody( simple( "${properties:error.dlc.insert.{{spring.sql.init.platform}}}" ) )
+                .to( "spring-jdbc:dataSource?useHeadersAsParameters=true&transacted=true" )
+            .end();
 
         from( "direct:computePeriod" )
             .routeId( "Compute Period" )
-            .toD( "dhis2://get/collection?path=dataSets&arrayName=dataSets&filter=code:eq:${headers['dataSetCode']}&fields=periodType&client=#dhis2Client" )
-            .split().body().aggregationStrategy( new GroupedBodyAggregationStrategy() )
-                .convertBodyTo( DataSet.class )
-            .end()
+            .setBody( method( dataSetMetadataCache, "getPeriodType(${header.dataSetCode})" ) )
             .process( currentPeriodCalculator );
 
         from( "direct:completeDataSetRegistration" )
+            .routeId( "Complete Data Set Registration" )
             .setBody( completeDataSetRegistrationFunction )
             .toD( "dhis2://post/resource?path=completeDataSetRegistrations&inBody=resource&client=#dhis2Client" )
             .unmarshal().json()
             .choice()
             .when( simple( "${body['status']} == 'SUCCESS' || ${body['status']} == 'OK'" ) )
-                .setHeader( "rapidProPayload", header( "originalPayload" ) )
-                .setBody( simple( "${properties:success.log.insert.{{spring.sql.init.platform}}}" ) )
-                .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .to( "direct:successLog" )
             .otherwise()
                 .log( LoggingLevel.ERROR, LOGGER, "Error from DHIS2 while completing data set registration => ${body}" )
                 .to( "direct:dlq" )
             .end();
+
+        from( "direct:successLog" )
+            .routeId( "Save Successful Report" )
+            .setHeader( "rapidProPayload", header( "originalPayload" ) )
+            .choice().when( simple( "{{success.log.write.behind.enabled:false}} == true" ) )
+                .process( successLogWriter )
+            .otherwise()
+                .process( exchange -> payloadCompressor.compressHeaders( exchange, "dhisRequest", "dhisResponse", "rapidProPayload" ) )
+                .setBody( simple( "${properties:success.log.insert.{{spring.sql.init.platform}}}" ) )
+                .to( "spring-jdbc:dataSource?useHeadersAsParameters=true&transacted=true" )
+            .end()
+            .to( "direct:recordSupersededReports" );
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.route;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.hisp.dhis.integration.rapidpro.metadata.CategoryOptionComboIndex;
+import org.hisp.dhis.integration.rapidpro.metadata.DataSetMetadataCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+@Component
+public class MetadataRouteBuilder extends AbstractRouteBuilder
+{
+    @Autowired
+    private CategoryOptionComboIndex categoryOptionComboIndex;
+
+    @Autowired
+    private DataSetMetadataCache dataSetMetadataCache;
+
+    @Override
+    protected void doConfigure()
+    {
+        from( "timer://catOptComboIndex?fixedRate=true&period={{cat.opt.combo.index.refresh.period:300000}}" )
+            .routeId( "Refresh Category Option Combo Index" )
+            .bean( categoryOptionComboIndex, "refresh" );
+
+        from( "timer://dataSetMetadataCache?repeatCount=1" )
+            .routeId( "Preload Data Set Metadata" )
+            .bean( dataSetMetadataCache, "preload" );
+
+        from( "servlet:tasks/invalidateMetadataCache?muteException=true" )
+            .removeHeaders( "*", "dataSetCode" )
+            .choice().when( header( "dataSetCode" ).isNull() )
+                .bean( dataSetMetadataCache, "invalidateAll" )
+                .log( LoggingLevel.INFO, LOGGER, "Invalidated metadata of all data sets" )
+            .otherwise()
+                .bean( dataSetMetadataCache, "invalidate(${header.dataSetCode})" )
+                .log( LoggingLevel.INFO, LOGGER, "Invalidated metadata of data set ${header.dataSetCode}" )
+            .end()
+            .setHeader( Exchange.CONTENT_TYPE, constant( "application/json" ) )
+            .setBody( constant( Map.of( "status", "success", "data", "Invalidated data set metadata cache" ) ) )
+            .marshal().json();
+    }
+}
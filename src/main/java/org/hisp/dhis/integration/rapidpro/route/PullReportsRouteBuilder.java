@@ -29,9 +29,15 @@ package org.hisp.dhis.integration.rapidpro.route;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
-import org.hisp.dhis.integration.rapidpro.expression.LastRunCalculator;
+import org.apache.camel.support.builder.PredicateBuilder;
 import org.hisp.dhis.integration.rapidpro.expression.LastRunAtColumnReader;
+import org.hisp.dhis.integration.rapidpro.expression.RunsPageReader;
+import org.hisp.dhis.integration.rapidpro.processor.FlowScanStatistics;
+import org.hisp.dhis.integration.rapidpro.processor.ReportMessageGroupIdSetter;
+import org.hisp.dhis.integration.rapidpro.processor.RunsPageCheckpointer;
+import org.hisp.dhis.integration.rapidpro.processor.RunsPagePrefetcher;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
@@ -40,11 +46,26 @@ import java.util.Map;
 public class PullReportsRouteBuilder extends AbstractRouteBuilder
 {
     @Autowired
-    private LastRunCalculator lastRunCalculator;
+    private RunsPageReader runsPageReader;
 
     @Autowired
     private LastRunAtColumnReader lastRunAtColumnReader;
 
+    @Autowired
+    private ReportMessageGroupIdSetter reportMessageGroupIdSetter;
+
+    @Autowired
+    private RunsPagePrefetcher runsPagePrefetcher;
+
+    @Autowired
+    private FlowScanStatistics flowScanStatistics;
+
+    @Autowired
+    private RunsPageCheckpointer runsPageCheckpointer;
+
+    @Value( "${scan.reports.pool.size:4}" )
+    private int flowScanPoolSize;
+
     @Override
     protected void doConfigure()
     {
@@ -60,37 +81,70 @@ public class PullReportsRouteBuilder extends AbstractRouteBuilder
 
         from( "direct:pull" )
             .routeId( "Scan RapidPro Flows" )
-            .streamCaching()
             .setHeader( "Authorization", constant( "Token {{rapidpro.api.token}}" ) )
-            .split( simple( "{{rapidpro.flow.uuids:}}" ), "," )
+            .split( simple( "{{rapidpro.flow.uuids:}}" ), "," ).parallelProcessing()
+                .executorService( getContext().getExecutorServiceManager()
+                    .newFixedThreadPool( this, "ScanRapidProFlows", flowScanPoolSize ) )
                 .setHeader( "flowUuid", simple( "${body}" ) )
+                .to( "direct:scanFlow" )
+            .end();
+
+        from( "direct:scanFlow" )
+            .routeId( "Scan RapidPro Flow" )
+            .streamCaching()
+            .bean( flowScanStatistics, "start" )
+            .doTry()
                 .setBody( simple( "${properties:last.run.select.{{spring.sql.init.platform}}}" ) )
                 .to( "jdbc:dataSource?useHeadersAsParameters=true" )
                 .setProperty( "lastRunAt", lastRunAtColumnReader )
                 .setProperty( "nextRunsPageUrl", simple( "{{rapidpro.api.url}}/runs.json?flow=${header.flowUuid}&after=${exchangeProperty.lastRunAt}&reverse=true" ) )
                 .setHeader( "newLastRunAt" ).ognl( "@java.sql.Timestamp@from(@java.time.Instant@now())" )
                 .loopDoWhile( exchangeProperty( "nextRunsPageUrl" ).isNotNull() )
-                    .toD( "${exchangeProperty.nextRunsPageUrl}" )
-                    .log( LoggingLevel.DEBUG, LOGGER, "Fetched flow runs from ${exchangeProperty.nextRunsPageUrl} => ${body}" )
-                    .unmarshal().json()
-                    .setProperty( "nextRunsPageUrl", simple( "${body[next]}" ) )
-                    .setHeader( "newLastRunAt", lastRunCalculator )
-                    .split( simple( "${body[results]}" ) )
-                        .filter( simple( "${body[exited_on]} != null && ${body[exit_type]} == 'completed'" ) )
-                        .choice().when( simple( "${body[values][data_set_code]} == null" ) )
-                            .log( LoggingLevel.ERROR, LOGGER, "Cannot process run for flow definition ${header.flowUuid} because the data set code is missing. Hint: save the data set code to a flow result named `data_set_code` in RapidPro" )
-                        .otherwise()
-                            .setHeader( "dataSetCode", simple( "${body[values][data_set_code][value]}" ) )
-                            .setHeader( "orgUnitId" ).ognl( "request.body['values']['org_unit_id'] == null ? null : request.body['values']['org_unit_id']['value']" )
-                            .setHeader( "reportPeriodOffset" ).ognl( "request.body['values']['report_period_offset'] == null ? null : request.body['values']['report_period_offset']['value']" )
-                            .transform( datasonnet( "resource:classpath:webhook.ds", String.class, "application/x-java-object", "application/json" ) )
-                            .to( "jms:queue:dhis2?exchangePattern=InOnly" )
-                            .log( LoggingLevel.DEBUG, LOGGER, "Enqueued flow run [data set code = ${header.dataSetCode},report period offset = ${header.reportPeriodOffset},content = ${body}]" )
-                        .end()
-                    .end()
+                    .to( "direct:processRunsPage" )
+                    .setProperty( "nextRunsPageUrl", simple( "${exchangeProperty.runsPage.nextPageUrl}" ) )
                 .end()
+                .bean( runsPagePrefetcher, "discard" )
                 .setBody( simple( "${properties:last.run.upsert.{{spring.sql.init.platform}}}" ) )
                 .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .split( method( runsPageCheckpointer, "selectPendingRuns" ) )
+                    .setProperty( RunsPageCheckpointer.RECHECKED_RUN_PROPERTY, body() )
+                    .setProperty( "nextRunsPageUrl", simple( "{{rapidpro.api.url}}/runs.json?uuid=${body}" ) )
+                    .log( LoggingLevel.DEBUG, LOGGER, "Rechecking pending flow run ${body}" )
+                    .to( "direct:processRunsPage" )
+                .end()
+                .bean( flowScanStatistics, "finish" )
+                .log( LoggingLevel.DEBUG, LOGGER, "Scanned flow ${header.flowUuid} in ${body} ms" )
+            .endDoTry()
+            .doCatch( Exception.class )
+                .bean( flowScanStatistics, "fail" )
+                .log( LoggingLevel.ERROR, LOGGER, "Error while scanning flow ${header.flowUuid} => ${exception.message}" )
+            .doFinally()
+                .bean( runsPagePrefetcher, "discard" )
             .end();
+
+        from( "direct:processRunsPage" )
+            .routeId( "Process RapidPro Runs Page" )
+            .process( runsPagePrefetcher )
+            .log( LoggingLevel.DEBUG, LOGGER, "Fetched flow runs from ${exchangeProperty.nextRunsPageUrl}" )
+            .setProperty( "runsPage", runsPageReader )
+            .bean( runsPageCheckpointer, "begin" )
+            .split( exchangeProperty( "runsPage" ) ).streaming()
+                .filter( PredicateBuilder.and( simple( "${body[exited_on]} != null && ${body[exit_type]} == 'completed'" ),
+                    method( runsPageCheckpointer, "isLeftToNextScan" ).isEqualTo( false ) ) )
+                .choice().when( simple( "${body[values][data_set_code]} == null" ) )
+                    .log( LoggingLevel.ERROR, LOGGER, "Cannot process run for flow definition ${header.flowUuid} because the data set code is missing. Hint: save the data set code to a flow result named `data_set_code` in RapidPro" )
+                .otherwise()
+                    .setHeader( "dataSetCode", simple( "${body[values][data_set_code][value]}" ) )
+                    .setHeader( "orgUnitId" ).ognl( "request.body['values']['org_unit_id'] == null ? null : request.body['values']['org_unit_id']['value']" )
+                    .setHeader( "reportPeriodOffset" ).ognl( "request.body['values']['report_period_offset'] == null ? null : request.body['values']['report_period_offset']['value']" )
+                    .transform( datasonnet( "resource:classpath:webhook.ds", String.class, "application/x-java-object", "application/json" ) )
+                    .process( reportMessageGroupIdSetter )
+                    .bean( runsPageCheckpointer, "collect" )
+                    .log( LoggingLevel.DEBUG, LOGGER, "Enqueued flow run [data set code = ${header.dataSetCode},report period offset = ${header.reportPeriodOffset},content = ${body}]" )
+                .end()
+            .end()
+            .bean( runsPageCheckpointer, "commit" )
+            .bean( flowScanStatistics, "countEnqueued" )
+            .bean( flowScanStatistics, "countRuns" );
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.route;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.hisp.dhis.integration.rapidpro.processor.RecordPruner;
+import org.hisp.dhis.integration.rapidpro.processor.SuccessLogArchiver;
+import org.hisp.dhis.integration.rapidpro.processor.SuccessLogPartitioner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Component
+public class RetentionRouteBuilder extends AbstractRouteBuilder
+{
+    @Autowired
+    private RecordPruner recordPruner;
+
+    @Autowired
+    private SuccessLogArchiver successLogArchiver;
+
+    @Autowired
+    private SuccessLogPartitioner successLogPartitioner;
+
+    @Override
+    protected void doConfigure()
+    {
+        from( "servlet:tasks/pruneRecords?muteException=true" )
+            .removeHeaders( "*" )
+            .to( "direct:pruneRecords" )
+            .setHeader( Exchange.CONTENT_TYPE, constant( "application/json" ) )
+            .marshal().json();
+
+        from( "quartz://retention?cron={{retention.schedule.expression:0 0 2 * * ?}}&stateful=true" )
+            .routeId( "Schedule Record Pruning" )
+            .to( "direct:pruneRecords" );
+
+        from( "direct:pruneRecords" )
+            .routeId( "Prune Records" )
+            .process( recordPruner )
+            .log( LoggingLevel.INFO, LOGGER,
+                "Pruned ${body[successLog]} success log row/s and ${body[deadLetterChannel]} dead letter channel row/s in ${body[duration]} ms" );
+
+        from( "servlet:tasks/archiveSuccessLog?muteException=true" )
+            .removeHeaders( "*" )
+            .to( "direct:archiveSuccessLog" )
+            .setHeader( Exchange.CONTENT_TYPE, constant( "application/json" ) )
+            .marshal().json();
+
+        from( "quartz://archive?cron={{archive.schedule.expression:0 0 1 * * ?}}&stateful=true" )
+            .routeId( "Schedule Success Log Archival" )
+            .to( "direct:archiveSuccessLog" );
+
+        from( "direct:archiveSuccessLog" )
+            .routeId( "Archive Success Log" )
+            .process( successLogArchiver )
+            .log( LoggingLevel.INFO, LOGGER,
+                "Archived ${body[archived]} success log row/s to ${body[files]} file/s in ${body[duration]} ms" );
+
+        from( "timer://successLogPartitions?repeatCount=1" )
+            .routeId( "Create Initial Success Log Partitions" )
+            .to( "direct:createSuccessLogPartitions" );
+
+        from( "quartz://successLogPartitions?cron={{success.log.partition.schedule.expression:0 0 0 * * ?}}&stateful=true" )
+            .routeId( "Schedule Success Log Partition Creation" )
+            .to( "direct:createSuccessLogPartitions" );
+
+        from( "direct:createSuccessLogPartitions" )
+            .routeId( "Create Success Log Partitions" )
+            .process( successLogPartitioner );
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.hisp.dhis.api.model.v40_0.User;
 import org.hisp.dhis.integration.rapidpro.expression.IterableReader;
+import org.hisp.dhis.integration.rapidpro.metadata.ContactOrgUnitIdCache;
 import org.hisp.dhis.integration.rapidpro.processor.ExistingUserEnumerator;
 import org.hisp.dhis.integration.rapidpro.processor.NewUserEnumerator;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -51,6 +52,9 @@ public class SyncRouteBuilder extends AbstractRouteBuilder
     @Autowired
     private ExistingUserEnumerator existingUserEnumerator;
 
+    @Autowired
+    private ContactOrgUnitIdCache contactOrgUnitIdCache;
+
     @Value( "${org.unit.id.scheme}" )
     private String orgUnitIdScheme;
 
@@ -95,6 +99,7 @@ public class SyncRouteBuilder extends AbstractRouteBuilder
                     .end()
                 .end()
             .end()
+            .bean( contactOrgUnitIdCache, "invalidateMissing" )
             .log( LoggingLevel.INFO, LOGGER, "Completed synchronisation of RapidPro contacts with DHIS2 users" );
 
         from( "direct:createContact" )
@@ -116,6 +121,7 @@ public class SyncRouteBuilder extends AbstractRouteBuilder
             .setHeader( "Authorization", constant( "Token {{rapidpro.api.token}}" ) )
             .log( LoggingLevel.DEBUG, LOGGER, "Updating RapidPro contact ${exchangeProperty.rapidProUuid}" )
             .toD( "{{rapidpro.api.url}}/contacts.json?uuid=${exchangeProperty.rapidProUuid}&httpMethod=POST&okStatusCodeRange=200-499" )
+            .bean( contactOrgUnitIdCache, "invalidate(${exchangeProperty.rapidProUuid})" )
             .choice().when( header( Exchange.HTTP_RESPONSE_CODE ).isNotEqualTo( "200" ) )
                 .log( LoggingLevel.WARN, LOGGER, "Unexpected status code when updating RapidPro contact ${exchangeProperty.rapidProUuid} => HTTP ${header.CamelHttpResponseCode}. HTTP response body => ${body}" )
             .end();
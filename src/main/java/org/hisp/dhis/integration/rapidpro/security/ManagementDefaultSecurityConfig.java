@@ -44,7 +44,7 @@ public class ManagementDefaultSecurityConfig
         Exception
     {
         return http.requestMatchers()
-            .antMatchers( "/management/**", "/services/tasks/**", "/login", "/logout" )
+            .antMatchers( "/management/**", "/services/tasks/**", "/services/audit/**", "/login", "/logout" )
             .and().authorizeRequests()
             .anyRequest().authenticated()
             .and().csrf()
@@ -12,11 +12,39 @@ CREATE TABLE IF NOT EXISTS DEAD_LETTER_CHANNEL (
 
 CREATE INDEX ON DEAD_LETTER_CHANNEL(status);
 
+ALTER TABLE DEAD_LETTER_CHANNEL ADD COLUMN IF NOT EXISTS attempt_count INTEGER NOT NULL DEFAULT 0;
+
+ALTER TABLE DEAD_LETTER_CHANNEL ADD COLUMN IF NOT EXISTS next_attempt_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP;
+
+CREATE INDEX IF NOT EXISTS dead_letter_channel_status_next_attempt_at_idx ON DEAD_LETTER_CHANNEL(status, next_attempt_at);
+
+ALTER TABLE DEAD_LETTER_CHANNEL ADD COLUMN IF NOT EXISTS payload_format VARCHAR NOT NULL DEFAULT 'JSON';
+
+ALTER TABLE DEAD_LETTER_CHANNEL ADD COLUMN IF NOT EXISTS compressed_payload VARBINARY;
+
+ALTER TABLE DEAD_LETTER_CHANNEL ALTER COLUMN payload DROP NOT NULL;
+
+CREATE INDEX IF NOT EXISTS dead_letter_channel_status_last_processed_at_idx ON DEAD_LETTER_CHANNEL(status, last_processed_at);
+
+CREATE INDEX IF NOT EXISTS dead_letter_channel_created_at_id_idx ON DEAD_LETTER_CHANNEL(created_at, id);
+
+CREATE INDEX IF NOT EXISTS dead_letter_channel_data_set_code_created_at_id_idx ON DEAD_LETTER_CHANNEL(data_set_code, created_at, id);
+
+CREATE INDEX IF NOT EXISTS dead_letter_channel_organisation_unit_id_created_at_id_idx ON DEAD_LETTER_CHANNEL(organisation_unit_id, created_at, id);
+
 CREATE TABLE IF NOT EXISTS POLLER (
     flow_uuid    VARCHAR                   PRIMARY KEY,
     last_run_at  TIMESTAMP WITH TIME ZONE  NOT NULL DEFAULT CURRENT_TIMESTAMP
 );
 
+CREATE TABLE IF NOT EXISTS PENDING_RUN (
+    flow_uuid    VARCHAR                   NOT NULL,
+    run_uuid     VARCHAR                   NOT NULL,
+    modified_on  TIMESTAMP WITH TIME ZONE  NOT NULL,
+    checked_at   TIMESTAMP WITH TIME ZONE  NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (flow_uuid, run_uuid)
+);
+
 CREATE TABLE IF NOT EXISTS TOKEN (
     value_  VARCHAR PRIMARY KEY
 );
@@ -30,4 +58,60 @@ CREATE TABLE IF NOT EXISTS SUCCESS_LOG (
     report_period_offset    INTEGER                             NOT NULL,
     organisation_unit_id    VARCHAR,
     created_at              TIMESTAMP WITH TIME ZONE            NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+ALTER TABLE SUCCESS_LOG ADD COLUMN IF NOT EXISTS status VARCHAR NOT NULL DEFAULT 'IMPORTED';
+
+ALTER TABLE SUCCESS_LOG ADD COLUMN IF NOT EXISTS payload_format VARCHAR NOT NULL DEFAULT 'JSON';
+
+ALTER TABLE SUCCESS_LOG ADD COLUMN IF NOT EXISTS compressed_dhis_request VARBINARY;
+
+ALTER TABLE SUCCESS_LOG ADD COLUMN IF NOT EXISTS compressed_dhis_response VARBINARY;
+
+ALTER TABLE SUCCESS_LOG ADD COLUMN IF NOT EXISTS compressed_rapidpro_payload VARBINARY;
+
+ALTER TABLE SUCCESS_LOG ALTER COLUMN dhis_request DROP NOT NULL;
+
+ALTER TABLE SUCCESS_LOG ALTER COLUMN dhis_response DROP NOT NULL;
+
+ALTER TABLE SUCCESS_LOG ALTER COLUMN rapidpro_payload DROP NOT NULL;
+
+CREATE INDEX IF NOT EXISTS success_log_created_at_id_idx ON SUCCESS_LOG(created_at, id);
+
+CREATE INDEX IF NOT EXISTS success_log_data_set_code_created_at_id_idx ON SUCCESS_LOG(data_set_code, created_at, id);
+
+CREATE INDEX IF NOT EXISTS success_log_organisation_unit_id_created_at_id_idx ON SUCCESS_LOG(organisation_unit_id, created_at, id);
+
+CREATE TABLE IF NOT EXISTS IMPORT_JOB (
+    id                      INTEGER                             PRIMARY KEY AUTO_INCREMENT,
+    job_id                  VARCHAR                             NOT NULL,
+    job_type                VARCHAR                             NOT NULL,
+    dhis_request            VARCHAR                             NOT NULL,
+    rapidpro_payload        VARCHAR                             NOT NULL,
+    data_set_code           VARCHAR                             NOT NULL,
+    report_period_offset    INTEGER                             NOT NULL,
+    organisation_unit_id    VARCHAR,
+    period                  VARCHAR                             NOT NULL,
+    created_at              TIMESTAMP WITH TIME ZONE            NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    last_polled_at          TIMESTAMP WITH TIME ZONE            NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+ALTER TABLE IMPORT_JOB ADD COLUMN IF NOT EXISTS dead_letter_channel_id BIGINT;
+
+ALTER TABLE IMPORT_JOB ADD COLUMN IF NOT EXISTS superseded_reports VARCHAR;
+
+CREATE ALIAS IF NOT EXISTS GUNZIP FOR 'org.hisp.dhis.integration.rapidpro.PayloadCompressor.gunzip';
+
+CREATE TABLE IF NOT EXISTS REPORT_AGGREGATION (
+    aggregator              VARCHAR                             NOT NULL,
+    aggregation_key         VARCHAR                             NOT NULL,
+    exchange                VARBINARY                           NOT NULL,
+    PRIMARY KEY (aggregator, aggregation_key)
+);
+
+CREATE TABLE IF NOT EXISTS REPORT_AGGREGATION_COMPLETED (
+    aggregator              VARCHAR                             NOT NULL,
+    exchange_id             VARCHAR                             NOT NULL,
+    exchange                VARBINARY                           NOT NULL,
+    PRIMARY KEY (aggregator, exchange_id)
 );
\ No newline at end of file
@@ -0,0 +1,18 @@
+CREATE TABLE IF NOT EXISTS SUCCESS_LOG (
+    id                          BIGSERIAL,
+    dhis_request                VARCHAR,
+    dhis_response               VARCHAR,
+    rapidpro_payload            VARCHAR,
+    data_set_code               VARCHAR                             NOT NULL,
+    report_period_offset        INTEGER                             NOT NULL,
+    organisation_unit_id        VARCHAR,
+    created_at                  TIMESTAMP WITH TIME ZONE            NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    status                      VARCHAR                             NOT NULL DEFAULT 'IMPORTED',
+    payload_format              VARCHAR                             NOT NULL DEFAULT 'JSON',
+    compressed_dhis_request     BYTEA,
+    compressed_dhis_response    BYTEA,
+    compressed_rapidpro_payload BYTEA,
+    PRIMARY KEY (id, created_at)
+) PARTITION BY RANGE (created_at);
+
+CREATE TABLE IF NOT EXISTS SUCCESS_LOG_DEFAULT PARTITION OF SUCCESS_LOG DEFAULT;
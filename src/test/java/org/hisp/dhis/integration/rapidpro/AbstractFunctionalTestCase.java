@@ -108,10 +108,18 @@ public class AbstractFunctionalTestCase
         System.clearProperty( "report.delivery.schedule.expression" );
         System.clearProperty( "rapidpro.flow.uuids" );
         System.clearProperty( "rapidpro.webhook.enabled" );
+        System.clearProperty( "report.delivery.async.enabled" );
+        System.clearProperty( "report.delivery.async.poll.period" );
+        System.clearProperty( "report.delivery.async.timeout" );
+        System.clearProperty( "report.delivery.coalesce.window" );
+        System.clearProperty( "report.delivery.validation.enabled" );
 
         jdbcTemplate.execute( "TRUNCATE TABLE DEAD_LETTER_CHANNEL" );
         jdbcTemplate.execute( "TRUNCATE TABLE SUCCESS_LOG" );
         jdbcTemplate.execute( "TRUNCATE TABLE MESSAGES" );
+        jdbcTemplate.execute( "TRUNCATE TABLE IMPORT_JOB" );
+        jdbcTemplate.execute( "TRUNCATE TABLE REPORT_AGGREGATION" );
+        jdbcTemplate.execute( "TRUNCATE TABLE REPORT_AGGREGATION_COMPLETED" );
 
         for ( Map<String, Object> contact : fetchRapidProContacts() )
         {
@@ -35,7 +35,9 @@ import org.apache.camel.impl.DefaultCamelContext;
 import org.apache.camel.support.DefaultExchange;
 import org.apache.camel.support.DefaultMessage;
 import org.hisp.dhis.integration.rapidpro.aggregationStrategy.ContactOrgUnitIdAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.metadata.ContactOrgUnitIdCache;
 import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.IOException;
 import java.io.PipedInputStream;
@@ -45,9 +47,25 @@ import java.util.Map;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class ContactOrgUnitIdAggrStrategyTestCase
 {
+    private ContactOrgUnitIdCache contactOrgUnitIdCache;
+
+    private ContactOrgUnitIdAggrStrategy newContactOrgUnitIdAggrStrategy()
+    {
+        contactOrgUnitIdCache = new ContactOrgUnitIdCache();
+        ReflectionTestUtils.setField( contactOrgUnitIdCache, "maxSize", 100 );
+        ReflectionTestUtils.setField( contactOrgUnitIdCache, "ttl", 60000 );
+        ReflectionTestUtils.setField( contactOrgUnitIdCache, "negativeTtl", 60000 );
+
+        ContactOrgUnitIdAggrStrategy contactOrgUnitIdAggrStrategy = new ContactOrgUnitIdAggrStrategy();
+        ReflectionTestUtils.setField( contactOrgUnitIdAggrStrategy, "contactOrgUnitIdCache", contactOrgUnitIdCache );
+        return contactOrgUnitIdAggrStrategy;
+    }
+
     @Test
     public void testAggregateGivenInputStreamInNewExchangeBody()
         throws
@@ -71,7 +89,7 @@ public class ContactOrgUnitIdAggrStrategyTestCase
         newMessage.setBody( pipedInputStream );
         newExchange.setMessage( newMessage );
 
-        ContactOrgUnitIdAggrStrategy contactOrgUnitIdAggrStrategy = new ContactOrgUnitIdAggrStrategy();
+        ContactOrgUnitIdAggrStrategy contactOrgUnitIdAggrStrategy = newContactOrgUnitIdAggrStrategy();
         Exchange aggregateExchange = contactOrgUnitIdAggrStrategy.aggregate( oldExchange, newExchange );
         assertEquals( "fdc6uOvgoji", aggregateExchange.getMessage().getHeader( "orgUnitId" ) );
     }
@@ -94,8 +112,55 @@ public class ContactOrgUnitIdAggrStrategyTestCase
                 List.of( Map.of( "fields", Map.of( "dhis2_organisation_unit_id", "fdc6uOvgoji" ) ) ) ) ) );
         newExchange.setMessage( newMessage );
 
-        ContactOrgUnitIdAggrStrategy contactOrgUnitIdAggrStrategy = new ContactOrgUnitIdAggrStrategy();
+        ContactOrgUnitIdAggrStrategy contactOrgUnitIdAggrStrategy = newContactOrgUnitIdAggrStrategy();
         Exchange aggregateExchange = contactOrgUnitIdAggrStrategy.aggregate( oldExchange, newExchange );
         assertEquals( "fdc6uOvgoji", aggregateExchange.getMessage().getHeader( "orgUnitId" ) );
     }
+
+    @Test
+    public void testAggregateCachesOrgUnitId()
+        throws
+        IOException
+    {
+        CamelContext camelContext = new DefaultCamelContext();
+        String contactUuid = UUID.randomUUID().toString();
+
+        Exchange oldExchange = new DefaultExchange( camelContext );
+        oldExchange.getMessage().setBody( Map.of( "contact", Map.of( "uuid", contactUuid ) ) );
+
+        Exchange newExchange = new DefaultExchange( camelContext );
+        newExchange.getMessage().setBody( new ObjectMapper().writeValueAsString( Map.of( "results",
+            List.of( Map.of( "fields", Map.of( "dhis2_organisation_unit_id", "fdc6uOvgoji" ) ) ) ) ) );
+
+        newContactOrgUnitIdAggrStrategy().aggregate( oldExchange, newExchange );
+        assertEquals( "fdc6uOvgoji", contactOrgUnitIdCache.get( contactUuid ) );
+        assertEquals( 1, contactOrgUnitIdCache.getHits() );
+    }
+
+    @Test
+    public void testAggregateCachesMissingOrgUnitId()
+        throws
+        IOException
+    {
+        CamelContext camelContext = new DefaultCamelContext();
+        String contactUuid = UUID.randomUUID().toString();
+
+        Exchange oldExchange = new DefaultExchange( camelContext );
+        oldExchange.getMessage().setBody( Map.of( "contact", Map.of( "uuid", contactUuid ) ) );
+
+        Exchange newExchange = new DefaultExchange( camelContext );
+        newExchange.getMessage().setBody( new ObjectMapper().writeValueAsString( Map.of( "results", List.of() ) ) );
+
+        ContactOrgUnitIdAggrStrategy contactOrgUnitIdAggrStrategy = newContactOrgUnitIdAggrStrategy();
+        Exception aggregateException = assertThrows( Exception.class,
+            () -> contactOrgUnitIdAggrStrategy.aggregate( oldExchange, newExchange ) );
+        Exception cacheException = assertThrows( Exception.class, () -> contactOrgUnitIdCache.get( contactUuid ) );
+        assertEquals( "No results for path: $['results'][0]['fields']['dhis2_organisation_unit_id']",
+            cacheException.getMessage() );
+        assertEquals( aggregateException.getMessage(), cacheException.getMessage() );
+        assertEquals( 1, contactOrgUnitIdCache.getNegativeHits() );
+
+        contactOrgUnitIdCache.invalidateMissing();
+        assertNull( contactOrgUnitIdCache.get( contactUuid ) );
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetBatchAggrStrategy;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DataValueSetBatchAggrStrategyTestCase
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Test
+    public void testAggregatePushesReportFieldsDownIntoDataValues()
+        throws Exception
+    {
+        DataValueSetBatchAggrStrategy dataValueSetBatchAggrStrategy = new DataValueSetBatchAggrStrategy();
+        ReflectionTestUtils.setField( dataValueSetBatchAggrStrategy, "objectMapper", OBJECT_MAPPER );
+        CamelContext camelContext = new DefaultCamelContext();
+
+        Exchange firstExchange = newReportExchange( camelContext,
+            Map.of( "dataSet", "MAL_YEARLY", "orgUnit", "acme", "period", "2023", "attributeOptionCombo", "FUNDER_A",
+                "dataValues", List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "2" ) ) ) );
+        Exchange secondExchange = newReportExchange( camelContext,
+            Map.of( "dataSet", "MAL_YEARLY", "orgUnit", "foo", "period", "2023", "dataValues",
+                List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "3" ),
+                    Map.of( "dataElement", "MAL_POP_TOTAL", "attributeOptionCombo", "FUNDER_B", "value", "7" ) ) ) );
+
+        Exchange batchExchange = dataValueSetBatchAggrStrategy.aggregate( null, firstExchange );
+        batchExchange = dataValueSetBatchAggrStrategy.aggregate( batchExchange, secondExchange );
+
+        Map<String, Object> batchDataValueSet = batchExchange.getMessage().getBody( Map.class );
+        assertEquals( List.of(
+                Map.of( "dataElement", "GEN_EXT_FUND", "value", "2", "orgUnit", "acme", "period", "2023",
+                    "attributeOptionCombo", "FUNDER_A" ),
+                Map.of( "dataElement", "GEN_EXT_FUND", "value", "3", "orgUnit", "foo", "period", "2023" ),
+                Map.of( "dataElement", "MAL_POP_TOTAL", "value", "7", "orgUnit", "foo", "period", "2023",
+                    "attributeOptionCombo", "FUNDER_B" ) ),
+            batchDataValueSet.get( "dataValues" ) );
+        assertEquals( 2, batchExchange.getProperty( DataValueSetBatchAggrStrategy.BATCHED_REPORTS_PROPERTY,
+            List.class ).size() );
+    }
+
+    private Exchange newReportExchange( CamelContext camelContext, Map<String, Object> dataValueSet )
+        throws Exception
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setBody( OBJECT_MAPPER.writeValueAsString( dataValueSet ) );
+        return exchange;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetCoalesceAggrStrategy;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DataValueSetCoalesceAggrStrategyTestCase
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Test
+    public void testAggregateOverwritesDataValuesOfEarlierReport()
+        throws IOException
+    {
+        DataValueSetCoalesceAggrStrategy dataValueSetCoalesceAggrStrategy = new DataValueSetCoalesceAggrStrategy();
+        ReflectionTestUtils.setField( dataValueSetCoalesceAggrStrategy, "objectMapper", OBJECT_MAPPER );
+        CamelContext camelContext = new DefaultCamelContext();
+
+        Exchange firstExchange = newReportExchange( camelContext, "first",
+            List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "2" ),
+                Map.of( "dataElement", "MAL_POP_TOTAL", "value", "10" ) ) );
+        Exchange secondExchange = newReportExchange( camelContext, "second",
+            List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "3" ),
+                Map.of( "dataElement", "MAL_POP_TOTAL", "categoryOptionCombo", "MAL-0514Y", "value", "7" ) ) );
+
+        Exchange aggregatedExchange = dataValueSetCoalesceAggrStrategy.aggregate( null, firstExchange );
+        aggregatedExchange = dataValueSetCoalesceAggrStrategy.aggregate( aggregatedExchange, secondExchange );
+
+        Map<String, Object> dataValueSet = OBJECT_MAPPER.readValue(
+            aggregatedExchange.getMessage().getBody( String.class ), Map.class );
+        assertEquals( "MAL_YEARLY", dataValueSet.get( "dataSet" ) );
+        assertEquals( List.of( Map.of( "dataElement", "MAL_POP_TOTAL", "value", "10" ),
+                Map.of( "dataElement", "GEN_EXT_FUND", "value", "3" ),
+                Map.of( "dataElement", "MAL_POP_TOTAL", "categoryOptionCombo", "MAL-0514Y", "value", "7" ) ),
+            dataValueSet.get( "dataValues" ) );
+        assertEquals( "second", aggregatedExchange.getMessage().getHeader( "originalPayload" ) );
+
+        List<Map<String, Object>> supersededReports = aggregatedExchange.getProperty(
+            DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY, List.class );
+        assertEquals( 1, supersededReports.size() );
+        assertEquals( "first", supersededReports.get( 0 ).get( "originalPayload" ) );
+        assertEquals( "fdc6uOvgoji", supersededReports.get( 0 ).get( "orgUnitId" ) );
+    }
+
+    @Test
+    public void testIsMaxAgeReached()
+        throws IOException
+    {
+        DataValueSetCoalesceAggrStrategy dataValueSetCoalesceAggrStrategy = new DataValueSetCoalesceAggrStrategy();
+        ReflectionTestUtils.setField( dataValueSetCoalesceAggrStrategy, "objectMapper", OBJECT_MAPPER );
+        ReflectionTestUtils.setField( dataValueSetCoalesceAggrStrategy, "maxAge", 60000L );
+        CamelContext camelContext = new DefaultCamelContext();
+
+        Exchange aggregatedExchange = dataValueSetCoalesceAggrStrategy.aggregate( null,
+            newReportExchange( camelContext, "first", List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "2" ) ) ) );
+        assertFalse( dataValueSetCoalesceAggrStrategy.isMaxAgeReached( aggregatedExchange ) );
+
+        aggregatedExchange.setProperty( DataValueSetCoalesceAggrStrategy.COALESCE_STARTED_AT_PROPERTY,
+            System.currentTimeMillis() - 60000 );
+        aggregatedExchange = dataValueSetCoalesceAggrStrategy.aggregate( aggregatedExchange,
+            newReportExchange( camelContext, "second", List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "3" ) ) ) );
+        assertTrue( dataValueSetCoalesceAggrStrategy.isMaxAgeReached( aggregatedExchange ) );
+    }
+
+    @Test
+    public void testWriteAndReadSupersededReports()
+        throws IOException
+    {
+        DataValueSetCoalesceAggrStrategy dataValueSetCoalesceAggrStrategy = new DataValueSetCoalesceAggrStrategy();
+        ReflectionTestUtils.setField( dataValueSetCoalesceAggrStrategy, "objectMapper", OBJECT_MAPPER );
+        CamelContext camelContext = new DefaultCamelContext();
+
+        Exchange aggregatedExchange = dataValueSetCoalesceAggrStrategy.aggregate( null,
+            newReportExchange( camelContext, "first", List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "2" ) ) ) );
+        assertNull( dataValueSetCoalesceAggrStrategy.writeSupersededReports( aggregatedExchange ) );
+
+        aggregatedExchange = dataValueSetCoalesceAggrStrategy.aggregate( aggregatedExchange,
+            newReportExchange( camelContext, "second", List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "3" ) ) ) );
+        List<Map<String, Object>> supersededReports = dataValueSetCoalesceAggrStrategy.readSupersededReports(
+            dataValueSetCoalesceAggrStrategy.writeSupersededReports( aggregatedExchange ) );
+        assertEquals( aggregatedExchange.getProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY ),
+            supersededReports );
+        assertEquals( "first", supersededReports.get( 0 ).get( "originalPayload" ) );
+    }
+
+    private Exchange newReportExchange( CamelContext camelContext, String originalPayload,
+        List<Map<String, Object>> dataValues )
+        throws IOException
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "originalPayload", originalPayload );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setHeader( "orgUnitId", "fdc6uOvgoji" );
+        exchange.getMessage().setHeader( "reportPeriodOffset", -1 );
+        exchange.getMessage().setHeader( "period", "2021" );
+        exchange.getMessage().setBody( OBJECT_MAPPER.writeValueAsString(
+            Map.of( "dataSet", "MAL_YEARLY", "orgUnit", "fdc6uOvgoji", "period", "2021", "dataValues",
+                dataValues ) ) );
+        return exchange;
+    }
+}
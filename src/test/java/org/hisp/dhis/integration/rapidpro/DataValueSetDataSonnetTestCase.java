@@ -183,6 +183,7 @@ public class DataValueSetDataSonnetTestCase
         Map dataValueSet = new ValueBuilder( dsExpression ).evaluate( exchange, Map.class );
 
         assertNotNull( dataValueSet.get( "completedDate" ) );
+        assertNull( dataValueSet.get( "completeDate" ) );
         assertNull( dataValueSet.get( "attributeOptionCombo" ) );
         assertEquals( "fdc6uOvgoji", dataValueSet.get( "orgUnit" ) );
         assertEquals( "MAL_YEARLY", dataValueSet.get( "dataSet" ) );
@@ -206,6 +207,21 @@ public class DataValueSetDataSonnetTestCase
         assertEquals( 0, logCountDownLatch.getCount() );
     }
 
+    @Test
+    public void testMappingGivenImportCompletionMode()
+        throws IOException
+    {
+        exchange.getMessage().setBody( OBJECT_MAPPER.readValue( StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() ), Map.class ) );
+        exchange.setProperty( "completionMode", "import" );
+
+        Map dataValueSet = new ValueBuilder( dsExpression ).evaluate( exchange, Map.class );
+
+        assertNotNull( dataValueSet.get( "completeDate" ) );
+        assertEquals( dataValueSet.get( "completedDate" ), dataValueSet.get( "completeDate" ) );
+    }
+
     @Test
     public void testMappingGivenValidCategoryOptionComboCode()
         throws IOException
@@ -308,4 +324,23 @@ public class DataValueSetDataSonnetTestCase
 
         assertEquals( 0, logCountDownLatch.getCount() );
     }
+
+    @Test
+    public void testMappingKeepsUnknownDataElementCodeGivenValidationEnabled()
+        throws IOException
+    {
+        exchange.getMessage().setBody( OBJECT_MAPPER.readValue( StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() ), Map.class ) );
+        exchange.setProperty( "validationEnabled", "true" );
+
+        Map dataValueSet = new ValueBuilder( dsExpression ).evaluate( exchange, Map.class );
+
+        List<Map<String, Object>> dataValues = (List<Map<String, Object>>) dataValueSet.get( "dataValues" );
+        assertEquals( 5, dataValues.size() );
+        assertEquals( 1, dataValues.stream().filter(
+            dataValue -> dataValue.get( "dataElement" ).equals( "msg" ) && dataValue.get( "value" )
+                .equals( "APT.2.4.6" ) ).count() );
+        assertEquals( 1, logCountDownLatch.getCount() );
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+/**
+ * Private in-memory H2 database initialised from <code>schema-h2.sql</code> for tests that exercise the SQL in
+ * <code>sql.properties</code>.
+ */
+public class H2TestDatabase
+{
+    private final DriverManagerDataSource dataSource;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Properties sqlProperties = new Properties();
+
+    public H2TestDatabase()
+        throws IOException
+    {
+        dataSource = new DriverManagerDataSource(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH" );
+        new ResourceDatabasePopulator( new ClassPathResource( "schema-h2.sql" ) ).execute( dataSource );
+        jdbcTemplate = new JdbcTemplate( dataSource );
+
+        try ( InputStream inputStream = new ClassPathResource( "sql.properties" ).getInputStream() )
+        {
+            sqlProperties.load( inputStream );
+        }
+    }
+
+    public DriverManagerDataSource getDataSource()
+    {
+        return dataSource;
+    }
+
+    public JdbcTemplate getJdbcTemplate()
+    {
+        return jdbcTemplate;
+    }
+
+    public DataSourceTransactionManager newTransactionManager()
+    {
+        return new DataSourceTransactionManager( dataSource );
+    }
+
+    /**
+     * Returns the H2 flavour of the statement with the given key in <code>sql.properties</code>.
+     */
+    public String getSql( String key )
+    {
+        String sql = sqlProperties.getProperty( key + ".h2" );
+        if ( sql == null )
+        {
+            throw new IllegalArgumentException( String.format( "Unknown SQL statement '%s'", key ) );
+        }
+        return sql;
+    }
+}
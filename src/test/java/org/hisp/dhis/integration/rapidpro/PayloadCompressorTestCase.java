@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PayloadCompressorTestCase
+{
+    private JdbcTemplate jdbcTemplate;
+
+    private PayloadCompressor payloadCompressor;
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        H2TestDatabase h2TestDatabase = new H2TestDatabase();
+        jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+
+        payloadCompressor = new PayloadCompressor();
+        ReflectionTestUtils.setField( payloadCompressor, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( payloadCompressor, "compression", "gzip" );
+        ReflectionTestUtils.setField( payloadCompressor, "migrationBatchSize", 2 );
+        ReflectionTestUtils.setField( payloadCompressor, "dlcSelectSql",
+            h2TestDatabase.getSql( "payload.migration.dlc.select" ) );
+        ReflectionTestUtils.setField( payloadCompressor, "dlcUpdateSql",
+            h2TestDatabase.getSql( "payload.migration.dlc.update" ) );
+        ReflectionTestUtils.setField( payloadCompressor, "successLogSelectSql",
+            h2TestDatabase.getSql( "payload.migration.success.log.select" ) );
+        ReflectionTestUtils.setField( payloadCompressor, "successLogUpdateSql",
+            h2TestDatabase.getSql( "payload.migration.success.log.update" ) );
+    }
+
+    @Test
+    public void testCompress()
+    {
+        Map<String, Object> values = new HashMap<>( Map.of( "payload", "{\"contact\":{}}" ) );
+        payloadCompressor.compress( values, "payload" );
+
+        assertNull( values.get( "payload" ) );
+        assertEquals( PayloadCompressor.GZIP_FORMAT, values.get( "payloadFormat" ) );
+        assertEquals( "{\"contact\":{}}",
+            PayloadCompressor.decode( values.get( "payloadFormat" ), null, values.get( "compressedPayload" ) ) );
+    }
+
+    @Test
+    public void testCompressGivenNoCompression()
+    {
+        ReflectionTestUtils.setField( payloadCompressor, "compression", "none" );
+        Map<String, Object> values = new HashMap<>( Map.of( "payload", "{\"contact\":{}}" ) );
+        payloadCompressor.compress( values, "payload" );
+
+        assertEquals( "{\"contact\":{}}", values.get( "payload" ) );
+        assertNull( values.get( "compressedPayload" ) );
+        assertEquals( PayloadCompressor.JSON_FORMAT, values.get( "payloadFormat" ) );
+    }
+
+    @Test
+    public void testCompressExistingRows()
+    {
+        for ( int i = 0; i < 3; i++ )
+        {
+            jdbcTemplate.update(
+                "INSERT INTO DEAD_LETTER_CHANNEL (payload, report_period_offset, error_message, status) VALUES (?, -1, 'Conflict', 'ERROR')",
+                "{\"id\":" + i + "}" );
+        }
+        jdbcTemplate.update(
+            "INSERT INTO SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, data_set_code, report_period_offset) VALUES ('{}', '{\"status\":\"SUCCESS\"}', '{\"id\":0}', 'MAL_YEARLY', -1)" );
+
+        assertEquals( 4, payloadCompressor.compressExistingRows() );
+        assertEquals( 0, payloadCompressor.compressExistingRows() );
+
+        assertEquals( "{\"id\":2}", jdbcTemplate.queryForObject(
+            "SELECT GUNZIP(compressed_payload) FROM DEAD_LETTER_CHANNEL WHERE payload_format = 'GZIP' AND payload IS NULL ORDER BY id DESC LIMIT 1",
+            String.class ) );
+        assertEquals( "{\"status\":\"SUCCESS\"}", jdbcTemplate.queryForObject(
+            "SELECT GUNZIP(compressed_dhis_response) FROM SUCCESS_LOG WHERE payload_format = 'GZIP'", String.class ) );
+    }
+
+    @Test
+    public void testCompressExistingRowsGivenCompressionIsOff()
+    {
+        ReflectionTestUtils.setField( payloadCompressor, "compression", "none" );
+        jdbcTemplate.update(
+            "INSERT INTO DEAD_LETTER_CHANNEL (payload, report_period_offset, error_message, status) VALUES ('{}', -1, 'Conflict', 'ERROR')" );
+
+        assertThrows( IllegalStateException.class, () -> payloadCompressor.compressExistingRows() );
+        assertEquals( 0, jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL WHERE payload_format = 'GZIP'", Integer.class ) );
+    }
+}
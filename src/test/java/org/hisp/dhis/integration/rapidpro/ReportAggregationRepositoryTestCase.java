@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.BatchReportAggregationRepository;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.CoalesceReportAggregationRepository;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetBatchAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetCoalesceAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.ReportAggregationRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ReportAggregationRepositoryTestCase
+{
+    private H2TestDatabase h2TestDatabase;
+
+    private CamelContext camelContext;
+
+    @BeforeEach
+    public void beforeEach()
+        throws Exception
+    {
+        h2TestDatabase = new H2TestDatabase();
+        camelContext = new DefaultCamelContext();
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void testGetGivenAggregateAddedBeforeRestart()
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        Map<String, Object> dataValueSet = new HashMap<>();
+        dataValueSet.put( "dataSet", "MAL_YEARLY" );
+        dataValueSet.put( "dataValues", new ArrayList<>( List.of( Map.of( "dataElement", "GEN_EXT_FUND" ) ) ) );
+        exchange.getMessage().setBody( dataValueSet );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setHeader( "reportPeriodOffset", -1 );
+        exchange.getMessage().setHeader( "camelContext", camelContext );
+        exchange.setProperty( DataValueSetBatchAggrStrategy.BATCHED_REPORTS_PROPERTY,
+            new ArrayList<>( List.of( Map.of( "orgUnitId", "acme" ) ) ) );
+
+        newReportAggregationRepository( "batch" ).add( camelContext, "MAL_YEARLY", exchange );
+        ReportAggregationRepository reportAggregationRepository = newReportAggregationRepository( "batch" );
+        Exchange storedExchange = reportAggregationRepository.get( camelContext, "MAL_YEARLY" );
+
+        assertEquals( Set.of( "MAL_YEARLY" ), reportAggregationRepository.getKeys() );
+        assertEquals( dataValueSet, storedExchange.getMessage().getBody() );
+        assertEquals( "MAL_YEARLY", storedExchange.getMessage().getHeader( "dataSetCode" ) );
+        assertEquals( -1, storedExchange.getMessage().getHeader( "reportPeriodOffset" ) );
+        assertNull( storedExchange.getMessage().getHeader( "camelContext" ) );
+        assertEquals( List.of( Map.of( "orgUnitId", "acme" ) ),
+            storedExchange.getProperty( DataValueSetBatchAggrStrategy.BATCHED_REPORTS_PROPERTY ) );
+    }
+
+    @Test
+    public void testRemoveKeepsAggregateUntilConfirmed()
+    {
+        ReportAggregationRepository reportAggregationRepository = newReportAggregationRepository( "batch" );
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setBody( "{}" );
+        reportAggregationRepository.add( camelContext, "MAL_YEARLY", exchange );
+
+        reportAggregationRepository.remove( camelContext, "MAL_YEARLY", exchange );
+        assertTrue( reportAggregationRepository.getKeys().isEmpty() );
+        assertNull( reportAggregationRepository.get( camelContext, "MAL_YEARLY" ) );
+        assertEquals( Set.of( exchange.getExchangeId() ), reportAggregationRepository.scan( camelContext ) );
+        Exchange recoveredExchange = reportAggregationRepository.recover( camelContext, exchange.getExchangeId() );
+        assertEquals( exchange.getExchangeId(), recoveredExchange.getExchangeId() );
+        assertEquals( "{}", recoveredExchange.getMessage().getBody() );
+
+        reportAggregationRepository.confirm( camelContext, exchange.getExchangeId() );
+        assertTrue( reportAggregationRepository.scan( camelContext ).isEmpty() );
+        assertNull( reportAggregationRepository.recover( camelContext, exchange.getExchangeId() ) );
+    }
+
+    @Test
+    public void testGetKeysGivenOtherAggregator()
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setBody( "{}" );
+        newReportAggregationRepository( "coalesce" ).add( camelContext, "MAL_YEARLY/acme/2023", exchange );
+
+        assertTrue( newReportAggregationRepository( "batch" ).getKeys().isEmpty() );
+    }
+
+    @Test
+    public void testAggregateGivenRestartBeforeCompletion()
+        throws Exception
+    {
+        List<Object> batches = new CopyOnWriteArrayList<>();
+        startBatchRoute( camelContext, batches );
+        camelContext.createProducerTemplate().sendBodyAndHeader( "direct:batchReport",
+            "{\"dataSet\":\"MAL_YEARLY\",\"orgUnit\":\"acme\",\"period\":\"2023\",\"dataValues\":[{\"dataElement\":\"GEN_EXT_FUND\",\"value\":\"2\"}]}",
+            "dataSetCode", "MAL_YEARLY" );
+        camelContext.stop();
+
+        camelContext = new DefaultCamelContext();
+        startBatchRoute( camelContext, batches );
+        camelContext.createProducerTemplate().sendBodyAndHeader( "direct:batchReport",
+            "{\"dataSet\":\"MAL_YEARLY\",\"orgUnit\":\"acme\",\"period\":\"2023\",\"dataValues\":[{\"dataElement\":\"GEN_DOMESTIC_FUND\",\"value\":\"3\"}]}",
+            "dataSetCode", "MAL_YEARLY" );
+
+        // the aggregator hands the completed batch over to its own thread
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( batches.isEmpty() && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, batches.size() );
+        assertEquals( 2, ((List<?>) ((Map<?, ?>) batches.get( 0 )).get( "dataValues" )).size() );
+    }
+
+    @Test
+    public void testCoalesceGivenRestartBeforeCompletionTimeout()
+        throws Exception
+    {
+        List<Object> reports = new CopyOnWriteArrayList<>();
+        startCoalesceRoute( camelContext, reports );
+        camelContext.createProducerTemplate().sendBodyAndHeader( "direct:coalesceReport",
+            "{\"dataSet\":\"MAL_YEARLY\",\"orgUnit\":\"acme\",\"period\":\"2023\",\"dataValues\":[{\"dataElement\":\"GEN_EXT_FUND\",\"value\":\"2\"}]}",
+            "dataSetCode", "MAL_YEARLY" );
+        camelContext.stop();
+        assertTrue( reports.isEmpty() );
+
+        camelContext = new DefaultCamelContext();
+        startCoalesceRoute( camelContext, reports );
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( reports.isEmpty() && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, reports.size() );
+        assertTrue( ((String) reports.get( 0 )).contains( "GEN_EXT_FUND" ) );
+    }
+
+    private void startCoalesceRoute( CamelContext camelContext, List<Object> reports )
+        throws Exception
+    {
+        DataValueSetCoalesceAggrStrategy dataValueSetCoalesceAggrStrategy = new DataValueSetCoalesceAggrStrategy();
+        ReflectionTestUtils.setField( dataValueSetCoalesceAggrStrategy, "objectMapper", new ObjectMapper() );
+        ReflectionTestUtils.setField( dataValueSetCoalesceAggrStrategy, "maxAge", 300000 );
+        ReportAggregationRepository reportAggregationRepository = newReportAggregationRepository( "coalesce" );
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:coalesceReport" ).aggregate( header( "dataSetCode" ), dataValueSetCoalesceAggrStrategy )
+                    .aggregationRepository( reportAggregationRepository ).completionTimeout( 500 )
+                    .completionTimeoutCheckerInterval( 100 )
+                    .process( exchange -> reports.add( exchange.getMessage().getBody() ) );
+            }
+        } );
+        camelContext.start();
+    }
+
+    private void startBatchRoute( CamelContext camelContext, List<Object> batches )
+        throws Exception
+    {
+        DataValueSetBatchAggrStrategy dataValueSetBatchAggrStrategy = new DataValueSetBatchAggrStrategy();
+        ReflectionTestUtils.setField( dataValueSetBatchAggrStrategy, "objectMapper", new ObjectMapper() );
+        ReportAggregationRepository reportAggregationRepository = newReportAggregationRepository( "batch" );
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:batchReport" ).aggregate( header( "dataSetCode" ), dataValueSetBatchAggrStrategy )
+                    .aggregationRepository( reportAggregationRepository ).completionSize( 2 )
+                    .process( exchange -> batches.add( exchange.getMessage().getBody() ) );
+            }
+        } );
+        camelContext.start();
+    }
+
+    private ReportAggregationRepository newReportAggregationRepository( String aggregator )
+    {
+        ReportAggregationRepository reportAggregationRepository = "batch".equals( aggregator ) ?
+            new BatchReportAggregationRepository() :
+            new CoalesceReportAggregationRepository();
+        ReflectionTestUtils.setField( reportAggregationRepository, "jdbcTemplate", h2TestDatabase.getJdbcTemplate() );
+        ReflectionTestUtils.setField( reportAggregationRepository, "transactionManager",
+            h2TestDatabase.newTransactionManager() );
+        for ( String statement : List.of( "upsert", "select", "keys", "delete", "completed.insert",
+            "completed.select", "completed.ids", "completed.delete" ) )
+        {
+            ReflectionTestUtils.setField( reportAggregationRepository,
+                toFieldName( statement ), h2TestDatabase.getSql( "report.aggregation." + statement ) );
+        }
+        return reportAggregationRepository;
+    }
+
+    private static String toFieldName( String statement )
+    {
+        StringBuilder fieldName = new StringBuilder();
+        for ( String word : statement.split( "\\." ) )
+        {
+            fieldName.append(
+                fieldName.length() == 0 ? word : Character.toUpperCase( word.charAt( 0 ) ) + word.substring( 1 ) );
+        }
+        return fieldName.append( "Sql" ).toString();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.errorhandler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class RedeliveryDeciderTestCase
+{
+    private RedeliveryDecider redeliveryDecider;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        redeliveryDecider = new RedeliveryDecider();
+        ReflectionTestUtils.setField( redeliveryDecider, "errorClassifier", new DefaultErrorClassifier() );
+        ReflectionTestUtils.setField( redeliveryDecider, "maxRedeliveries", 3 );
+        ReflectionTestUtils.setField( redeliveryDecider, "throttledDefaultDelay", 60000L );
+        ReflectionTestUtils.setField( redeliveryDecider, "throttledMaxDelay", 300000L );
+        ReflectionTestUtils.setField( redeliveryDecider, "throttledMaxDuration", 3600000L );
+    }
+
+    @Test
+    public void testMatchesGivenTransientError()
+    {
+        Exchange exchange = newFailedExchange( new RuntimeException( new ConnectException() ), 1 );
+        assertTrue( redeliveryDecider.matches( exchange ) );
+        assertNull( exchange.getMessage().getHeader( Exchange.REDELIVERY_DELAY ) );
+
+        assertFalse( redeliveryDecider.matches( newFailedExchange( new ConnectException(), 4 ) ) );
+        assertEquals( 2, redeliveryDecider.getTransientCount() );
+    }
+
+    @Test
+    public void testMatchesGivenPermanentError()
+    {
+        assertFalse(
+            redeliveryDecider.matches( newFailedExchange( new RemoteDhis2ClientException( "Conflict", 409 ), 1 ) ) );
+        assertFalse( redeliveryDecider.matches(
+            newFailedExchange( new Dhis2RapidProException( "Unknown data set code 'MAL_YEARLY'" ), 1 ) ) );
+        assertEquals( 2, redeliveryDecider.getPermanentCount() );
+        assertEquals( 0, redeliveryDecider.getTransientCount() );
+    }
+
+    @Test
+    public void testMatchesGivenThrottledError()
+    {
+        Exchange exchange = newFailedExchange(
+            new HttpOperationFailedException( "https://rapidpro.io/api/v2/contacts.json", 429, "Too Many Requests",
+                null, Map.of( "Retry-After", "7" ), "" ), 1 );
+        assertTrue( redeliveryDecider.matches( exchange ) );
+        assertEquals( 7000L, exchange.getMessage().getHeader( Exchange.REDELIVERY_DELAY ) );
+
+        exchange = newFailedExchange( new RemoteDhis2ClientException( "Too Many Requests", 429 ), 1 );
+        assertTrue( redeliveryDecider.matches( exchange ) );
+        assertEquals( 60000L, exchange.getMessage().getHeader( Exchange.REDELIVERY_DELAY ) );
+        assertEquals( 2, redeliveryDecider.getThrottledCount() );
+    }
+
+    @Test
+    public void testMatchesGivenThrottledDhis2ErrorWithoutRetryAfter()
+    {
+        Exchange exchange = newFailedExchange(
+            new RuntimeException( new RemoteDhis2ClientException( "Too Many Requests", 429 ) ), 1 );
+        ReflectionTestUtils.setField( redeliveryDecider, "throttledDefaultDelay", 15000L );
+        assertNull( new DefaultErrorClassifier().classify( exchange, exchange.getException() ).getRetryAfter() );
+        assertTrue( redeliveryDecider.matches( exchange ) );
+        assertEquals( 15000L, exchange.getMessage().getHeader( Exchange.REDELIVERY_DELAY ) );
+    }
+
+    @Test
+    public void testMatchesGivenAuthError()
+    {
+        assertTrue(
+            redeliveryDecider.matches( newFailedExchange( new RemoteDhis2ClientException( "Unauthorized", 401 ), 1 ) ) );
+        assertTrue( redeliveryDecider.matches(
+            newFailedExchange( new HttpOperationFailedException( "https://rapidpro.io/api/v2/contacts.json", 403,
+                "Forbidden", null, Map.of(), "" ), 3 ) ) );
+        assertFalse(
+            redeliveryDecider.matches( newFailedExchange( new RemoteDhis2ClientException( "Unauthorized", 401 ), 4 ) ) );
+        assertEquals( 3, redeliveryDecider.getAuthCount() );
+        assertEquals( 0, redeliveryDecider.getPermanentCount() );
+    }
+
+    @Test
+    public void testMatchesGivenThrottledErrorDoesNotConsumeMaxRedeliveries()
+    {
+        Exchange exchange = newFailedExchange( new RemoteDhis2ClientException( "Too Many Requests", 429 ), 0 );
+        for ( int redeliveryCounter = 1; redeliveryCounter <= 10; redeliveryCounter++ )
+        {
+            exchange.getMessage().setHeader( Exchange.REDELIVERY_COUNTER, redeliveryCounter );
+            assertTrue( redeliveryDecider.matches( exchange ) );
+        }
+
+        exchange.setException( new ConnectException() );
+        exchange.getMessage().setHeader( Exchange.REDELIVERY_COUNTER, 11 );
+        assertTrue( redeliveryDecider.matches( exchange ) );
+        exchange.getMessage().setHeader( Exchange.REDELIVERY_COUNTER, 14 );
+        assertFalse( redeliveryDecider.matches( exchange ) );
+    }
+
+    @Test
+    public void testMatchesGivenThrottledErrorBeyondMaxDuration()
+    {
+        Exchange exchange = newFailedExchange( new RemoteDhis2ClientException( "Too Many Requests", 429 ), 1 );
+        exchange.setProperty( RedeliveryDecider.THROTTLED_SINCE_PROPERTY, System.currentTimeMillis() - 3600000L );
+        assertFalse( redeliveryDecider.matches( exchange ) );
+    }
+
+    @Test
+    public void testIsTransient()
+    {
+        assertTrue( redeliveryDecider.isTransient( newFailedExchange( new ConnectException(), 0 ) ) );
+        assertFalse( redeliveryDecider.isTransient(
+            newFailedExchange( new RemoteDhis2ClientException( "Conflict", 409 ), 0 ) ) );
+        assertTrue( redeliveryDecider.isTransient(
+            newFailedExchange( new RemoteDhis2ClientException( "Unauthorized", 401 ), 0 ) ) );
+        assertFalse( redeliveryDecider.isTransient( new DefaultExchange( new DefaultCamelContext() ) ) );
+        assertEquals( 0, redeliveryDecider.getTransientCount() );
+    }
+
+    private Exchange newFailedExchange( Exception exception, int redeliveryCounter )
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.setException( exception );
+        exchange.getMessage().setHeader( Exchange.REDELIVERY_COUNTER, redeliveryCounter );
+        return exchange;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.expression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class RunsPageReaderTestCase
+{
+    private static final String RUNS_PAGE = "{\"previous\":null,\"results\":["
+        + "{\"id\":1,\"uuid\":\"run-1\",\"exited_on\":\"2023-01-01T10:00:00.000Z\",\"exit_type\":\"completed\",\"modified_on\":\"2023-01-01T10:00:00.000Z\",\"values\":{\"data_set_code\":{\"value\":\"MAL_YEARLY\"}}},"
+        + "{\"id\":2,\"uuid\":\"run-2\",\"exited_on\":null,\"exit_type\":null,\"modified_on\":\"2023-01-01T09:00:00.000Z\",\"values\":{}},"
+        + "{\"id\":3,\"uuid\":\"run-3\",\"exited_on\":null,\"exit_type\":null,\"modified_on\":\"2023-01-01T11:00:00.000Z\",\"values\":{}}"
+        + "],\"next\":\"https://rapidpro/api/v2/runs.json?cursor=abc\"}";
+
+    private RunsPageReader newRunsPageReader()
+    {
+        RunsPageReader runsPageReader = new RunsPageReader();
+        ReflectionTestUtils.setField( runsPageReader, "objectMapper", new ObjectMapper() );
+        return runsPageReader;
+    }
+
+    @Test
+    public void testEvaluate()
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "newLastRunAt", Timestamp.from( Instant.parse( "2023-01-02T00:00:00Z" ) ) );
+        exchange.getMessage().setBody( new ByteArrayInputStream( RUNS_PAGE.getBytes( StandardCharsets.UTF_8 ) ) );
+
+        RunsPage runsPage = newRunsPageReader().evaluate( exchange, RunsPage.class );
+        List<Object> ids = new ArrayList<>();
+        runsPage.forEachRemaining( run -> ids.add( run.get( "id" ) ) );
+
+        assertEquals( List.of( 1, 2, 3 ), ids );
+        assertEquals( "https://rapidpro/api/v2/runs.json?cursor=abc", runsPage.getNextPageUrl() );
+        assertEquals( Instant.parse( "2023-01-02T00:00:00Z" ), runsPage.getLastRunAt().toInstant() );
+        assertEquals( Instant.parse( "2023-01-01T11:00:00Z" ), runsPage.getMaxModifiedOn() );
+        assertEquals( Map.of( "run-2", Instant.parse( "2023-01-01T09:00:00Z" ), "run-3",
+            Instant.parse( "2023-01-01T11:00:00Z" ) ), runsPage.getPendingRuns() );
+        assertEquals( List.of( "run-1" ), runsPage.getExitedRuns() );
+        assertEquals( 3, runsPage.getRunCount() );
+        assertFalse( runsPage.hasNext() );
+    }
+
+    @Test
+    public void testEvaluateGivenLastPage()
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        Timestamp newLastRunAt = Timestamp.from( Instant.parse( "2023-01-02T00:00:00Z" ) );
+        exchange.getMessage().setHeader( "newLastRunAt", newLastRunAt );
+        exchange.getMessage().setBody( new ByteArrayInputStream(
+            "{\"next\":null,\"previous\":null,\"results\":[]}".getBytes( StandardCharsets.UTF_8 ) ) );
+
+        RunsPage runsPage = newRunsPageReader().evaluate( exchange, RunsPage.class );
+
+        assertFalse( runsPage.hasNext() );
+        assertNull( runsPage.getNextPageUrl() );
+        assertEquals( newLastRunAt, runsPage.getLastRunAt() );
+    }
+
+    @Test
+    public void testSplit()
+        throws Exception
+    {
+        RunsPageReader runsPageReader = newRunsPageReader();
+        List<Map<String, Object>> splitRuns = new ArrayList<>();
+        try ( CamelContext camelContext = new DefaultCamelContext() )
+        {
+            camelContext.addRoutes( new RouteBuilder()
+            {
+                @Override
+                public void configure()
+                {
+                    from( "direct:runs" )
+                        .setProperty( "runsPage", runsPageReader )
+                        .split( exchangeProperty( "runsPage" ) ).streaming()
+                            .process( e -> splitRuns.add( e.getMessage().getBody( Map.class ) ) )
+                        .end()
+                        .setProperty( "nextRunsPageUrl", simple( "${exchangeProperty.runsPage.nextPageUrl}" ) );
+                }
+            } );
+            camelContext.start();
+
+            Exchange exchange = camelContext.createProducerTemplate().send( "direct:runs", e -> {
+                e.getMessage().setHeader( "newLastRunAt", Timestamp.from( Instant.parse( "2023-01-02T00:00:00Z" ) ) );
+                e.getMessage().setBody( RUNS_PAGE );
+            } );
+
+            assertEquals( 3, splitRuns.size() );
+            assertEquals( "MAL_YEARLY",
+                ((Map<String, Object>) ((Map<String, Object>) splitRuns.get( 0 ).get( "values" ))
+                    .get( "data_set_code" )).get( "value" ) );
+            assertEquals( "https://rapidpro/api/v2/runs.json?cursor=abc",
+                exchange.getProperty( "nextRunsPageUrl" ) );
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.metadata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class CategoryOptionComboIndexTestCase
+{
+    private List<String> updatedSinceArgs;
+
+    private List<CategoryOptionComboIndex.CategoryOptionComboCode> categoryOptionCombos;
+
+    private CategoryOptionComboIndex categoryOptionComboIndex;
+
+    private boolean failFetch;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        updatedSinceArgs = new ArrayList<>();
+        categoryOptionCombos = new ArrayList<>(
+            List.of( new CategoryOptionComboIndex.CategoryOptionComboCode( "MAL-0514Y", "2023-01-01T10:00:00.000" ),
+                new CategoryOptionComboIndex.CategoryOptionComboCode( "MAL-15Y", "2023-01-02T10:00:00.000" ) ) );
+        categoryOptionComboIndex = new CategoryOptionComboIndex()
+        {
+            @Override
+            protected Iterable<CategoryOptionComboCode> fetchCategoryOptionCombos( String updatedSince )
+            {
+                updatedSinceArgs.add( updatedSince );
+                if ( failFetch )
+                {
+                    // fails after the first category option combination has been read
+                    return () -> Stream.concat( categoryOptionCombos.stream().limit( 1 ),
+                        Stream.<CategoryOptionComboCode>generate( () -> {
+                            throw new IllegalStateException( "Connection reset" );
+                        } ) ).iterator();
+                }
+                return categoryOptionCombos;
+            }
+        };
+        ReflectionTestUtils.setField( categoryOptionComboIndex, "ttl", 86400000L );
+    }
+
+    @Test
+    public void testLookupIsCaseInsensitive()
+    {
+        assertEquals( "MAL-0514Y", categoryOptionComboIndex.lookup( "mal-0514y" ) );
+        assertEquals( "MAL-15Y", categoryOptionComboIndex.lookup( "MAL-15Y" ) );
+        assertNull( categoryOptionComboIndex.lookup( "MAL-UNKNOWN" ) );
+
+        assertEquals( 2, categoryOptionComboIndex.getHits() );
+        assertEquals( 1, categoryOptionComboIndex.getMisses() );
+        assertEquals( 1, categoryOptionComboIndex.getRefreshes() );
+        assertEquals( 1, updatedSinceArgs.size() );
+    }
+
+    @Test
+    public void testRefreshFetchesUpdatedCategoryOptionCombos()
+    {
+        categoryOptionComboIndex.lookup( "MAL-0514Y" );
+        categoryOptionCombos.clear();
+        categoryOptionCombos.add(
+            new CategoryOptionComboIndex.CategoryOptionComboCode( "MAL-UNKNOWN", "2023-01-03T10:00:00.000" ) );
+        categoryOptionComboIndex.refresh();
+
+        assertEquals( List.of( "2023-01-02T10:00:00.000" ), updatedSinceArgs.subList( 1, 2 ) );
+        assertEquals( "MAL-UNKNOWN", categoryOptionComboIndex.lookup( "mal-unknown" ) );
+        assertEquals( "MAL-15Y", categoryOptionComboIndex.lookup( "mal-15y" ) );
+        assertEquals( 3, categoryOptionComboIndex.getSize() );
+    }
+
+    @Test
+    public void testFailedRefreshKeepsWatermark()
+    {
+        categoryOptionComboIndex.lookup( "MAL-0514Y" );
+        categoryOptionCombos.clear();
+        categoryOptionCombos.add(
+            new CategoryOptionComboIndex.CategoryOptionComboCode( "MAL-UNKNOWN", "2023-01-03T10:00:00.000" ) );
+        failFetch = true;
+        assertThrows( IllegalStateException.class, () -> categoryOptionComboIndex.refresh() );
+
+        failFetch = false;
+        categoryOptionComboIndex.refresh();
+        assertEquals( List.of( "2023-01-02T10:00:00.000", "2023-01-02T10:00:00.000" ),
+            updatedSinceArgs.subList( 1, 3 ) );
+        assertEquals( "MAL-UNKNOWN", categoryOptionComboIndex.lookup( "mal-unknown" ) );
+    }
+
+    @Test
+    public void testRefreshGivenDeserialisedCategoryOptionCombos()
+        throws
+        Exception
+    {
+        categoryOptionComboIndex.lookup( "MAL-0514Y" );
+        categoryOptionCombos.clear();
+        categoryOptionCombos.add( new ObjectMapper().readValue(
+            "{\"id\":\"rtfSaMjPyq6\",\"code\":\"MAL-UNKNOWN\",\"lastUpdated\":\"2023-01-03T10:00:00.000\"}",
+            CategoryOptionComboIndex.CategoryOptionComboCode.class ) );
+        categoryOptionComboIndex.refresh();
+        categoryOptionComboIndex.refresh();
+
+        assertEquals( "MAL-UNKNOWN", categoryOptionComboIndex.lookup( "mal-unknown" ) );
+        assertEquals( "2023-01-03T10:00:00.000", updatedSinceArgs.get( 2 ) );
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.metadata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class DataSetMetadataCacheTestCase
+{
+    private List<String> fetchedDataSetCodes;
+
+    private List<String> fetchedOrgUnits;
+
+    private DataSetMetadataCache dataSetMetadataCache;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        fetchedDataSetCodes = new ArrayList<>();
+        fetchedOrgUnits = new ArrayList<>();
+        dataSetMetadataCache = new DataSetMetadataCache()
+        {
+            @Override
+            protected DataSetMetadata fetchDataSetMetadata( String dataSetCode )
+            {
+                fetchedDataSetCodes.add( dataSetCode );
+                return new DataSetMetadata( dataSetCode, "Yearly", List.of( "GEN_EXT_FUND" ) );
+            }
+
+            @Override
+            protected boolean fetchOrgUnitAssignment( String dataSetCode, String orgUnitProperty, String orgUnit )
+            {
+                fetchedOrgUnits.add( orgUnitProperty + ":" + orgUnit );
+                return orgUnit.equals( "fdc6uOvgoji" );
+            }
+        };
+        ReflectionTestUtils.setField( dataSetMetadataCache, "maxSize", 2 );
+        ReflectionTestUtils.setField( dataSetMetadataCache, "ttl", 3600000L );
+    }
+
+    @Test
+    public void testGetFetchesDataSetMetadataOnce()
+    {
+        assertEquals( "Yearly", dataSetMetadataCache.getPeriodType( "MAL_YEARLY" ) );
+        assertEquals( List.of( "GEN_EXT_FUND" ), dataSetMetadataCache.getDataElementCodes( "MAL_YEARLY" ) );
+        assertEquals( List.of( "MAL_YEARLY" ), fetchedDataSetCodes );
+        assertEquals( 1, dataSetMetadataCache.getHits() );
+        assertEquals( 1, dataSetMetadataCache.getMisses() );
+    }
+
+    @Test
+    public void testGetEvictsLeastRecentlyUsedDataSet()
+    {
+        dataSetMetadataCache.get( "A" );
+        dataSetMetadataCache.get( "B" );
+        dataSetMetadataCache.get( "A" );
+        dataSetMetadataCache.get( "C" );
+        dataSetMetadataCache.get( "A" );
+        dataSetMetadataCache.get( "B" );
+
+        assertEquals( List.of( "A", "B", "C", "B" ), fetchedDataSetCodes );
+        assertEquals( 2, dataSetMetadataCache.getSize() );
+        assertEquals( 2, dataSetMetadataCache.getEvictions() );
+    }
+
+    @Test
+    public void testGetFetchesDataSetMetadataGivenExpiredOrInvalidatedEntry()
+    {
+        dataSetMetadataCache.get( "A" );
+        dataSetMetadataCache.invalidate( "A" );
+        dataSetMetadataCache.get( "A" );
+        ReflectionTestUtils.setField( dataSetMetadataCache, "ttl", 0L );
+        dataSetMetadataCache.get( "A" );
+
+        assertEquals( List.of( "A", "A", "A" ), fetchedDataSetCodes );
+    }
+
+    @Test
+    public void testIsOrgUnitAssignedFetchesEachOrgUnitOnce()
+    {
+        assertTrue( dataSetMetadataCache.isOrgUnitAssigned( "MAL_YEARLY", "id", "fdc6uOvgoji" ) );
+        assertFalse( dataSetMetadataCache.isOrgUnitAssigned( "MAL_YEARLY", "id", "DiszpKrYNg8" ) );
+        assertTrue( dataSetMetadataCache.isOrgUnitAssigned( "MAL_YEARLY", "id", "fdc6uOvgoji" ) );
+        assertFalse( dataSetMetadataCache.isOrgUnitAssigned( "MAL_YEARLY", "id", "DiszpKrYNg8" ) );
+
+        assertEquals( List.of( "id:fdc6uOvgoji", "id:DiszpKrYNg8" ), fetchedOrgUnits );
+        dataSetMetadataCache.invalidate( "MAL_YEARLY" );
+        dataSetMetadataCache.isOrgUnitAssigned( "MAL_YEARLY", "id", "fdc6uOvgoji" );
+        assertEquals( List.of( "id:fdc6uOvgoji", "id:DiszpKrYNg8", "id:fdc6uOvgoji" ), fetchedOrgUnits );
+    }
+
+    @Test
+    public void testGetGivenMissingDataSetCode()
+    {
+        assertThrows( Dhis2RapidProException.class, () -> dataSetMetadataCache.get( null ) );
+    }
+}
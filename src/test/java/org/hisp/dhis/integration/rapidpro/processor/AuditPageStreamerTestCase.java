@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.H2TestDatabase;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class AuditPageStreamerTestCase
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+
+    private JdbcTemplate jdbcTemplate;
+
+    private AuditPageStreamer auditPageStreamer;
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        H2TestDatabase h2TestDatabase = new H2TestDatabase();
+        jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+
+        auditPageStreamer = new AuditPageStreamer();
+        ReflectionTestUtils.setField( auditPageStreamer, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( auditPageStreamer, "transactionManager",
+            h2TestDatabase.newTransactionManager() );
+        ReflectionTestUtils.setField( auditPageStreamer, "objectMapper", objectMapper );
+        ReflectionTestUtils.setField( auditPageStreamer, "successLogSelectSql",
+            h2TestDatabase.getSql( "audit.success.log.select" ) );
+        ReflectionTestUtils.setField( auditPageStreamer, "dlcSelectSql",
+            h2TestDatabase.getSql( "audit.dlc.select" ) );
+        ReflectionTestUtils.setField( auditPageStreamer, "defaultPageSize", 2 );
+        ReflectionTestUtils.setField( auditPageStreamer, "maxPageSize", 10 );
+        ReflectionTestUtils.setField( auditPageStreamer, "queryTimeout", 30 );
+
+        for ( String dataSetCode : List.of( "MAL_YEARLY", "MAL_MONTHLY", "MAL_YEARLY", "MAL_YEARLY" ) )
+        {
+            jdbcTemplate.update(
+                "INSERT INTO SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, data_set_code, report_period_offset, organisation_unit_id) VALUES ('{}', '{\"status\":\"SUCCESS\"}', '{\"id\":0}', ?, -1, 'acme')",
+                dataSetCode );
+        }
+        jdbcTemplate.update(
+            "INSERT INTO DEAD_LETTER_CHANNEL (compressed_payload, payload_format, data_set_code, report_period_offset, error_message, status) VALUES (?, 'GZIP', 'MAL_YEARLY', -1, 'Conflict', 'ERROR')",
+            PayloadCompressor.gzip( "{\"contact\":{}}" ) );
+    }
+
+    private Map<String, Object> readBody( Exchange exchange )
+        throws IOException
+    {
+        return objectMapper.readValue( exchange.getMessage().getBody( InputStream.class ), Map.class );
+    }
+
+    @Test
+    public void testSuccessLog()
+        throws IOException
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        auditPageStreamer.successLog( exchange );
+
+        Map<String, Object> page = readBody( exchange );
+        List<Map<String, Object>> data = (List<Map<String, Object>>) page.get( "data" );
+        assertEquals( 2, data.size() );
+        assertEquals( 1, data.get( 0 ).get( "id" ) );
+        assertEquals( 3, data.get( 1 ).get( "id" ) );
+        assertEquals( "MAL_YEARLY", data.get( 0 ).get( "dataSetCode" ) );
+        assertEquals( "acme", data.get( 0 ).get( "organisationUnitId" ) );
+        assertFalse( data.get( 0 ).containsKey( "dhisRequest" ) );
+        assertNotNull( page.get( "nextAfter" ) );
+
+        exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setHeader( "after", page.get( "nextAfter" ) );
+        exchange.getMessage().setHeader( "includePayloads", "true" );
+        auditPageStreamer.successLog( exchange );
+
+        page = readBody( exchange );
+        data = (List<Map<String, Object>>) page.get( "data" );
+        assertEquals( 1, data.size() );
+        assertEquals( 4, data.get( 0 ).get( "id" ) );
+        assertEquals( "{\"status\":\"SUCCESS\"}", data.get( 0 ).get( "dhisResponse" ) );
+        assertFalse( data.get( 0 ).containsKey( "compressedDhisResponse" ) );
+        assertNull( page.get( "nextAfter" ) );
+    }
+
+    @Test
+    public void testSuccessLogPagesByCreationTime()
+        throws IOException
+    {
+        jdbcTemplate.update( "UPDATE SUCCESS_LOG SET created_at = '2023-01-02 00:00:00+00' WHERE id IN (1, 2)" );
+        jdbcTemplate.update( "UPDATE SUCCESS_LOG SET created_at = '2023-01-01 00:00:00+00' WHERE id IN (3, 4)" );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "limit", "3" );
+        auditPageStreamer.successLog( exchange );
+
+        Map<String, Object> page = readBody( exchange );
+        List<Map<String, Object>> data = (List<Map<String, Object>>) page.get( "data" );
+        assertEquals( List.of( 3, 4, 1 ), data.stream().map( row -> row.get( "id" ) ).collect( Collectors.toList() ) );
+        assertEquals( "2023-01-02T00:00:00Z,1", page.get( "nextAfter" ) );
+
+        exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "limit", "3" );
+        exchange.getMessage().setHeader( "after", page.get( "nextAfter" ) );
+        auditPageStreamer.successLog( exchange );
+
+        page = readBody( exchange );
+        data = (List<Map<String, Object>>) page.get( "data" );
+        assertEquals( 1, data.size() );
+        assertEquals( 2, data.get( 0 ).get( "id" ) );
+        assertNull( page.get( "nextAfter" ) );
+    }
+
+    @Test
+    public void testSuccessLogGivenInvalidCursor()
+        throws IOException
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "after", "3" );
+        auditPageStreamer.successLog( exchange );
+
+        assertEquals( 400, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+    }
+
+    @Test
+    public void testDeadLetterChannelGivenCompressedPayload()
+        throws IOException
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "status", "ERROR" );
+        exchange.getMessage().setHeader( "from", "2000-01-01T00:00:00Z" );
+        exchange.getMessage().setHeader( "includePayloads", "true" );
+        auditPageStreamer.deadLetterChannel( exchange );
+
+        List<Map<String, Object>> data = (List<Map<String, Object>>) readBody( exchange ).get( "data" );
+        assertEquals( 1, data.size() );
+        assertEquals( "{\"contact\":{}}", data.get( 0 ).get( "payload" ) );
+        assertEquals( "Conflict", data.get( 0 ).get( "errorMessage" ) );
+    }
+
+    @Test
+    public void testSuccessLogGivenInvalidLimit()
+        throws IOException
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "limit", "11" );
+        auditPageStreamer.successLog( exchange );
+
+        assertEquals( 400, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+        assertEquals( "limit must be between 1 and 10",
+            objectMapper.readValue( exchange.getMessage().getBody( String.class ), Map.class ).get( "message" ) );
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetBatchAggrStrategy;
+import org.junit.jupiter.api.Test;
+
+public class BatchImportSummaryProcessorTestCase
+{
+    private List<Map<String, Object>> process( Map<String, Object> importSummary )
+    {
+        List<Map<String, Object>> batchedReports = List.of(
+            new HashMap<>( Map.of( "dataValueOffset", 0, "dataValueCount", 2 ) ),
+            new HashMap<>( Map.of( "dataValueOffset", 2, "dataValueCount", 1 ) ) );
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.setProperty( DataValueSetBatchAggrStrategy.BATCHED_REPORTS_PROPERTY, batchedReports );
+        exchange.getMessage().setBody( importSummary );
+        new BatchImportSummaryProcessor().process( exchange );
+        return batchedReports;
+    }
+
+    @Test
+    public void testProcessGivenRejectedIndexes()
+    {
+        Map<String, Object> conflict = Map.of( "object", "MAL-XYZ", "indexes", List.of( 2 ) );
+        List<Map<String, Object>> batchedReports = process( Map.of( "status", "WARNING", "response",
+            Map.of( "status", "WARNING", "conflicts", List.of( conflict ), "rejectedIndexes", List.of( 2 ) ) ) );
+
+        assertFalse( (Boolean) batchedReports.get( 0 ).get( "rejected" ) );
+        assertTrue( (Boolean) batchedReports.get( 1 ).get( "rejected" ) );
+        assertEquals( List.of( conflict ),
+            ((Map<String, Object>) batchedReports.get( 1 ).get( "importSummary" )).get( "conflicts" ) );        assertEquals( List.of( 0 ),
+            ((Map<String, Object>) batchedReports.get( 1 ).get( "importSummary" )).get( "rejectedIndexes" ) );
+    }
+
+    @Test
+    public void testProcessGivenSuccess()
+    {
+        List<Map<String, Object>> batchedReports = process( Map.of( "status", "SUCCESS", "conflicts", List.of() ) );
+
+        assertFalse( (Boolean) batchedReports.get( 0 ).get( "rejected" ) );
+        assertFalse( (Boolean) batchedReports.get( 1 ).get( "rejected" ) );
+    }
+
+    @Test
+    public void testProcessGivenConflictsWithoutIndexes()
+    {
+        List<Map<String, Object>> batchedReports = process(
+            Map.of( "status", "WARNING", "conflicts", List.of( Map.of( "object", "MAL-XYZ" ) ) ) );
+
+        assertTrue( (Boolean) batchedReports.get( 0 ).get( "rejected" ) );
+        assertTrue( (Boolean) batchedReports.get( 1 ).get( "rejected" ) );
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.metadata.DataSetMetadata;
+import org.hisp.dhis.integration.rapidpro.metadata.DataSetMetadataCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DataValueSetValidatorTestCase
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private DataValueSetValidator dataValueSetValidator;
+
+    private CamelContext camelContext;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        DataSetMetadataCache dataSetMetadataCache = new DataSetMetadataCache()
+        {
+            @Override
+            protected DataSetMetadata fetchDataSetMetadata( String dataSetCode )
+            {
+                return new DataSetMetadata( dataSetCode, "Yearly", List.of( "GEN_EXT_FUND", "MAL_POP_TOTAL" ),
+                    Map.of( "GEN_EXT_FUND", Set.of( "default" ), "MAL_POP_TOTAL", Set.of( "mal-0514y", "mal-15y" ) ) );
+            }
+
+            @Override
+            protected boolean fetchOrgUnitAssignment( String dataSetCode, String orgUnitProperty, String orgUnit )
+            {
+                return orgUnitProperty.equals( "id" ) ? orgUnit.equals( "fdc6uOvgoji" ) : orgUnit.equals( "OU_559" );
+            }
+        };
+        ReflectionTestUtils.setField( dataSetMetadataCache, "maxSize", 10 );
+        ReflectionTestUtils.setField( dataSetMetadataCache, "ttl", 60000 );
+
+        dataValueSetValidator = new DataValueSetValidator();
+        ReflectionTestUtils.setField( dataValueSetValidator, "objectMapper", OBJECT_MAPPER );
+        ReflectionTestUtils.setField( dataValueSetValidator, "dataSetMetadataCache", dataSetMetadataCache );
+
+        camelContext = new DefaultCamelContext();
+        camelContext.getPropertiesComponent().addInitialProperty( "org.unit.id.scheme", "ID" );
+    }
+
+    @Test
+    public void testProcessGivenValidDataValueSet()
+        throws Exception
+    {
+        Exchange exchange = newExchange( "fdc6uOvgoji", List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "2" ),
+            Map.of( "dataElement", "MAL_POP_TOTAL", "categoryOptionCombo", "MAL-0514Y", "value", "10" ) ) );
+        dataValueSetValidator.process( exchange );
+        assertNull( exchange.getProperty( DataValueSetValidator.VALIDATION_ERRORS_PROPERTY ) );
+    }
+
+    @Test
+    public void testProcessGivenUnassignedOrgUnit()
+        throws Exception
+    {
+        Exchange exchange = newExchange( "DiszpKrYNg8",
+            List.of( Map.of( "dataElement", "GEN_EXT_FUND", "value", "2" ) ) );
+        dataValueSetValidator.process( exchange );
+        assertEquals( "Organisation unit 'DiszpKrYNg8' is not assigned to data set 'MAL_YEARLY'",
+            exchange.getProperty( DataValueSetValidator.VALIDATION_ERRORS_PROPERTY ) );
+    }
+
+    @Test
+    public void testProcessGivenInvalidCategoryOptionCombo()
+        throws Exception
+    {
+        Exchange exchange = newExchange( "fdc6uOvgoji", List.of(
+            Map.of( "dataElement", "MAL_POP_TOTAL", "categoryOptionCombo", "MAL-60Y", "value", "10" ),
+            Map.of( "dataElement", "MAL_LLIN_DISTR_PW", "value", "3" ) ) );
+        dataValueSetValidator.process( exchange );
+        assertEquals(
+            "Category option combo 'MAL-60Y' is invalid for data element 'MAL_POP_TOTAL' in data set 'MAL_YEARLY'. Data element 'MAL_LLIN_DISTR_PW' does not belong to data set 'MAL_YEARLY'",
+            exchange.getProperty( DataValueSetValidator.VALIDATION_ERRORS_PROPERTY ) );
+    }
+
+    private Exchange newExchange( String orgUnitId, List<Map<String, Object>> dataValues )
+        throws Exception
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setHeader( "orgUnitId", orgUnitId );
+        exchange.getMessage().setBody( OBJECT_MAPPER.writeValueAsString(
+            Map.of( "dataSet", "MAL_YEARLY", "orgUnit", orgUnitId, "dataValues", dataValues ) ) );
+        return exchange;
+    }
+}
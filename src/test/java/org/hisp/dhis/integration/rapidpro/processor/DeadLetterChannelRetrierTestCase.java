@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.H2TestDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DeadLetterChannelRetrierTestCase
+{
+    private final List<Map<String, Object>> enqueuedReports = new ArrayList<>();
+
+    private JdbcTemplate jdbcTemplate;
+
+    private CamelContext camelContext;
+
+    private DeadLetterChannelRetrier deadLetterChannelRetrier;
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        H2TestDatabase h2TestDatabase = new H2TestDatabase();
+        jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+
+        ReportMessageGroupIdSetter reportMessageGroupIdSetter = new ReportMessageGroupIdSetter();
+        ReflectionTestUtils.setField( reportMessageGroupIdSetter, "objectMapper", new ObjectMapper() );
+
+        deadLetterChannelRetrier = new DeadLetterChannelRetrier();
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "reportEnqueuer", new ReportEnqueuer()
+        {
+            @Override
+            public void enqueue( List<Map<String, Object>> reports )
+            {
+                enqueuedReports.addAll( reports );
+            }
+        } );
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "reportMessageGroupIdSetter",
+            reportMessageGroupIdSetter );
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "transactionManager",
+            h2TestDatabase.newTransactionManager() );
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "claimSql", h2TestDatabase.getSql( "retry.dlc.claim" ) );
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "retriedSql",
+            h2TestDatabase.getSql( "retried.dlc.update" ) );
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "batchSize", 2 );
+        ReflectionTestUtils.setField( deadLetterChannelRetrier, "maxRate", 0 );
+
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+    }
+
+    private void insertRow( String status )
+    {
+        jdbcTemplate.update(
+            "INSERT INTO DEAD_LETTER_CHANNEL (payload, data_set_code, report_period_offset, organisation_unit_id, error_message, status) VALUES ('{}', 'MAL_YEARLY', -1, 'acme', '', ?)",
+            status );
+    }
+
+    @Test
+    public void testProcess()
+        throws Exception
+    {
+        insertRow( "RETRY" );
+        insertRow( "ERROR" );
+        insertRow( "RETRY" );
+        insertRow( "RETRY" );
+        insertRow( "PROCESSED" );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        deadLetterChannelRetrier.process( exchange );
+
+        assertEquals( 3L, exchange.getMessage().getBody() );
+        assertEquals( List.of( 1L, 3L, 4L ),
+            List.of( enqueuedReports.get( 0 ).get( "deadLetterChannelId" ),
+                enqueuedReports.get( 1 ).get( "deadLetterChannelId" ),
+                enqueuedReports.get( 2 ).get( "deadLetterChannelId" ) ) );
+        assertEquals( "{}", enqueuedReports.get( 0 ).get( "body" ) );
+        assertEquals( -1, enqueuedReports.get( 0 ).get( "reportPeriodOffset" ) );
+        assertEquals( "acme/MAL_YEARLY", enqueuedReports.get( 0 ).get( "JMSXGroupID" ) );
+        assertEquals( 2, deadLetterChannelRetrier.getClaims() );
+        assertEquals( 0, jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL WHERE status = 'RETRY'", Integer.class ) );
+        assertEquals( 1, jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL WHERE status = 'ERROR'", Integer.class ) );
+    }
+
+    @Test
+    public void testProcessGivenRowNotDue()
+        throws Exception
+    {
+        insertRow( "RETRY" );
+        insertRow( "RETRY" );
+        jdbcTemplate.update(
+            "UPDATE DEAD_LETTER_CHANNEL SET next_attempt_at = DATEADD('MINUTE', 10, CURRENT_TIMESTAMP) WHERE id = 1" );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        deadLetterChannelRetrier.process( exchange );
+
+        assertEquals( 1L, exchange.getMessage().getBody() );
+        assertEquals( 2L, enqueuedReports.get( 0 ).get( "deadLetterChannelId" ) );
+        assertEquals( 1, jdbcTemplate.queryForObject(
+            "SELECT attempt_count FROM DEAD_LETTER_CHANNEL WHERE id = 2", Integer.class ) );
+        assertEquals( "RETRY", jdbcTemplate.queryForObject(
+            "SELECT status FROM DEAD_LETTER_CHANNEL WHERE id = 1", String.class ) );
+    }
+
+    @Test
+    public void testProcessGivenNoRowsToRetry()
+        throws Exception
+    {
+        insertRow( "ERROR" );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        deadLetterChannelRetrier.process( exchange );
+
+        assertEquals( 0L, exchange.getMessage().getBody() );
+        assertEquals( 0, deadLetterChannelRetrier.getClaims() );
+        assertEquals( 0, enqueuedReports.size() );
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.expression.RunsPage;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class FlowScanStatisticsTestCase
+{
+    private final FlowScanStatistics flowScanStatistics = new FlowScanStatistics();
+
+    private Exchange scanFlow( String flowUuid, int runCount, boolean failed )
+        throws Exception
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "flowUuid", flowUuid );
+        flowScanStatistics.start( exchange );
+
+        StringBuilder runsPage = new StringBuilder( "{\"next\":null,\"results\":[" );
+        for ( int i = 0; i < runCount; i++ )
+        {
+            runsPage.append( i == 0 ? "" : "," ).append( "{\"id\":" ).append( i ).append( "}" );
+        }
+        exchange.getMessage().setBody( runCount );
+        flowScanStatistics.countEnqueued( exchange );
+        ObjectMapper objectMapper = new ObjectMapper();
+        RunsPage page = new RunsPage( objectMapper.getFactory().createParser(
+            new ByteArrayInputStream( runsPage.append( "]}" ).toString().getBytes( StandardCharsets.UTF_8 ) ) ),
+            objectMapper, Timestamp.from( Instant.now() ) );
+        page.forEachRemaining( run -> {
+        } );
+        exchange.setProperty( "runsPage", page );
+        flowScanStatistics.countRuns( exchange );
+
+        if ( failed )
+        {
+            flowScanStatistics.fail( exchange );
+        }
+        else
+        {
+            flowScanStatistics.finish( exchange );
+        }
+        return exchange;
+    }
+
+    @Test
+    public void testGetFlows()
+        throws Exception
+    {
+        scanFlow( "a", 3, false );
+        scanFlow( "a", 2, true );
+        scanFlow( "b", 1, false );
+
+        Map<String, Map<String, Object>> flows = flowScanStatistics.getFlows();
+        assertEquals( 2, flows.size() );
+        assertEquals( 2L, flows.get( "a" ).get( "scans" ) );
+        assertEquals( 1L, flows.get( "a" ).get( "failures" ) );
+        assertEquals( 5L, flows.get( "a" ).get( "runs" ) );
+        assertEquals( 5L, flows.get( "a" ).get( "enqueued" ) );
+        assertEquals( 2L, flows.get( "a" ).get( "lastRuns" ) );
+        assertEquals( true, flows.get( "a" ).get( "lastFailed" ) );
+        assertEquals( 1L, flows.get( "b" ).get( "runs" ) );
+        assertTrue( (Long) flows.get( "b" ).get( "lastDuration" ) >= 0 );
+
+        flowScanStatistics.reset();
+        assertTrue( flowScanStatistics.getFlows().isEmpty() );
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.H2TestDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class RecordPrunerTestCase
+{
+    private static final long DAY = 86400000L;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private RecordPruner recordPruner;
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        H2TestDatabase h2TestDatabase = new H2TestDatabase();
+        jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+
+        recordPruner = new RecordPruner();
+        ReflectionTestUtils.setField( recordPruner, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( recordPruner, "successLogPartitioner", new SuccessLogPartitioner() );
+        ReflectionTestUtils.setField( recordPruner, "successLogSelectSql",
+            h2TestDatabase.getSql( "retention.success.log.select" ) );
+        ReflectionTestUtils.setField( recordPruner, "successLogDeleteSql",
+            h2TestDatabase.getSql( "retention.success.log.delete" ) );
+        ReflectionTestUtils.setField( recordPruner, "successLogVacuumSql", "" );
+        ReflectionTestUtils.setField( recordPruner, "dlcSelectSql",
+            h2TestDatabase.getSql( "retention.dlc.select" ) );
+        ReflectionTestUtils.setField( recordPruner, "dlcDeleteSql",
+            h2TestDatabase.getSql( "retention.dlc.delete" ) );
+        ReflectionTestUtils.setField( recordPruner, "dlcVacuumSql", "" );
+        ReflectionTestUtils.setField( recordPruner, "successLogMaxAge", 30 * DAY );
+        ReflectionTestUtils.setField( recordPruner, "dlcMaxAge", 7 * DAY );
+        ReflectionTestUtils.setField( recordPruner, "chunkSize", 2 );
+        ReflectionTestUtils.setField( recordPruner, "chunkPause", 0L );
+    }
+
+    private void insertSuccessLogRow( int ageInDays )
+    {
+        jdbcTemplate.update(
+            "INSERT INTO SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, data_set_code, report_period_offset, created_at) VALUES ('{}', '{}', '{}', 'MAL_YEARLY', -1, DATEADD('DAY', ?, CURRENT_TIMESTAMP))",
+            -ageInDays );
+    }
+
+    private void insertDeadLetterChannelRow( String status, int ageInDays )
+    {
+        jdbcTemplate.update(
+            "INSERT INTO DEAD_LETTER_CHANNEL (payload, report_period_offset, error_message, status, last_processed_at) VALUES ('{}', -1, 'Conflict', ?, DATEADD('DAY', ?, CURRENT_TIMESTAMP))",
+            status, -ageInDays );
+    }
+
+    @Test
+    public void testProcess()
+        throws Exception
+    {
+        for ( int i = 0; i < 5; i++ )
+        {
+            insertSuccessLogRow( 60 );
+        }
+        insertSuccessLogRow( 1 );
+        insertSuccessLogRow( 60 );
+        insertDeadLetterChannelRow( "PROCESSED", 10 );
+        insertDeadLetterChannelRow( "PROCESSED", 1 );
+        insertDeadLetterChannelRow( "ERROR", 10 );
+        insertDeadLetterChannelRow( "RETRY", 10 );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        recordPruner.process( exchange );
+
+        Map<String, Object> result = exchange.getMessage().getBody( Map.class );
+        assertEquals( 6L, result.get( "successLog" ) );
+        assertEquals( 1L, result.get( "deadLetterChannel" ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+        assertEquals( 3, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL", Integer.class ) );
+        assertEquals( 0, jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL WHERE status = 'PROCESSED' AND last_processed_at < DATEADD('DAY', -7, CURRENT_TIMESTAMP)",
+            Integer.class ) );
+        assertEquals( 7L, recordPruner.getLastPruned() );
+        assertEquals( 6L, recordPruner.getPrunedSuccessLogRows() );
+        assertEquals( 1L, recordPruner.getPrunedDeadLetterChannelRows() );
+    }
+
+    @Test
+    public void testProcessGivenNoRetentionPeriod()
+        throws Exception
+    {
+        ReflectionTestUtils.setField( recordPruner, "successLogMaxAge", 0L );
+        ReflectionTestUtils.setField( recordPruner, "dlcMaxAge", 0L );
+        insertSuccessLogRow( 60 );
+        insertDeadLetterChannelRow( "PROCESSED", 10 );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        recordPruner.process( exchange );
+
+        assertEquals( 0L, recordPruner.getLastPruned() );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL", Integer.class ) );
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.aggregationStrategy.DataValueSetCoalesceAggrStrategy;
+import org.hisp.dhis.integration.rapidpro.metadata.CategoryOptionComboIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class RejectedDataValuesFilterTestCase
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final String PAYLOAD = "{\"contact\":{\"uuid\":\"3b6b5ab8-0a5f-4d4d-9a4e-2cf3e5d1c7a6\"},"
+        + "\"results\":{\"msg\":{\"value\":\"APT.2.4.6\"},\"gen_ext_fund\":{\"value\":\"2\"},"
+        + "\"mal_pop_total__mal-0514y\":{\"value\":\"10\"},\"mal_pop_total__mal-15y\":{\"value\":\"20\"}}}";
+
+    private static final String DHIS_REQUEST = "{\"dataValues\":["
+        + "{\"dataElement\":\"GEN_EXT_FUND\",\"value\":\"2\"},"
+        + "{\"dataElement\":\"MAL_POP_TOTAL\",\"value\":\"10\",\"categoryOptionCombo\":\"MAL-0514Y\"},"
+        + "{\"dataElement\":\"MAL_POP_TOTAL\",\"value\":\"20\",\"categoryOptionCombo\":\"MAL-15Y\"}]}";
+
+    private RejectedDataValuesFilter rejectedDataValuesFilter;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        CategoryOptionComboIndex categoryOptionComboIndex = new CategoryOptionComboIndex()
+        {
+            @Override
+            protected Iterable<CategoryOptionComboCode> fetchCategoryOptionCombos( String updatedSince )
+            {
+                return List.of( new CategoryOptionComboCode( "MAL-0514Y", null ),
+                    new CategoryOptionComboCode( "MAL-15Y", null ) );
+            }
+        };
+        ReflectionTestUtils.setField( categoryOptionComboIndex, "ttl", 60000 );
+
+        rejectedDataValuesFilter = new RejectedDataValuesFilter();
+        ReflectionTestUtils.setField( rejectedDataValuesFilter, "objectMapper", OBJECT_MAPPER );
+        ReflectionTestUtils.setField( rejectedDataValuesFilter, "categoryOptionComboIndex", categoryOptionComboIndex );
+    }
+
+    private Map<String, Object> filter( Map<String, Object> importSummary )
+        throws Exception
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "originalPayload", PAYLOAD );
+        exchange.getMessage().setHeader( "dhisRequest", DHIS_REQUEST );
+        exchange.getMessage().setBody( importSummary );
+        rejectedDataValuesFilter.process( exchange );
+
+        return (Map<String, Object>) OBJECT_MAPPER.readValue(
+            exchange.getMessage().getHeader( "originalPayload", String.class ), Map.class ).get( "results" );
+    }
+
+    @Test
+    public void testProcessGivenRejectedIndexes()
+        throws Exception
+    {
+        Map<String, Object> results = filter( Map.of( "status", "WARNING", "response",
+            Map.of( "status", "WARNING", "conflicts", List.of( Map.of( "object", "MAL-15Y", "indexes", List.of( 2 ) ) ),
+                "rejectedIndexes", List.of( 2 ) ) ) );
+
+        assertEquals( List.of( "msg", "mal_pop_total__mal-15y" ), List.copyOf( results.keySet() ) );
+    }
+
+    @Test
+    public void testProcessGivenConflictIndexes()
+        throws Exception
+    {
+        Map<String, Object> results = filter( Map.of( "status", "WARNING", "conflicts",
+            List.of( Map.of( "object", "GEN_EXT_FUND", "indexes", List.of( 0 ) ) ) ) );
+
+        assertEquals( List.of( "msg", "gen_ext_fund" ), List.copyOf( results.keySet() ) );
+    }
+
+    @Test
+    public void testProcessGivenCoalescedReport()
+        throws Exception
+    {
+        String firstPayload = "{\"results\":{\"gen_ext_fund\":{\"value\":\"1\"},\"mal_pop_total__mal-15y\":{\"value\":\"19\"}}}";
+        String secondPayload = "{\"results\":{\"gen_ext_fund\":{\"value\":\"5\"}}}";
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "originalPayload", PAYLOAD );
+        exchange.getMessage().setHeader( "dhisRequest", DHIS_REQUEST );
+        exchange.setProperty( DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY,
+            List.of( Map.of( "originalPayload", firstPayload ), Map.of( "originalPayload", secondPayload ) ) );
+        exchange.getMessage().setBody( Map.of( "status", "WARNING", "rejectedIndexes", List.of( 2 ) ) );
+        rejectedDataValuesFilter.process( exchange );
+
+        List<Map<String, Object>> supersededReports = exchange.getProperty(
+            DataValueSetCoalesceAggrStrategy.SUPERSEDED_REPORTS_PROPERTY, List.class );
+        assertEquals( 1, supersededReports.size() );
+        assertEquals( Map.of( "mal_pop_total__mal-15y", Map.of( "value", "19" ) ),
+            OBJECT_MAPPER.readValue( (String) supersededReports.get( 0 ).get( "originalPayload" ), Map.class )
+                .get( "results" ) );
+    }
+
+    @Test
+    public void testProcessGivenConflictsWithoutIndexes()
+        throws Exception
+    {
+        Map<String, Object> results = filter(
+            Map.of( "status", "WARNING", "conflicts", List.of( Map.of( "object", "GEN_EXT_FUND" ) ) ) );
+
+        assertEquals( 4, results.size() );
+    }
+
+    @Test
+    public void testProcessGivenAllDataValuesRejected()
+        throws Exception
+    {
+        Map<String, Object> results = filter(
+            Map.of( "status", "ERROR", "rejectedIndexes", List.of( 0, 1, 2 ) ) );
+
+        assertEquals( 4, results.size() );
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ReportEnqueuerTestCase
+{
+    private List<Map<String, Object>> sentMessages;
+
+    private Map<Object, Map<String, Object>> messageProperties;
+
+    private AtomicInteger commits;
+
+    private volatile boolean failSend;
+
+    private ReportEnqueuer reportEnqueuer;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        sentMessages = new ArrayList<>();
+        messageProperties = new HashMap<>();
+        commits = new AtomicInteger();
+        failSend = false;
+        MessageProducer producer = fake( MessageProducer.class, ( method, args ) -> {
+            if ( method.equals( "send" ) )
+            {
+                if ( failSend && !sentMessages.isEmpty() )
+                {
+                    throw new IllegalStateException( "Connection reset" );
+                }
+                sentMessages.add( messageProperties.get( args[0] ) );
+            }
+            return null;
+        } );
+        Session session = fake( Session.class, ( method, args ) -> {
+            switch ( method )
+            {
+            case "createProducer":
+                return producer;
+            case "createTextMessage":
+                return newTextMessage( (String) args[0] );
+            case "commit":
+                commits.incrementAndGet();
+                return null;
+            case "getTransacted":
+                return true;
+            default:
+                return null;
+            }
+        } );
+        Connection connection = fake( Connection.class,
+            ( method, args ) -> method.equals( "createSession" ) ? session : null );
+        ConnectionFactory connectionFactory = fake( ConnectionFactory.class,
+            ( method, args ) -> method.equals( "createConnection" ) ? connection : null );
+
+        reportEnqueuer = new ReportEnqueuer();
+        ReflectionTestUtils.setField( reportEnqueuer, "connectionFactory", connectionFactory );
+        reportEnqueuer.postConstruct();
+    }
+
+    @Test
+    public void testEnqueueSendsReportsInOneTransaction()
+    {
+        Map<String, Object> report = new HashMap<>();
+        report.put( "body", "{}" );
+        report.put( "dataSetCode", "MAL_YEARLY" );
+        report.put( "orgUnitId", null );
+        report.put( "reportPeriodOffset", -1 );
+        report.put( "deadLetterChannelId", 7L );
+        report.put( "JMSXGroupID", "acme/MAL_YEARLY" );
+        reportEnqueuer.enqueue( List.of( report, Map.of( "body", "{}", "dataSetCode", "MAL_MONTHLY" ) ) );
+
+        assertEquals( 2, sentMessages.size() );
+        assertEquals( Map.of( "body", "{}", "dataSetCode", "MAL_YEARLY", "reportPeriodOffset", -1, "deadLetterChannelId",
+            7L, "JMSXGroupID", "acme/MAL_YEARLY" ), sentMessages.get( 0 ) );
+        assertEquals( Map.of( "body", "{}", "dataSetCode", "MAL_MONTHLY" ), sentMessages.get( 1 ) );
+        assertEquals( 1, commits.get() );
+    }
+
+    @Test
+    public void testEnqueueDoesNotCommitGivenFailedSend()
+    {
+        failSend = true;
+        assertThrows( IllegalStateException.class, () -> reportEnqueuer.enqueue(
+            List.of( Map.of( "body", "{}", "dataSetCode", "MAL_YEARLY" ),
+                Map.of( "body", "{}", "dataSetCode", "MAL_MONTHLY" ) ) ) );
+        assertEquals( 0, commits.get() );
+    }
+
+    private TextMessage newTextMessage( String body )
+    {
+        Map<String, Object> properties = new HashMap<>( Map.of( "body", body ) );
+        TextMessage textMessage = fake( TextMessage.class, ( method, args ) -> {
+            if ( method.equals( "setObjectProperty" ) || method.equals( "setStringProperty" ) )
+            {
+                properties.put( (String) args[0], args[1] );
+            }
+            return null;
+        } );
+        messageProperties.put( textMessage, properties );
+        return textMessage;
+    }
+
+    private static <T> T fake( Class<T> type, FakeMethod fakeMethod )
+    {
+        return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type },
+            ( proxy, method, args ) -> {
+                if ( method.getName().equals( "equals" ) )
+                {
+                    return proxy == args[0];
+                }
+                if ( method.getName().equals( "hashCode" ) )
+                {
+                    return System.identityHashCode( proxy );
+                }
+                return fakeMethod.invoke( method.getName(), args );
+            } ) );
+    }
+
+    private interface FakeMethod
+    {
+        Object invoke( String method, Object[] args );
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ReportMessageGroupIdSetterTestCase
+{
+    private static final String CONTACT_UUID = "1b9a5e1c-9d7a-4a5a-8f3b-2a8c5b1f5b3e";
+
+    private ReportMessageGroupIdSetter reportMessageGroupIdSetter;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        reportMessageGroupIdSetter = new ReportMessageGroupIdSetter();
+        ReflectionTestUtils.setField( reportMessageGroupIdSetter, "objectMapper", new ObjectMapper() );
+    }
+
+    private Exchange newExchange( String orgUnitId, String body )
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "orgUnitId", orgUnitId );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setBody( body );
+        return exchange;
+    }
+
+    @Test
+    public void testProcessGivenOrgUnitId()
+    {
+        Exchange exchange = newExchange( "fdc6uOvgoji", "{\"contact\": {\"uuid\": \"" + CONTACT_UUID + "\"}}" );
+
+        reportMessageGroupIdSetter.process( exchange );
+        assertEquals( "contact:" + CONTACT_UUID + "/MAL_YEARLY", exchange.getMessage().getHeader( "JMSXGroupID" ) );
+    }
+
+    @Test
+    public void testProcessGivenMissingOrgUnitId()
+    {
+        Exchange exchange = newExchange( null, "{\"contact\": {\"uuid\": \"" + CONTACT_UUID + "\"}}" );
+
+        reportMessageGroupIdSetter.process( exchange );
+        assertEquals( "contact:" + CONTACT_UUID + "/MAL_YEARLY", exchange.getMessage().getHeader( "JMSXGroupID" ) );
+    }
+
+    @Test
+    public void testProcessGivenMissingContact()
+    {
+        Exchange exchange = newExchange( "fdc6uOvgoji", "{\"results\": {}}" );
+
+        reportMessageGroupIdSetter.process( exchange );
+        assertEquals( "fdc6uOvgoji/MAL_YEARLY", exchange.getMessage().getHeader( "JMSXGroupID" ) );
+    }
+
+    @Test
+    public void testProcessGivenUnparseableBody()
+    {
+        Exchange exchange = newExchange( null, "<html>not a report</html>" );
+
+        reportMessageGroupIdSetter.process( exchange );
+        assertEquals( ReportMessageGroupIdSetter.DEFAULT_GROUP_OWNER + "/MAL_YEARLY",
+            exchange.getMessage().getHeader( "JMSXGroupID" ) );
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ReportQueueDrainerTestCase
+{
+    private CamelContext camelContext;
+
+    private Deque<Message> queue;
+
+    private AtomicInteger commits;
+
+    private AtomicInteger rollbacks;
+
+    private ConnectionFactory connectionFactory;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+
+        queue = new ConcurrentLinkedDeque<>();
+        commits = new AtomicInteger();
+        rollbacks = new AtomicInteger();
+        MessageConsumer consumer = fake( MessageConsumer.class,
+            ( method, args ) -> method.equals( "receive" ) ? queue.poll() : null );
+        Session session = fake( Session.class, ( method, args ) -> {
+            switch ( method )
+            {
+            case "createConsumer":
+                return consumer;
+            case "commit":
+                commits.incrementAndGet();
+                return null;
+            case "rollback":
+                rollbacks.incrementAndGet();
+                return null;
+            case "getTransacted":
+                return true;
+            default:
+                return null;
+            }
+        } );
+        Connection connection = fake( Connection.class,
+            ( method, args ) -> method.equals( "createSession" ) ? session : null );
+        connectionFactory = fake( ConnectionFactory.class,
+            ( method, args ) -> method.equals( "createConnection" ) ? connection : null );
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void testProcessDoesNotReceiveReportsOnceMaxMessagesAreClaimed()
+        throws Exception
+    {
+        for ( int i = 0; i < 5; i++ )
+        {
+            queue.add( fake( Message.class, ( method, args ) -> null ) );
+        }
+        AtomicInteger delivered = new AtomicInteger();
+        ReportQueueDrainer reportQueueDrainer = newReportQueueDrainer( delivered, null );
+        ReflectionTestUtils.setField( reportQueueDrainer, "maxMessages", 3 );
+        ReflectionTestUtils.setField( reportQueueDrainer, "concurrentConsumers", 4 );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.process( exchange );
+
+        assertEquals( Map.of( "drained", 3L, "remaining", 2L ), exchange.getMessage().getBody() );
+        assertEquals( 3, delivered.get() );
+        assertEquals( 2, queue.size() );
+        assertEquals( 3, commits.get() );
+        assertEquals( 0, rollbacks.get() );
+        assertEquals( 3, reportQueueDrainer.getLastDrained() );
+        assertEquals( 2, reportQueueDrainer.getLastRemaining() );
+    }
+
+    @Test
+    public void testProcessRollsBackReportGivenFailedDelivery()
+        throws Exception
+    {
+        Message failingReport = fake( Message.class, ( method, args ) -> null );
+        queue.add( failingReport );
+        queue.add( fake( Message.class, ( method, args ) -> null ) );
+        AtomicInteger delivered = new AtomicInteger();
+        ReportQueueDrainer reportQueueDrainer = newReportQueueDrainer( delivered, failingReport );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.process( exchange );
+
+        assertEquals( Map.of( "drained", 1L, "remaining", 0L ), exchange.getMessage().getBody() );
+        assertEquals( 1, commits.get() );
+        assertEquals( 1, rollbacks.get() );
+    }
+
+    @Test
+    public void testProcessStopsGivenEmptyQueue()
+        throws Exception
+    {
+        AtomicInteger delivered = new AtomicInteger();
+        ReportQueueDrainer reportQueueDrainer = newReportQueueDrainer( delivered, null );
+        ReflectionTestUtils.setField( reportQueueDrainer, "concurrentConsumers", 2 );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.process( exchange );
+
+        assertEquals( Map.of( "drained", 0L, "remaining", 0L ), exchange.getMessage().getBody() );
+        assertEquals( 0, delivered.get() );
+        assertEquals( 0, commits.get() );
+    }
+
+    @Test
+    public void testClaimGivenConcurrentConsumers()
+        throws Exception
+    {
+        ReportQueueDrainer reportQueueDrainer = new ReportQueueDrainer();
+        ReflectionTestUtils.setField( reportQueueDrainer, "maxMessages", 100 );
+
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool( 8 );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for ( int i = 0; i < 8; i++ )
+            {
+                futures.add( executorService.submit( () -> {
+                    for ( int j = 0; j < 50; j++ )
+                    {
+                        if ( reportQueueDrainer.claim() )
+                        {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                } ) );
+            }
+            for ( Future<?> future : futures )
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executorService.shutdown();
+        }
+
+        assertEquals( 100, accepted.get() );
+    }
+
+    private ReportQueueDrainer newReportQueueDrainer( AtomicInteger delivered, Message failingReport )
+    {
+        ReportQueueDrainer reportQueueDrainer = new ReportQueueDrainer()
+        {
+            @Override
+            protected boolean deliver( CamelContext camelContext, Message message, Session session )
+            {
+                if ( message == failingReport )
+                {
+                    return false;
+                }
+                delivered.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            protected long countQueuedReports()
+            {
+                return queue.size();
+            }
+        };
+        ReflectionTestUtils.setField( reportQueueDrainer, "connectionFactory", connectionFactory );
+        ReflectionTestUtils.setField( reportQueueDrainer, "window", 60000 );
+        ReflectionTestUtils.setField( reportQueueDrainer, "pollInterval", 1 );
+        ReflectionTestUtils.setField( reportQueueDrainer, "concurrentConsumers", 1 );
+        return reportQueueDrainer;
+    }
+
+    private static <T> T fake( Class<T> type, FakeMethod fakeMethod )
+    {
+        return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type },
+            ( proxy, method, args ) -> {
+                if ( method.getName().equals( "equals" ) )
+                {
+                    return proxy == args[0];
+                }
+                if ( method.getName().equals( "hashCode" ) )
+                {
+                    return System.identityHashCode( proxy );
+                }
+                return fakeMethod.invoke( method.getName(), args );
+            } ) );
+    }
+
+    private interface FakeMethod
+    {
+        Object invoke( String method, Object[] args );
+    }
+}
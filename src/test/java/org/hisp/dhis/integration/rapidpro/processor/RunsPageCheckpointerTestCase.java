@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.JMSException;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.H2TestDatabase;
+import org.hisp.dhis.integration.rapidpro.expression.RunsPage;
+import org.hisp.dhis.integration.rapidpro.expression.RunsPageReader;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jms.UncategorizedJmsException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class RunsPageCheckpointerTestCase
+{
+    private static final String FLOW_UUID = "21a055c2-f0a7-4ec3-9e5e-bc05504b8967";
+
+    private JdbcTemplate jdbcTemplate;
+
+    private H2TestDatabase h2TestDatabase;
+
+    private final List<Map<String, Object>> enqueuedReports = new ArrayList<>();
+
+    private boolean failEnqueue;
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        h2TestDatabase = new H2TestDatabase();
+        jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+        jdbcTemplate.update( "INSERT INTO POLLER (flow_uuid, last_run_at) VALUES (?, ?)", FLOW_UUID,
+            Timestamp.from( Instant.parse( "2023-01-01T00:00:00Z" ) ) );
+    }
+
+    private RunsPageCheckpointer newRunsPageCheckpointer()
+    {
+        RunsPageCheckpointer runsPageCheckpointer = new RunsPageCheckpointer();
+        ReflectionTestUtils.setField( runsPageCheckpointer, "reportEnqueuer", new ReportEnqueuer()
+        {
+            @Override
+            public void enqueue( List<Map<String, Object>> reports )
+            {
+                if ( failEnqueue )
+                {
+                    throw new UncategorizedJmsException( new JMSException( "Broker unavailable" ) );
+                }
+                enqueuedReports.addAll( reports );
+            }
+        } );
+        ReflectionTestUtils.setField( runsPageCheckpointer, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( runsPageCheckpointer, "transactionManager",
+            h2TestDatabase.newTransactionManager() );
+        ReflectionTestUtils.setField( runsPageCheckpointer, "checkpointSql",
+            h2TestDatabase.getSql( "last.run.checkpoint" ) );
+        ReflectionTestUtils.setField( runsPageCheckpointer, "pendingRunSelectSql",
+            h2TestDatabase.getSql( "pending.run.select" ) );
+        ReflectionTestUtils.setField( runsPageCheckpointer, "pendingRunUpsertSql",
+            h2TestDatabase.getSql( "pending.run.upsert" ) );
+        ReflectionTestUtils.setField( runsPageCheckpointer, "pendingRunDeleteSql",
+            h2TestDatabase.getSql( "pending.run.delete" ) );
+        ReflectionTestUtils.setField( runsPageCheckpointer, "maxRechecks", 2 );
+        return runsPageCheckpointer;
+    }
+
+    private Exchange newExchange( String runs )
+    {
+        return newExchange( runs, Instant.parse( "2023-01-02T00:00:00Z" ) );
+    }
+
+    private Exchange newExchange( String runs, Instant newLastRunAt )
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "flowUuid", FLOW_UUID );
+        exchange.getMessage().setHeader( "newLastRunAt", Timestamp.from( newLastRunAt ) );
+        exchange.getMessage().setBody(
+            new ByteArrayInputStream( ("{\"results\":[" + runs + "],\"next\":null}").getBytes( StandardCharsets.UTF_8 ) ) );
+
+        RunsPageReader runsPageReader = new RunsPageReader();
+        ReflectionTestUtils.setField( runsPageReader, "objectMapper", new ObjectMapper() );
+        exchange.setProperty( "runsPage", runsPageReader.evaluate( exchange, RunsPage.class ) );
+        return exchange;
+    }
+
+    private void collectRuns( RunsPageCheckpointer runsPageCheckpointer, Exchange exchange )
+    {
+        runsPageCheckpointer.begin( exchange );
+        exchange.getProperty( "runsPage", RunsPage.class ).forEachRemaining( run -> {
+            exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+            exchange.getMessage().setBody( "{\"id\":" + run.get( "id" ) + "}" );
+            runsPageCheckpointer.collect( exchange );
+        } );
+    }
+
+    private Instant readLastRunAt()
+    {
+        return jdbcTemplate.queryForObject( "SELECT last_run_at FROM POLLER WHERE flow_uuid = ?", Timestamp.class,
+            FLOW_UUID ).toInstant();
+    }
+
+    @Test
+    public void testCommitGivenExitedRuns()
+    {
+        RunsPageCheckpointer runsPageCheckpointer = newRunsPageCheckpointer();
+        Exchange exchange = newExchange(
+            "{\"id\":1,\"exited_on\":\"2023-01-01T10:00:00.000Z\",\"modified_on\":\"2023-01-01T10:00:00.000Z\"},"
+                + "{\"id\":2,\"exited_on\":\"2023-01-01T11:00:00.000Z\",\"modified_on\":\"2023-01-01T11:00:00.000Z\"}" );
+        collectRuns( runsPageCheckpointer, exchange );
+
+        assertEquals( 2, runsPageCheckpointer.commit( exchange ) );
+        assertEquals( 2, enqueuedReports.size() );
+        assertEquals( "{\"id\":1}", enqueuedReports.get( 0 ).get( "body" ) );
+        assertEquals( "MAL_YEARLY", enqueuedReports.get( 0 ).get( "dataSetCode" ) );
+        assertEquals( Instant.parse( "2023-01-01T10:59:59.999Z" ), readLastRunAt() );
+        assertEquals( 1, runsPageCheckpointer.getCheckpoints() );
+        assertEquals( 2, runsPageCheckpointer.getEnqueued() );
+    }
+
+    private List<String> readPendingRunUuids()
+    {
+        return jdbcTemplate.queryForList( "SELECT run_uuid FROM PENDING_RUN WHERE flow_uuid = ? ORDER BY run_uuid",
+            String.class, FLOW_UUID );
+    }
+
+    @Test
+    public void testCommitGivenRunInProgress()
+    {
+        RunsPageCheckpointer runsPageCheckpointer = newRunsPageCheckpointer();
+        Exchange exchange = newExchange(
+            "{\"id\":1,\"uuid\":\"run-1\",\"exited_on\":null,\"modified_on\":\"2023-01-01T09:00:00.000Z\"},"
+                + "{\"id\":2,\"uuid\":\"run-2\",\"exited_on\":\"2023-01-01T11:00:00.000Z\",\"modified_on\":\"2023-01-01T11:00:00.000Z\"}" );
+        collectRuns( runsPageCheckpointer, exchange );
+
+        runsPageCheckpointer.commit( exchange );
+        assertEquals( Instant.parse( "2023-01-01T10:59:59.999Z" ), readLastRunAt() );
+        assertEquals( List.of( "run-1" ), readPendingRunUuids() );
+
+        Exchange nextScanExchange = newExchange(
+            "{\"id\":1,\"uuid\":\"run-1\",\"exited_on\":\"2023-01-02T10:00:00.000Z\",\"modified_on\":\"2023-01-02T10:00:00.000Z\"}",
+            Instant.parse( "2023-01-03T00:00:00Z" ) );
+        collectRuns( runsPageCheckpointer, nextScanExchange );
+
+        runsPageCheckpointer.commit( nextScanExchange );
+        assertEquals( List.of(), readPendingRunUuids() );
+    }
+
+    @Test
+    public void testSelectPendingRuns()
+    {
+        jdbcTemplate.update(
+            "INSERT INTO PENDING_RUN (flow_uuid, run_uuid, modified_on, checked_at) VALUES (?, 'run-1', '2023-01-01 09:00:00+00', '2023-01-01 12:00:00+00')",
+            FLOW_UUID );
+        jdbcTemplate.update(
+            "INSERT INTO PENDING_RUN (flow_uuid, run_uuid, modified_on, checked_at) VALUES (?, 'run-2', '2023-01-01 08:00:00+00', '2023-01-01 11:00:00+00')",
+            FLOW_UUID );
+        jdbcTemplate.update(
+            "INSERT INTO PENDING_RUN (flow_uuid, run_uuid, modified_on, checked_at) VALUES (?, 'run-3', '2023-01-01 07:00:00+00', '2023-01-01 10:00:00+00')",
+            FLOW_UUID );
+        jdbcTemplate.update(
+            "INSERT INTO PENDING_RUN (flow_uuid, run_uuid, modified_on, checked_at) VALUES (?, 'run-4', '2023-01-01 07:00:00+00', '2023-01-02 00:00:00+00')",
+            FLOW_UUID );
+
+        Exchange exchange = newExchange( "" );
+        assertEquals( List.of( "run-3", "run-2" ), newRunsPageCheckpointer().selectPendingRuns( exchange ) );
+    }
+
+    @Test
+    public void testCommitGivenRecheckedRun()
+    {
+        jdbcTemplate.update(
+            "INSERT INTO PENDING_RUN (flow_uuid, run_uuid, modified_on, checked_at) VALUES (?, 'run-1', '2023-01-01 09:00:00+00', '2023-01-01 12:00:00+00')",
+            FLOW_UUID );
+        jdbcTemplate.update(
+            "INSERT INTO PENDING_RUN (flow_uuid, run_uuid, modified_on, checked_at) VALUES (?, 'run-2', '2023-01-01 08:00:00+00', '2023-01-01 12:00:00+00')",
+            FLOW_UUID );
+        RunsPageCheckpointer runsPageCheckpointer = newRunsPageCheckpointer();
+
+        Exchange exitedRunExchange = newExchange(
+            "{\"id\":1,\"uuid\":\"run-1\",\"exited_on\":\"2023-01-01T10:00:00.000Z\",\"modified_on\":\"2023-01-01T09:00:00.000Z\"}" );
+        exitedRunExchange.setProperty( RunsPageCheckpointer.RECHECKED_RUN_PROPERTY, "run-1" );
+        collectRuns( runsPageCheckpointer, exitedRunExchange );
+        assertEquals( 1, runsPageCheckpointer.commit( exitedRunExchange ) );
+
+        Exchange deletedRunExchange = newExchange( "" );
+        deletedRunExchange.setProperty( RunsPageCheckpointer.RECHECKED_RUN_PROPERTY, "run-2" );
+        collectRuns( runsPageCheckpointer, deletedRunExchange );
+        assertEquals( 0, runsPageCheckpointer.commit( deletedRunExchange ) );
+
+        assertEquals( List.of(), readPendingRunUuids() );
+        assertEquals( Instant.parse( "2023-01-01T00:00:00Z" ), readLastRunAt() );
+        assertEquals( 0, runsPageCheckpointer.getCheckpoints() );
+        assertEquals( 2, runsPageCheckpointer.getRechecks() );
+    }
+
+    @Test
+    public void testIsLeftToNextScan()
+    {
+        RunsPageCheckpointer runsPageCheckpointer = newRunsPageCheckpointer();
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "newLastRunAt", Timestamp.from( Instant.parse( "2023-01-02T00:00:00Z" ) ) );
+
+        exchange.getMessage().setBody( Map.of( "uuid", "run-1", "modified_on", "2023-01-02T00:00:01.000Z" ) );
+        assertFalse( runsPageCheckpointer.isLeftToNextScan( exchange ) );
+
+        exchange.setProperty( RunsPageCheckpointer.RECHECKED_RUN_PROPERTY, "run-1" );
+        assertTrue( runsPageCheckpointer.isLeftToNextScan( exchange ) );
+        exchange.getMessage().setBody( Map.of( "uuid", "run-1", "modified_on", "2023-01-02T00:00:00.000Z" ) );
+        assertTrue( runsPageCheckpointer.isLeftToNextScan( exchange ) );
+        exchange.getMessage().setBody( Map.of( "uuid", "run-1", "modified_on", "2023-01-01T23:59:59.000Z" ) );
+        assertFalse( runsPageCheckpointer.isLeftToNextScan( exchange ) );
+    }
+
+    @Test
+    public void testCommitGivenEnqueueFailure()
+    {
+        failEnqueue = true;
+        RunsPageCheckpointer runsPageCheckpointer = newRunsPageCheckpointer();
+        Exchange exchange = newExchange(
+            "{\"id\":1,\"exited_on\":\"2023-01-01T10:00:00.000Z\",\"modified_on\":\"2023-01-01T10:00:00.000Z\"}" );
+        collectRuns( runsPageCheckpointer, exchange );
+
+        assertThrows( UncategorizedJmsException.class, () -> runsPageCheckpointer.commit( exchange ) );
+        assertEquals( Instant.parse( "2023-01-01T00:00:00Z" ), readLastRunAt() );
+        assertEquals( 0, runsPageCheckpointer.getCheckpoints() );
+    }
+}
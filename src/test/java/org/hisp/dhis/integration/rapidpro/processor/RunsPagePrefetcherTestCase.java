@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+public class RunsPagePrefetcherTestCase
+{
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    private HttpServer httpServer;
+
+    private CamelContext camelContext;
+
+    private RunsPagePrefetcher runsPagePrefetcher;
+
+    private String baseUrl;
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        httpServer = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        baseUrl = "http://localhost:" + httpServer.getAddress().getPort() + "/api/v2/runs.json";
+        httpServer.createContext( "/api/v2/runs.json", httpExchange -> {
+            String query = httpExchange.getRequestURI().getQuery();
+            requests.add( query + ";" + httpExchange.getRequestHeaders().getFirst( "Authorization" ) );
+            int page = Integer.parseInt( query.substring( query.indexOf( "page=" ) + 5 ) );
+            String next = page < 3 ? "\"" + baseUrl + "?flow=acme&page=" + (page + 1) + "\"" : "null";
+            byte[] body = ("{\"next\":" + next + ",\"previous\":null,\"results\":[{\"id\":" + page + "}]}")
+                .getBytes( StandardCharsets.UTF_8 );
+            httpExchange.sendResponseHeaders( 200, body.length );
+            try ( OutputStream outputStream = httpExchange.getResponseBody() )
+            {
+                outputStream.write( body );
+            }
+        } );
+        httpServer.start();
+
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+
+        runsPagePrefetcher = new RunsPagePrefetcher();
+        ReflectionTestUtils.setField( runsPagePrefetcher, "camelContext", camelContext );
+        ReflectionTestUtils.setField( runsPagePrefetcher, "poolSize", 2 );
+        ReflectionTestUtils.setField( runsPagePrefetcher, "producerTemplate", camelContext.createProducerTemplate() );
+        ReflectionTestUtils.setField( runsPagePrefetcher, "objectMapper", new ObjectMapper() );
+        runsPagePrefetcher.start();
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        runsPagePrefetcher.stop();
+        camelContext.stop();
+        httpServer.stop( 0 );
+    }
+
+    private List<String> fetchAllPages()
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "Authorization", "Token secret" );
+        exchange.setProperty( "nextRunsPageUrl", baseUrl + "?flow=acme&page=1" );
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        while ( exchange.getProperty( "nextRunsPageUrl" ) != null )
+        {
+            runsPagePrefetcher.process( exchange );
+            byte[] body = exchange.getMessage().getBody( byte[].class );
+            bodies.add( new String( body, StandardCharsets.UTF_8 ) );
+            exchange.setProperty( "nextRunsPageUrl", runsPagePrefetcher.readNextPageUrl( body ) );
+        }
+        return bodies;
+    }
+
+    @Test
+    public void testProcess()
+    {
+        ReflectionTestUtils.setField( runsPagePrefetcher, "prefetchDepth", 2 );
+        List<String> bodies = fetchAllPages();
+
+        assertEquals( 3, bodies.size() );
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( "[{\"id\":" + (i + 1) + "}]",
+                bodies.get( i ).substring( bodies.get( i ).indexOf( '[' ), bodies.get( i ).indexOf( ']' ) + 1 ) );
+        }
+        assertEquals( List.of( "flow=acme&page=1;Token secret", "flow=acme&page=2;Token secret",
+            "flow=acme&page=3;Token secret" ), requests );
+        assertEquals( 2, runsPagePrefetcher.getPrefetchHits() );
+        assertEquals( 0, runsPagePrefetcher.getPrefetchMisses() );
+    }
+
+    @Test
+    public void testProcessGivenNoPrefetching()
+    {
+        ReflectionTestUtils.setField( runsPagePrefetcher, "prefetchDepth", 0 );
+        List<String> bodies = fetchAllPages();
+
+        assertEquals( 3, bodies.size() );
+        assertEquals( 3, requests.size() );
+        assertEquals( 0, runsPagePrefetcher.getPrefetchHits() );
+    }
+
+    @Test
+    public void testDiscard()
+    {
+        ReflectionTestUtils.setField( runsPagePrefetcher, "prefetchDepth", 2 );
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "Authorization", "Token secret" );
+        exchange.setProperty( "nextRunsPageUrl", baseUrl + "?flow=acme&page=1" );
+        runsPagePrefetcher.process( exchange );
+
+        Deque<?> prefetchedPages = exchange.getProperty( RunsPagePrefetcher.PREFETCHED_PAGES_PROPERTY, Deque.class );
+        assertEquals( 2, prefetchedPages.size() );
+
+        runsPagePrefetcher.discard( exchange );
+        assertTrue( prefetchedPages.isEmpty() );
+        assertNull( exchange.getProperty( RunsPagePrefetcher.PREFETCHED_PAGES_PROPERTY ) );
+    }
+
+    @Test
+    public void testStartUsesThreadPoolOfCamelContext()
+    {
+        ExecutorService executorService = (ExecutorService) ReflectionTestUtils.getField( runsPagePrefetcher,
+            "executorService" );
+        camelContext.stop();
+        assertTrue( executorService.isShutdown() );
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.H2TestDatabase;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SuccessLogArchiverTestCase
+{
+    private static final long DAY = 86400000L;
+
+    @TempDir
+    Path archiveDirectory;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private SuccessLogArchiver successLogArchiver;
+
+    private H2TestDatabase h2TestDatabase;
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        h2TestDatabase = new H2TestDatabase();
+        jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+        successLogArchiver = newSuccessLogArchiver( new SuccessLogArchiver() );
+    }
+
+    private SuccessLogArchiver newSuccessLogArchiver( SuccessLogArchiver successLogArchiver )
+    {
+        ReflectionTestUtils.setField( successLogArchiver, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( successLogArchiver, "transactionManager",
+            h2TestDatabase.newTransactionManager() );
+        ReflectionTestUtils.setField( successLogArchiver, "objectMapper", new ObjectMapper() );
+        ReflectionTestUtils.setField( successLogArchiver, "maxIdSql",
+            h2TestDatabase.getSql( "archive.success.log.max.id" ) );
+        ReflectionTestUtils.setField( successLogArchiver, "selectSql",
+            h2TestDatabase.getSql( "archive.success.log.select" ) );
+        ReflectionTestUtils.setField( successLogArchiver, "countSql",
+            h2TestDatabase.getSql( "archive.success.log.count" ) );
+        ReflectionTestUtils.setField( successLogArchiver, "deleteSql",
+            h2TestDatabase.getSql( "archive.success.log.delete" ) );
+        ReflectionTestUtils.setField( successLogArchiver, "maxAge", 30 * DAY );
+        ReflectionTestUtils.setField( successLogArchiver, "directory", archiveDirectory.toString() );
+        ReflectionTestUtils.setField( successLogArchiver, "fetchSize", 2 );
+        ReflectionTestUtils.setField( successLogArchiver, "fileMaxRecords", 2L );
+        ReflectionTestUtils.setField( successLogArchiver, "chunkSize", 2 );
+        return successLogArchiver;
+    }
+
+    private void insertRow( String dataSetCode, String createdAt )
+    {
+        jdbcTemplate.update(
+            "INSERT INTO SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, data_set_code, report_period_offset, created_at) VALUES ('{}', '{\"status\":\"SUCCESS\"}', '{\"id\":0}', ?, -1, ?::TIMESTAMP WITH TIME ZONE)",
+            dataSetCode, createdAt );
+    }
+
+    private List<Path> listArchiveFiles()
+        throws IOException
+    {
+        try ( Stream<Path> paths = Files.walk( archiveDirectory ) )
+        {
+            return paths.filter( Files::isRegularFile ).sorted().collect( Collectors.toList() );
+        }
+    }
+
+    private List<String> readLines( Path path )
+        throws IOException
+    {
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader(
+            new GZIPInputStream( Files.newInputStream( path ) ), StandardCharsets.UTF_8 ) ) )
+        {
+            return reader.lines().collect( Collectors.toList() );
+        }
+    }
+
+    @Test
+    public void testProcess()
+        throws Exception
+    {
+        insertRow( "MAL_YEARLY", "2023-01-10 10:00:00+00" );
+        insertRow( "MAL_YEARLY", "2023-01-11 10:00:00+00" );
+        insertRow( "MAL_YEARLY", "2023-01-12 10:00:00+00" );
+        insertRow( "MAL_YEARLY", "2023-02-01 10:00:00+00" );
+        insertRow( "MAL MONTHLY", "2023-01-10 10:00:00+00" );
+        jdbcTemplate.update(
+            "INSERT INTO SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, compressed_dhis_request, compressed_dhis_response, compressed_rapidpro_payload, payload_format, data_set_code, report_period_offset) VALUES (NULL, NULL, NULL, ?, ?, ?, 'GZIP', 'MAL_YEARLY', -1)",
+            PayloadCompressor.gzip( "{}" ), PayloadCompressor.gzip( "{}" ), PayloadCompressor.gzip( "{}" ) );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        successLogArchiver.process( exchange );
+
+        Map<String, Object> result = exchange.getMessage().getBody( Map.class );
+        assertEquals( 5L, result.get( "archived" ) );
+        assertEquals( 4, result.get( "files" ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+
+        List<Path> archiveFiles = listArchiveFiles();
+        assertEquals( 4, archiveFiles.size() );
+        assertEquals( archiveDirectory.resolve( "2023-01/MAL_MONTHLY" ), archiveFiles.get( 0 ).getParent() );
+        assertEquals( 1, readLines( archiveFiles.get( 0 ) ).size() );
+        assertEquals( archiveDirectory.resolve( "2023-01/MAL_YEARLY" ), archiveFiles.get( 1 ).getParent() );
+        assertEquals( 2, readLines( archiveFiles.get( 1 ) ).size() );
+        assertEquals( 1, readLines( archiveFiles.get( 2 ) ).size() );
+        assertEquals( archiveDirectory.resolve( "2023-02/MAL_YEARLY" ), archiveFiles.get( 3 ).getParent() );
+
+        Map<String, Object> record = new ObjectMapper().readValue( readLines( archiveFiles.get( 3 ) ).get( 0 ),
+            Map.class );
+        assertEquals( "MAL_YEARLY", record.get( "dataSetCode" ) );
+        assertEquals( "{\"status\":\"SUCCESS\"}", record.get( "dhisResponse" ) );
+        assertEquals( "{\"id\":0}", record.get( "rapidProPayload" ) );
+        assertEquals( 5L, successLogArchiver.getArchivedRows() );
+    }
+
+    @Test
+    public void testProcessGivenRowCountMismatch()
+        throws Exception
+    {
+        ReflectionTestUtils.setField( successLogArchiver, "countSql",
+            h2TestDatabase.getSql( "archive.success.log.count" ).replace( "COUNT(*)", "COUNT(*) + 1" ) );
+        insertRow( "MAL_YEARLY", "2023-01-10 10:00:00+00" );
+
+        assertThrows( IllegalStateException.class,
+            () -> successLogArchiver.process( new DefaultExchange( camelContext ) ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+        assertEquals( 0, listArchiveFiles().size() );
+        assertEquals( 1L, successLogArchiver.getFailedRuns() );
+    }
+
+    @Test
+    public void testProcessGivenRecordIdMismatch()
+        throws Exception
+    {
+        successLogArchiver = newSuccessLogArchiver( new SuccessLogArchiver()
+        {
+            @Override
+            protected Map<String, Object> toRecord( ResultSet rs )
+                throws SQLException
+            {
+                Map<String, Object> record = super.toRecord( rs );
+                record.put( "id", rs.getLong( "id" ) + 1 );
+                return record;
+            }
+        } );
+        insertRow( "MAL_YEARLY", "2023-01-10 10:00:00+00" );
+
+        assertThrows( IllegalStateException.class,
+            () -> successLogArchiver.process( new DefaultExchange( camelContext ) ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+        assertEquals( 0, listArchiveFiles().size() );
+        assertEquals( 1L, successLogArchiver.getFailedRuns() );
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.H2TestDatabase;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class SuccessLogPartitionerTestCase
+{
+    @Test
+    public void testPartitionName()
+    {
+        assertEquals( "success_log_p202301", SuccessLogPartitioner.partitionName( YearMonth.of( 2023, 1 ) ) );
+        assertEquals( YearMonth.of( 2023, 1 ), SuccessLogPartitioner.partitionMonth( "success_log_p202301" ) );
+        assertEquals( YearMonth.of( 2023, 12 ), SuccessLogPartitioner.partitionMonth( "SUCCESS_LOG_P202312" ) );
+        assertNull( SuccessLogPartitioner.partitionMonth( "success_log_default" ) );
+    }
+
+    @Test
+    public void testProcessGivenUnpartitionedSuccessLog()
+        throws IOException
+    {
+        H2TestDatabase h2TestDatabase = new H2TestDatabase();
+        JdbcTemplate jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+        jdbcTemplate.update(
+            "INSERT INTO SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, data_set_code, report_period_offset, created_at) VALUES ('{}', '{}', '{}', 'MAL_YEARLY', -1, '2020-01-01 00:00:00+00')" );
+
+        SuccessLogPartitioner successLogPartitioner = new SuccessLogPartitioner();
+        ReflectionTestUtils.setField( successLogPartitioner, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionedSql", "" );
+
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        successLogPartitioner.process( exchange );
+
+        assertFalse( successLogPartitioner.isPartitioned() );
+        assertEquals( 0, exchange.getMessage().getBody() );
+        assertEquals( 0, successLogPartitioner.dropPartitionsBefore( Instant.now() ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+    }
+
+    @Test
+    public void testProcessGivenPartitionCreationError()
+        throws IOException
+    {
+        H2TestDatabase h2TestDatabase = new H2TestDatabase();
+        JdbcTemplate jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+
+        SuccessLogPartitioner successLogPartitioner = new SuccessLogPartitioner();
+        ReflectionTestUtils.setField( successLogPartitioner, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionedSql", "SELECT 1" );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionsSelectSql",
+            "SELECT table_name FROM INFORMATION_SCHEMA.TABLES WHERE table_name LIKE 'success_log_p%'" );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionCreateSql",
+            "CREATE TABLE %s PARTITION OF SUCCESS_LOG FOR VALUES FROM ('%s') TO ('%s')" );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionsAhead", 2 );
+
+        assertThrows( IllegalStateException.class,
+            () -> successLogPartitioner.process( new DefaultExchange( new DefaultCamelContext() ) ) );
+        assertEquals( 0, successLogPartitioner.getCreatedPartitions() );
+        assertEquals( 3, successLogPartitioner.getFailedPartitions() );
+        assertTrue( successLogPartitioner.getLastFailure().startsWith(
+            SuccessLogPartitioner.partitionName( YearMonth.now( ZoneOffset.UTC ).plusMonths( 2 ) ) ) );
+    }
+
+    @Test
+    public void testProcessMovesDefaultPartitionRowsIntoNewPartition()
+        throws IOException
+    {
+        YearMonth currentMonth = YearMonth.now( ZoneOffset.UTC );
+        String currentMonthStart = currentMonth.atDay( 1 ) + " 00:00:00+00";
+        List<String> statements = new ArrayList<>();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate()
+        {
+            @Override
+            public void execute( String sql )
+            {
+                statements.add( sql );
+            }
+
+            @Override
+            public int update( String sql )
+            {
+                statements.add( sql );
+                return 2;
+            }
+
+            @Override
+            public <T> T queryForObject( String sql, Class<T> requiredType )
+            {
+                if ( sql.equals( "PARTITIONED" ) )
+                {
+                    return requiredType.cast( 1 );
+                }
+                // only the current month has rows in the default partition
+                return requiredType.cast( sql.startsWith( "COUNT " + currentMonthStart ) ? 2L : 0L );
+            }
+
+            @Override
+            public <T> List<T> queryForList( String sql, Class<T> elementType )
+            {
+                return List.of( elementType.cast( "SUCCESS_LOG_DEFAULT" ) );
+            }
+        };
+
+        SuccessLogPartitioner successLogPartitioner = new SuccessLogPartitioner();
+        ReflectionTestUtils.setField( successLogPartitioner, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( successLogPartitioner, "transactionManager",
+            new H2TestDatabase().newTransactionManager() );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionedSql", "PARTITIONED" );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionsSelectSql", "PARTITIONS" );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionCreateSql", "CREATE %s %s %s" );
+        ReflectionTestUtils.setField( successLogPartitioner, "defaultPartitionCountSql", "COUNT %s %s" );
+        ReflectionTestUtils.setField( successLogPartitioner, "defaultPartitionDetachSql", "DETACH" );
+        ReflectionTestUtils.setField( successLogPartitioner, "defaultPartitionMoveSql", "MOVE %s %s" );
+        ReflectionTestUtils.setField( successLogPartitioner, "defaultPartitionAttachSql", "ATTACH" );
+        ReflectionTestUtils.setField( successLogPartitioner, "partitionsAhead", 1 );
+
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        successLogPartitioner.process( exchange );
+
+        String nextMonthStart = currentMonth.plusMonths( 1 ).atDay( 1 ) + " 00:00:00+00";
+        String monthAfterNextStart = currentMonth.plusMonths( 2 ).atDay( 1 ) + " 00:00:00+00";
+        assertEquals( List.of( "DETACH",
+            String.format( "CREATE %s %s %s", SuccessLogPartitioner.partitionName( currentMonth ), currentMonthStart,
+                nextMonthStart ), String.format( "MOVE %s %s", currentMonthStart, nextMonthStart ), "ATTACH",
+            String.format( "CREATE %s %s %s", SuccessLogPartitioner.partitionName( currentMonth.plusMonths( 1 ) ),
+                nextMonthStart, monthAfterNextStart ) ), statements );
+        assertEquals( 2, exchange.getMessage().getBody() );
+        assertEquals( 0, successLogPartitioner.getFailedPartitions() );
+    }
+}
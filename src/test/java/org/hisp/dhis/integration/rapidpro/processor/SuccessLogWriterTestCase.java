@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.H2TestDatabase;
+import org.hisp.dhis.integration.rapidpro.PayloadCompressor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SuccessLogWriterTestCase
+{
+    @TempDir
+    Path tempDir;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private SuccessLogWriter successLogWriter;
+
+    @BeforeEach
+    public void beforeEach()
+        throws IOException
+    {
+        H2TestDatabase h2TestDatabase = new H2TestDatabase();
+        jdbcTemplate = h2TestDatabase.getJdbcTemplate();
+
+        PayloadCompressor payloadCompressor = new PayloadCompressor();
+        ReflectionTestUtils.setField( payloadCompressor, "compression", "none" );
+
+        successLogWriter = new SuccessLogWriter();
+        ReflectionTestUtils.setField( successLogWriter, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( successLogWriter, "objectMapper", new ObjectMapper() );
+        ReflectionTestUtils.setField( successLogWriter, "payloadCompressor", payloadCompressor );
+        ReflectionTestUtils.setField( successLogWriter, "transactionManager", h2TestDatabase.newTransactionManager() );
+        ReflectionTestUtils.setField( successLogWriter, "enabled", true );
+        ReflectionTestUtils.setField( successLogWriter, "batchInsertSql",
+            h2TestDatabase.getSql( "success.log.batch.insert" ) );
+        ReflectionTestUtils.setField( successLogWriter, "bufferSize", 10 );
+        ReflectionTestUtils.setField( successLogWriter, "batchSize", 2 );
+        ReflectionTestUtils.setField( successLogWriter, "flushInterval", 60000 );
+        ReflectionTestUtils.setField( successLogWriter, "spoolFile", tempDir.resolve( "success-log.spool" ).toString() );
+        successLogWriter.start();
+    }
+
+    private void write()
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "dhisRequest", "{\"dataSet\":\"MAL_YEARLY\"}" );
+        exchange.getMessage().setHeader( "dhisResponse", "{\"status\":\"SUCCESS\"}" );
+        exchange.getMessage().setHeader( "rapidProPayload", "{}" );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setHeader( "reportPeriodOffset", "-1" );
+        exchange.getMessage().setHeader( "orgUnitId", "acme" );
+        successLogWriter.process( exchange );
+    }
+
+    private String spooledRecord( Object reportPeriodOffset )
+        throws IOException
+    {
+        Map<String, Object> record = new HashMap<>();
+        record.put( "dhisRequest", "{\"dataSet\":\"MAL_YEARLY\"}" );
+        record.put( "dhisResponse", "{\"status\":\"SUCCESS\"}" );
+        record.put( "rapidProPayload", "{}" );
+        record.put( "dataSetCode", "MAL_YEARLY" );
+        record.put( "reportPeriodOffset", reportPeriodOffset );
+        record.put( "orgUnitId", "acme" );
+        return new ObjectMapper().writeValueAsString( record );
+    }
+
+    private int countRows()
+    {
+        return jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class );
+    }
+
+    @Test
+    public void testProcess()
+        throws Exception
+    {
+        write();
+        assertEquals( 0, countRows() );
+        assertEquals( 1, successLogWriter.getBufferDepth() );
+
+        write();
+        write();
+        write();
+        assertEquals( 0, successLogWriter.getOverflows() );
+
+        successLogWriter.stop();
+        assertEquals( 4, countRows() );
+        assertEquals( 0, successLogWriter.getBufferDepth() );
+        assertEquals( 4, successLogWriter.getFlushedRecords() );
+    }
+
+    @Test
+    public void testProcessGivenFullBuffer()
+        throws Exception
+    {
+        successLogWriter.stop();
+        ReflectionTestUtils.setField( successLogWriter, "bufferSize", 3 );
+        ReflectionTestUtils.setField( successLogWriter, "batchSize", 100 );
+        successLogWriter.start();
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            write();
+        }
+        assertEquals( 1, successLogWriter.getOverflows() );
+        assertEquals( 1, countRows() );
+
+        successLogWriter.stop();
+        assertEquals( 4, countRows() );
+    }
+
+    @Test
+    public void testProcessGivenFullBufferAndUnavailableDatabase()
+        throws Exception
+    {
+        successLogWriter.stop();
+        ReflectionTestUtils.setField( successLogWriter, "bufferSize", 1 );
+        ReflectionTestUtils.setField( successLogWriter, "batchSize", 100 );
+        successLogWriter.start();
+        jdbcTemplate.execute( "ALTER TABLE SUCCESS_LOG RENAME TO SUCCESS_LOG_" );
+
+        write();
+        write();
+        assertEquals( 1, successLogWriter.getOverflows() );
+        assertEquals( 1, successLogWriter.getSpooledRecords() );
+
+        jdbcTemplate.execute( "ALTER TABLE SUCCESS_LOG_ RENAME TO SUCCESS_LOG" );
+        successLogWriter.stop();
+        assertEquals( 2, countRows() );
+    }
+
+    @Test
+    public void testProcessGivenStoppedWriter()
+        throws Exception
+    {
+        successLogWriter.stop();
+        write();
+        assertEquals( 1, countRows() );
+        assertEquals( 0, successLogWriter.getBufferDepth() );
+    }
+
+    @Test
+    public void testStartGivenWriteBehindDisabled()
+        throws Exception
+    {
+        successLogWriter.stop();
+        SuccessLogWriter disabledSuccessLogWriter = new SuccessLogWriter();
+        disabledSuccessLogWriter.start();
+        assertNull( ReflectionTestUtils.getField( disabledSuccessLogWriter, "flushExecutor" ) );
+        assertEquals( 0, disabledSuccessLogWriter.getBufferDepth() );
+        disabledSuccessLogWriter.stop();
+    }
+
+    @Test
+    public void testStopGivenUnavailableDatabase()
+        throws Exception
+    {
+        jdbcTemplate.execute( "ALTER TABLE SUCCESS_LOG RENAME TO SUCCESS_LOG_" );
+        write();
+        successLogWriter.stop();
+
+        Path spoolFile = tempDir.resolve( "success-log.spool" );
+        assertTrue( Files.exists( spoolFile ) );
+        assertEquals( 1, successLogWriter.getSpooledRecords() );
+
+        jdbcTemplate.execute( "ALTER TABLE SUCCESS_LOG_ RENAME TO SUCCESS_LOG" );
+        successLogWriter.start();
+        successLogWriter.stop();
+        assertFalse( Files.exists( spoolFile ) );
+        assertEquals( 1, countRows() );
+    }
+
+    @Test
+    public void testReplaySpoolGivenFailedInsertRestoresSpoolFile()
+        throws Exception
+    {
+        successLogWriter.stop();
+        Path spoolFile = tempDir.resolve( "success-log.spool" );
+        // the third record fails to insert after the first batch of two went in
+        List<String> spooledRecords = List.of( spooledRecord( -1 ), spooledRecord( -1 ), spooledRecord( "x" ) );
+        Files.write( spoolFile, spooledRecords );
+
+        successLogWriter.replaySpool();
+        assertEquals( 0, countRows() );
+        assertEquals( spooledRecords, Files.readAllLines( spoolFile ) );
+        assertFalse( Files.exists( tempDir.resolve( "success-log.spool.replaying" ) ) );
+
+        Files.write( spoolFile, spooledRecords.subList( 0, 2 ) );
+        successLogWriter.replaySpool();
+        assertEquals( 2, countRows() );
+        assertFalse( Files.exists( spoolFile ) );
+        assertFalse( Files.exists( tempDir.resolve( "success-log.spool.replaying" ) ) );
+    }
+
+    @Test
+    public void testStartGivenLeftoverReplayingFile()
+        throws Exception
+    {
+        successLogWriter.stop();
+        Files.write( tempDir.resolve( "success-log.spool.replaying" ), List.of( spooledRecord( -1 ) ) );
+        Files.write( tempDir.resolve( "success-log.spool" ), List.of( spooledRecord( -2 ), spooledRecord( -3 ) ) );
+
+        successLogWriter.start();
+        successLogWriter.stop();
+        assertEquals( 3, countRows() );
+        assertFalse( Files.exists( tempDir.resolve( "success-log.spool" ) ) );
+        assertFalse( Files.exists( tempDir.resolve( "success-log.spool.replaying" ) ) );
+    }
+}
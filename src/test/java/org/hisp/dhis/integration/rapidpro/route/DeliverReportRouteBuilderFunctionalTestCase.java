@@ -181,6 +181,37 @@ public class DeliverReportRouteBuilderFunctionalTestCase extends AbstractFunctio
         assertNull( deadLetterChannel.get( 0 ).get( "data_set_code" ) );
     }
 
+    @Test
+    public void testRecordInDeadLetterChannelIsCreatedGivenUnknownDataElementAndValidationEnabled()
+        throws
+        Exception
+    {
+        System.setProperty( "sync.rapidpro.contacts", "true" );
+        System.setProperty( "report.delivery.validation.enabled", "true" );
+        AdviceWith.adviceWith( camelContext, "Transmit Report",
+            r -> r.weaveByToUri( "dhis2://post/resource?path=dataValueSets&inBody=resource&client=#dhis2Client" )
+                .replace().to( "mock:dhis2" ) );
+        MockEndpoint fakeDhis2Endpoint = camelContext.getEndpoint( "mock:dhis2", MockEndpoint.class );
+        fakeDhis2Endpoint.setExpectedCount( 0 );
+
+        camelContext.start();
+        String contactUuid = syncContactsAndFetchFirstContactUuid();
+
+        // the webhook's 'msg' result does not match any data element of the data set
+        String webhookMessage = StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() );
+        producerTemplate.sendBodyAndHeaders( "jms:queue:dhis2",
+            ExchangePattern.InOut, String.format( webhookMessage, contactUuid ),
+            Map.of( "dataSetCode", "MAL_YEARLY", "orgUnitId", Environment.ORG_UNIT_ID ) );
+
+        List<Map<String, Object>> deadLetterChannel = jdbcTemplate.queryForList( "SELECT * FROM DEAD_LETTER_CHANNEL" );
+        assertEquals( 1, deadLetterChannel.size() );
+        assertTrue( ((String) deadLetterChannel.get( 0 ).get( "error_message" )).contains(
+            "Data element 'msg' does not belong to data set 'MAL_YEARLY'" ) );
+        fakeDhis2Endpoint.assertIsSatisfied();
+    }
+
     @Test
     @Timeout( value = 5, unit = TimeUnit.MINUTES )
     public void testScheduledReportDelivery()
@@ -329,4 +360,160 @@ public class DeliverReportRouteBuilderFunctionalTestCase extends AbstractFunctio
         assertEquals( "2", dataValue.get().getValue().get() );
         assertTrue( dataValue.get().getComment().isPresent() );
     }
+
+    @Test
+    public void testAsyncImportJobIsSettled()
+        throws
+        Exception
+    {
+        System.setProperty( "sync.rapidpro.contacts", "true" );
+        System.setProperty( "report.delivery.async.enabled", "true" );
+        System.setProperty( "report.delivery.async.poll.period", "1000" );
+        AdviceWith.adviceWith( camelContext, "Settle Import Job", r -> r.weaveAddLast().to( "mock:spy" ) );
+        MockEndpoint spyEndpoint = camelContext.getEndpoint( "mock:spy", MockEndpoint.class );
+        spyEndpoint.setExpectedCount( 1 );
+
+        camelContext.start();
+        String contactUuid = syncContactsAndFetchFirstContactUuid();
+
+        String webhookMessage = StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() );
+        producerTemplate.sendBodyAndHeaders( "jms:queue:dhis2",
+            ExchangePattern.InOut, String.format( webhookMessage, contactUuid ),
+            Map.of( "dataSetCode", "MAL_YEARLY" ) );
+
+        spyEndpoint.await( 1, TimeUnit.MINUTES );
+
+        assertEquals( 1, spyEndpoint.getReceivedCounter() );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM IMPORT_JOB", Integer.class ) );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL", Integer.class ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+    }
+
+    @Test
+    public void testAsyncImportJobDataSetRegistrationIsCompletedWithIdSchemes()
+        throws
+        Exception
+    {
+        System.setProperty( "sync.rapidpro.contacts", "true" );
+        System.setProperty( "report.delivery.async.enabled", "true" );
+        System.setProperty( "report.delivery.async.poll.period", "1000" );
+        AdviceWith.adviceWith( camelContext, "Complete Data Set Registration",
+            r -> r.weaveByToUri( "dhis2://post/resource?path=completeDataSetRegistrations*" ).before()
+                .to( "mock:completion" ) );
+        MockEndpoint completionEndpoint = camelContext.getEndpoint( "mock:completion", MockEndpoint.class );
+        completionEndpoint.setExpectedCount( 1 );
+
+        camelContext.start();
+        String contactUuid = syncContactsAndFetchFirstContactUuid();
+
+        String webhookMessage = StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() );
+        producerTemplate.sendBodyAndHeaders( "jms:queue:dhis2",
+            ExchangePattern.InOut, String.format( webhookMessage, contactUuid ),
+            Map.of( "dataSetCode", "MAL_YEARLY" ) );
+
+        completionEndpoint.await( 1, TimeUnit.MINUTES );
+
+        assertEquals( 1, completionEndpoint.getReceivedCounter() );
+        Map<String, String> queryParams = completionEndpoint.getExchanges().get( 0 ).getMessage()
+            .getHeader( "CamelDhis2.queryParams", Map.class );
+        assertEquals( "CODE", queryParams.get( "dataSetIdScheme" ) );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM DEAD_LETTER_CHANNEL", Integer.class ) );
+    }
+
+    @Test
+    public void testRecordInDeadLetterChannelIsCreatedGivenTimedOutAsyncImportJob()
+        throws
+        Exception
+    {
+        System.setProperty( "sync.rapidpro.contacts", "true" );
+        System.setProperty( "report.delivery.async.enabled", "true" );
+        System.setProperty( "report.delivery.async.poll.period", "1000" );
+        System.setProperty( "report.delivery.async.timeout", "0" );
+        AdviceWith.adviceWith( camelContext, "Abandon Import Job", r -> r.weaveAddLast().to( "mock:spy" ) );
+        MockEndpoint spyEndpoint = camelContext.getEndpoint( "mock:spy", MockEndpoint.class );
+        spyEndpoint.setExpectedCount( 1 );
+
+        camelContext.start();
+        String contactUuid = syncContactsAndFetchFirstContactUuid();
+
+        String webhookMessage = StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() );
+        producerTemplate.sendBodyAndHeaders( "jms:queue:dhis2",
+            ExchangePattern.InOut, String.format( webhookMessage, contactUuid ),
+            Map.of( "dataSetCode", "MAL_YEARLY" ) );
+
+        spyEndpoint.await( 1, TimeUnit.MINUTES );
+
+        assertEquals( 1, spyEndpoint.getReceivedCounter() );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM IMPORT_JOB", Integer.class ) );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG", Integer.class ) );
+        List<Map<String, Object>> deadLetterChannel = jdbcTemplate.queryForList( "SELECT * FROM DEAD_LETTER_CHANNEL" );
+        assertEquals( 1, deadLetterChannel.size() );
+        assertTrue( ((String) deadLetterChannel.get( 0 ).get( "ERROR_MESSAGE" )).contains( "did not complete within" ) );
+    }
+
+    @Test
+    public void testCoalescedReportsAreImportedOnce()
+        throws
+        Exception
+    {
+        System.setProperty( "sync.rapidpro.contacts", "true" );
+        System.setProperty( "report.delivery.coalesce.window", "5000" );
+        AdviceWith.adviceWith( camelContext, "Transmit Report", r -> r.weaveAddLast().to( "mock:spy" ) );
+        MockEndpoint spyEndpoint = camelContext.getEndpoint( "mock:spy", MockEndpoint.class );
+        spyEndpoint.setExpectedCount( 1 );
+
+        camelContext.start();
+        String contactUuid = syncContactsAndFetchFirstContactUuid();
+
+        String webhookMessage = StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() );
+        for ( int i = 0; i < 2; i++ )
+        {
+            producerTemplate.sendBodyAndHeaders( "jms:queue:dhis2",
+                ExchangePattern.InOnly, String.format( webhookMessage, contactUuid ),
+                Map.of( "dataSetCode", "MAL_YEARLY" ) );
+        }
+
+        spyEndpoint.await( 1, TimeUnit.MINUTES );
+
+        assertEquals( 1, spyEndpoint.getReceivedCounter() );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG WHERE status = 'IMPORTED'",
+            Integer.class ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SUCCESS_LOG WHERE status = 'SUPERSEDED'",
+            Integer.class ) );
+    }
+
+    @Test
+    public void testRetriedRecordInDeadLetterChannelIsRescheduledGivenErrorWhileReProcessing()
+        throws
+        Exception
+    {
+        AdviceWith.adviceWith( camelContext, "Save Failed Report", r -> r.weaveAddLast().to( "mock:spy" ) );
+        MockEndpoint spyEndpoint = camelContext.getEndpoint( "mock:spy", MockEndpoint.class );
+        spyEndpoint.setExpectedCount( 2 );
+
+        camelContext.start();
+
+        String webhookMessage = StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() );
+        producerTemplate.sendBodyAndHeaders( "jms:queue:dhis2", ExchangePattern.InOut,
+            String.format( webhookMessage, UUID.randomUUID() ), Map.of( "dataSetCode", "MAL_YEARLY" ) );
+        jdbcTemplate.execute( "UPDATE DEAD_LETTER_CHANNEL SET STATUS = 'RETRY' WHERE STATUS = 'ERROR'" );
+
+        spyEndpoint.await( 1, TimeUnit.MINUTES );
+
+        assertEquals( 2, spyEndpoint.getReceivedCounter() );
+        List<Map<String, Object>> deadLetterChannel = jdbcTemplate.queryForList( "SELECT * FROM DEAD_LETTER_CHANNEL" );
+        assertEquals( 1, deadLetterChannel.size() );
+        assertEquals( "ERROR", deadLetterChannel.get( 0 ).get( "STATUS" ) );
+        assertEquals( 1, ((Number) deadLetterChannel.get( 0 ).get( "ATTEMPT_COUNT" )).intValue() );
+    }
 }